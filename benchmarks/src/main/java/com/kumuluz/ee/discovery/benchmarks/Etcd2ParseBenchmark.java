@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.benchmarks;
+
+import com.kumuluz.ee.discovery.exceptions.EtcdErrorResponseException;
+import com.kumuluz.ee.discovery.utils.Etcd2NodeParser;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a recursive read of the instances of a version, with the streaming parser of the lean client and with
+ * the etcd4j decoder, without the network. Run with the gc profiler to compare allocations:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar Etcd2ParseBenchmark -prof gc
+ * </pre>
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Etcd2ParseBenchmark {
+
+    @Param({"10", "1000"})
+    public int instances;
+
+    private byte[] body;
+    private HttpHeaders headers;
+
+    @Setup
+    public void setUp() {
+        body = EtcdResponses.instancesDirectory(instances);
+        headers = new DefaultHttpHeaders().add("X-Etcd-Index", EtcdResponses.ETCD_INDEX);
+    }
+
+    @Benchmark
+    public void lean(Blackhole blackhole) throws IOException, EtcdErrorResponseException {
+        Etcd2NodeParser.parse(body, 0, body.length, (key, value, dir, ttl, modifiedIndex) ->
+                blackhole.consume(value));
+    }
+
+    @Benchmark
+    public EtcdKeysResponse etcd4j() throws Exception {
+        return EtcdKeysResponse.DECODER.decode(headers, Unpooled.wrappedBuffer(body));
+    }
+}
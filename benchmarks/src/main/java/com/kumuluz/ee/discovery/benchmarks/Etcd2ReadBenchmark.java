@@ -0,0 +1,120 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.benchmarks;
+
+import com.kumuluz.ee.discovery.exceptions.EtcdErrorResponseException;
+import com.kumuluz.ee.discovery.utils.Etcd2LeanClient;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.EtcdSecurityContext;
+import mousio.etcd4j.transport.EtcdNettyClient;
+import mousio.etcd4j.transport.EtcdNettyConfig;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and allocations of a recursive read of the instances of a version, with the lean client and with etcd4j.
+ *
+ * Both clients share an event loop and read from a loopback server with a canned response, see {@link EtcdResponses}.
+ * The lean client passes nodes to a handler, etcd4j builds the response tree. The max frame size of etcd4j is raised
+ * to the max content length of the lean client, the default of 100 KiB does not fit 1000 instances. Allocations are
+ * reported by the gc profiler:
+ * <pre>
+ * mvn -P benchmarks package -DskipTests
+ * java -jar benchmarks/target/benchmarks.jar Etcd2ReadBenchmark -prof gc
+ * </pre>
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Etcd2ReadBenchmark {
+
+    private static final int MAX_CONTENT_LENGTH = 64 * 1024 * 1024;
+
+    @Param({"10", "1000"})
+    public int instances;
+
+    private EventLoopGroup serverGroup;
+    private EventLoopGroup clientGroup;
+    private Channel server;
+
+    private Etcd2LeanClient leanClient;
+    private EtcdClient etcd4jClient;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        serverGroup = new NioEventLoopGroup(1);
+        server = EtcdResponses.startServer(serverGroup, EtcdResponses.instancesDirectory(instances));
+
+        URI host = URI.create("http://127.0.0.1:" + ((InetSocketAddress) server.localAddress()).getPort());
+
+        clientGroup = new NioEventLoopGroup(1);
+        leanClient = new Etcd2LeanClient(new URI[]{host}, () -> host, clientGroup, null, null, null, 5000);
+        etcd4jClient = new EtcdClient(new EtcdNettyClient(new EtcdNettyConfig()
+                .setEventLoopGroup(clientGroup, false)
+                .setMaxFrameSize(MAX_CONTENT_LENGTH), EtcdSecurityContext.NONE, host));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        leanClient.close();
+        etcd4jClient.close();
+        clientGroup.shutdownGracefully();
+        server.close();
+        serverGroup.shutdownGracefully();
+    }
+
+    @Benchmark
+    public long lean(Blackhole blackhole) throws IOException, EtcdErrorResponseException {
+        return leanClient.getDir(EtcdResponses.INSTANCES_KEY, true, false,
+                (key, value, dir, ttl, modifiedIndex) -> blackhole.consume(value));
+    }
+
+    @Benchmark
+    public EtcdKeysResponse etcd4j() throws Exception {
+        return etcd4jClient.getDir(EtcdResponses.INSTANCES_KEY).recursive().send().get();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.benchmarks;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Canned etcd v2 responses and a loopback server, which answers every request with the same response, so clients can
+ * be compared without the variance of a real etcd cluster.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+class EtcdResponses {
+
+    static final String INSTANCES_KEY = "/environments/dev/services/customer-service/1.0.0/instances";
+    static final long ETCD_INDEX = 1042;
+
+    private EtcdResponses() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @return body of a recursive read of the instances directory of a version
+     */
+    static byte[] instancesDirectory(int instances) {
+        StringBuilder body = new StringBuilder("{\"action\":\"get\",\"node\":{\"key\":\"").append(INSTANCES_KEY)
+                .append("\",\"dir\":true,\"nodes\":[");
+
+        for (int i = 0; i < instances; i++) {
+            String instanceKey = INSTANCES_KEY + "/" + String.format("%08x-4b1e-4c2a-9f3d-%012x", i, i * 31L);
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append("{\"key\":\"").append(instanceKey).append("\",\"dir\":true,")
+                    .append("\"expiration\":\"2018-12-20T10:00:30.5Z\",\"ttl\":30,\"nodes\":[")
+                    .append("{\"key\":\"").append(instanceKey).append("/url\",\"value\":\"http://10.0.")
+                    .append((i >> 8) & 0xff).append('.').append(i & 0xff).append(":8080\",")
+                    .append("\"modifiedIndex\":").append(100 + i).append(",\"createdIndex\":").append(100 + i)
+                    .append("},{\"key\":\"").append(instanceKey).append("/containerUrl\",\"value\":")
+                    .append("\"http://customer-service-").append(i).append(".default.svc:8080\",")
+                    .append("\"modifiedIndex\":").append(100 + i).append(",\"createdIndex\":").append(100 + i)
+                    .append("},{\"key\":\"").append(instanceKey).append("/clusterId\",\"value\":\"cluster-")
+                    .append(i % 4).append("\",\"modifiedIndex\":").append(100 + i).append(",\"createdIndex\":")
+                    .append(100 + i).append("}],\"modifiedIndex\":").append(100 + i).append(",\"createdIndex\":")
+                    .append(100 + i).append('}');
+        }
+
+        body.append("],\"modifiedIndex\":10,\"createdIndex\":10}}");
+
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts a server on a free loopback port, which answers every request with the body.
+     *
+     * @return server channel, closing it stops the server
+     */
+    static Channel startServer(EventLoopGroup eventLoopGroup, byte[] body) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(eventLoopGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new HttpServerCodec());
+                        channel.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                        channel.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+                                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                                        HttpResponseStatus.OK, Unpooled.wrappedBuffer(body));
+                                response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+                                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+                                response.headers().set("X-Etcd-Index", ETCD_INDEX);
+                                response.headers().set("X-Etcd-Cluster-Id", "cdf818194e3a8c32");
+                                response.headers().set("X-Raft-Index", ETCD_INDEX);
+                                response.headers().set("X-Raft-Term", 2);
+                                ctx.writeAndFlush(response);
+                            }
+                        });
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.benchmarks;
+
+import com.kumuluz.ee.discovery.utils.Endpoint;
+import com.kumuluz.ee.discovery.utils.Etcd2SegmentMap;
+import com.kumuluz.ee.discovery.utils.Etcd2Service;
+
+import java.net.MalformedURLException;
+
+/**
+ * Heap footprint of the instance table of a version in the etcd registry, in bytes per instance.
+ *
+ * Instances with a base URL, a container URL and one of four cluster IDs are loaded into an {@link Etcd2SegmentMap}, as
+ * done by a directory read. All strings are created separately for each instance, as they are when parsed from etcd
+ * responses. Instance IDs are created before the baseline is taken, so they are not counted. The footprint is measured
+ * again after all instances were returned by a lookup, since endpoints keep the returned URL for later lookups.
+ *
+ * Run with a single-threaded collector, so used heap after GC is stable:
+ * <pre>
+ * mvn -P benchmarks package -DskipTests
+ * java -XX:+UseSerialGC -cp benchmarks/target/benchmarks.jar \
+ *     com.kumuluz.ee.discovery.benchmarks.RegistryFootprint 10000 100000
+ * </pre>
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class RegistryFootprint {
+
+    private static final int CLUSTER_IDS = 4;
+
+    public static void main(String[] args) throws MalformedURLException {
+        int[] sizes = (args.length == 0) ? new int[]{10000, 100000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        // warm up class loading and the cluster ID dictionary, so they are not counted
+        load(instanceIds(1000));
+
+        System.out.println("instances   registry       after lookups");
+        for (int size : sizes) {
+            String[] instanceIds = instanceIds(size);
+
+            long baseline = usedHeapAfterGc();
+            Etcd2SegmentMap<Etcd2Service> instances = load(instanceIds);
+            long loaded = usedHeapAfterGc();
+
+            // lookups return one URL of each instance
+            for (Etcd2Service service : instances.values()) {
+                service.getBaseUrl().toUrl();
+            }
+            long lookedUp = usedHeapAfterGc();
+
+            System.out.println(String.format("%-11d %-14s %s", instances.size(),
+                    (loaded - baseline) / size + " B/inst", (lookedUp - baseline) / size + " B/inst"));
+        }
+    }
+
+    private static String[] instanceIds(int size) {
+        String[] instanceIds = new String[size];
+        for (int i = 0; i < size; i++) {
+            instanceIds[i] = String.format("%08x-4b1e-4c2a-9f3d-%012x", i, i * 31L);
+        }
+
+        return instanceIds;
+    }
+
+    private static Etcd2SegmentMap<Etcd2Service> load(String[] instanceIds) throws MalformedURLException {
+        Etcd2SegmentMap.Builder<Etcd2Service> builder = Etcd2SegmentMap.<Etcd2Service>empty().toBuilder();
+
+        for (int i = 0; i < instanceIds.length; i++) {
+            Endpoint baseUrl = Endpoint.parse("http://10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." +
+                    (i & 0xff) + ":8080");
+            Endpoint containerUrl = Endpoint.parse("http://customer-service-" + i + ".default.svc:8080/v1");
+            String clusterId = "cluster-" + (i % CLUSTER_IDS);
+
+            builder.put(instanceIds[i], new Etcd2Service(baseUrl, containerUrl, clusterId));
+        }
+
+        return builder.build();
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+
+        // repeat until no more garbage is collected
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) {
+                return current;
+            }
+            used = current;
+        }
+
+        return used;
+    }
+}
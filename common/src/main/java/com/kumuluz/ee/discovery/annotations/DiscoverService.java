@@ -47,4 +47,10 @@ public @interface DiscoverService {
     @Nonbinding String version() default "*";
 
     @Nonbinding AccessType accessType() default AccessType.GATEWAY;
+
+    /**
+     * Deadline of the lookup in ms, after which known instances are returned, while the lookup continues in the
+     * background. 0 disables the deadline, negative values use the configured kumuluzee.discovery.lookup-deadline-ms.
+     */
+    @Nonbinding long deadlineMs() default -1;
 }
@@ -29,6 +29,7 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * Common utils for service discovery.
@@ -48,6 +49,18 @@ public class CommonUtils {
     public static String determineVersion(DiscoveryUtil discoveryUtil, String serviceName, String version,
                                           String environment) {
 
+        return determineVersion(version, () -> discoveryUtil.getServiceVersions(serviceName, environment));
+    }
+
+    /**
+     * Resolves NPM version ranges to the latest matching version.
+     *
+     * @param version         version or NPM version range
+     * @param serviceVersions supplies present versions of the service, only called if version is a range
+     * @return resolved version or version, if it is not a range or no version matches
+     */
+    public static String determineVersion(String version, Supplier<Optional<List<String>>> serviceVersions) {
+
         // check, if version has special characters (*, ^, ~)
         // if true, use get getServiceVersions to get appropriate version
         // return version
@@ -68,7 +81,7 @@ public class CommonUtils {
             }
         }
 
-        Optional<List<String>> versionsOpt = discoveryUtil.getServiceVersions(serviceName, environment);
+        Optional<List<String>> versionsOpt = serviceVersions.get();
 
         if (versionsOpt.isPresent()) {
             List<String> versions = versionsOpt.get();
@@ -0,0 +1,127 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds the time, for which lookups, which read the registry, block the calling thread.
+ *
+ * Lookups are executed on background threads. If a lookup does not complete within the deadline, the caller receives
+ * the fallback result, while the lookup continues and fills the cache of the implementation. Concurrent lookups of the
+ * same key share a single background lookup.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class DeadlineLookupExecutor {
+
+    private static final Logger log = Logger.getLogger(DeadlineLookupExecutor.class.getName());
+
+    private final ExecutorService executor;
+    private final Map<String, CompletableFuture<?>> lookups = new ConcurrentHashMap<>();
+
+    /**
+     * @param name prefix of the names of lookup threads
+     */
+    public DeadlineLookupExecutor(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Executes a lookup with a deadline.
+     *
+     * @param key        key of the lookup, lookups with the same key must return the same result
+     * @param deadlineMs deadline in ms
+     * @param lookup     lookup, which may read the registry
+     * @param fallback   supplies the result, if the lookup does not complete within the deadline, must not block
+     * @return result of the lookup or of the fallback
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T lookup(String key, long deadlineMs, Supplier<T> lookup, Supplier<T> fallback) {
+
+        CompletableFuture<T> future = (CompletableFuture<T>) lookups.get(key);
+        if (future == null) {
+            CompletableFuture<T> newFuture = new CompletableFuture<>();
+            future = (CompletableFuture<T>) lookups.putIfAbsent(key, newFuture);
+            if (future == null) {
+                future = newFuture;
+                start(key, newFuture, lookup);
+            }
+        }
+
+        try {
+            return future.get(deadlineMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.log(Level.WARNING, "Lookup of {0} exceeded the deadline of {1} ms, returning known instances.",
+                    new Object[]{key, deadlineMs});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+
+        return fallback.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <T> void start(String key, CompletableFuture<T> future, Supplier<T> lookup) {
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(lookup.get());
+                } catch (RuntimeException e) {
+                    log.log(Level.FINE, "Lookup of {0} failed: {1}", new Object[]{key, e.toString()});
+                    future.completeExceptionally(e);
+                } finally {
+                    lookups.remove(key, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lookups.remove(key, future);
+            future.completeExceptionally(e);
+        }
+    }
+}
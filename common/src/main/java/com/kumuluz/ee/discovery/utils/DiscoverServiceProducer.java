@@ -129,6 +129,7 @@ public class DiscoverServiceProducer {
         String environment = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).environment();
         String version = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).version();
         AccessType accessType = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).accessType();
+        long deadlineMs = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).deadlineMs();
 
         if (environment.isEmpty()) {
             environment = EeConfig.getInstance().getEnv().getName();
@@ -141,6 +142,10 @@ public class DiscoverServiceProducer {
         log.log(Level.INFO, "Initializing field for service: {0} version: {1} environment: {2}",
                 new String[]{serviceName, version, environment});
 
+        if (deadlineMs >= 0) {
+            return discoveryUtil.getServiceInstance(serviceName, version, environment, accessType, deadlineMs);
+        }
+
         return discoveryUtil.getServiceInstance(serviceName, version, environment, accessType);
 
     }
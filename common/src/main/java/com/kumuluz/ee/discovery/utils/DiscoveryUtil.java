@@ -98,7 +98,69 @@ public interface DiscoveryUtil {
      */
     Optional<URL> getServiceInstance(String serviceName, String version, String environment);
 
+    /**
+     * Returns service instances. If the lookup needs to read the registry and does not complete within the deadline,
+     * instances known at the deadline are returned (possibly none), while the lookup continues in the background and
+     * fills the cache.
+     *
+     * @param serviceName service name
+     * @param version     service version
+     * @param environment service environment
+     * @param accessType  access type: direct or gateway
+     * @param deadlineMs  deadline in ms, 0 disables the deadline
+     * @return service instances
+     */
+    default Optional<List<URL>> getServiceInstances(String serviceName, String version, String environment,
+                                                    AccessType accessType, long deadlineMs) {
+        return getServiceInstances(serviceName, version, environment, accessType);
+    }
+
+    /**
+     * Returns service instance, see {@link #getServiceInstances(String, String, String, AccessType, long)}.
+     *
+     * @param serviceName service name
+     * @param version     service version
+     * @param environment service environment
+     * @param accessType  access type: direct or gateway
+     * @param deadlineMs  deadline in ms, 0 disables the deadline
+     * @return service instance
+     */
+    default Optional<URL> getServiceInstance(String serviceName, String version, String environment,
+                                             AccessType accessType, long deadlineMs) {
+        return getServiceInstances(serviceName, version, environment, accessType, deadlineMs)
+                .flatMap(CommonUtils::pickServiceInstanceRoundRobin);
+    }
+
     Optional<List<String>> getServiceVersions(String serviceName, String environment);
 
     void disableServiceInstance(String serviceName, String version, String environment, URL url);
+
+    /**
+     * Changes the weight of an instance registered with the register(...) methods. The weight is published
+     * immediately and is kept when the instance registers again.
+     *
+     * @param serviceName service name
+     * @param version     service version
+     * @param environment service environment
+     * @param url         URL of the instance
+     * @param weight      new weight, 0 stops routing requests to the instance
+     */
+    default void setWeight(String serviceName, String version, String environment, URL url, int weight) {
+        throw new UnsupportedOperationException("Instance weights are not supported by this implementation.");
+    }
+
+    /**
+     * Joins a leader election. Only one instance in the environment holds the leadership of the election at a time, so
+     * the leader can perform work, which should not be performed by multiple instances.
+     *
+     * @param electionName name of the election
+     * @param environment  environment
+     * @param ttl          TTL of the leadership in seconds, after which another instance takes over if the leader fails
+     * @param listener     notified when leadership is gained or lost, may be null
+     * @return participation in the election
+     */
+    default LeaderElection joinLeaderElection(String electionName, String environment, long ttl,
+                                              LeadershipListener listener) {
+        throw new UnsupportedOperationException("Leader election is not supported by this implementation.");
+    }
 }
@@ -0,0 +1,314 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * Immutable network endpoint of a service instance.
+ *
+ * Endpoints are compared by scheme, host, port and path, without resolving host names, unlike {@link URL#equals}.
+ * The original string is kept and {@link URL} is only created, when the endpoint is first returned from the discovery
+ * API, and is reused by later lookups. The socket address is only resolved by background tasks, which call
+ * {@link #refreshAddress()}, the last resolved address is available without blocking from {@link #getAddress()}.
+ *
+ * Host and path are stored as offsets into the original string, so an endpoint does not hold any strings apart from
+ * the original one. Registries with many instances keep one endpoint per instance URL.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public final class Endpoint {
+
+    private static final String HTTP = "http";
+    private static final String HTTPS = "https";
+
+    private final String value;
+    private final String scheme;
+    private final int hostStart;
+    private final int hostEnd;
+    private final int pathStart;
+    private final int port;
+    private final int hash;
+
+    private volatile URL url;
+    private volatile InetSocketAddress address;
+
+    private Endpoint(String value, String scheme, int hostStart, int hostEnd, int pathStart, int port) {
+        this.value = value;
+        this.scheme = scheme;
+        this.hostStart = hostStart;
+        this.hostEnd = hostEnd;
+        this.pathStart = pathStart;
+        this.port = port;
+        this.hash = computeHash();
+    }
+
+    /**
+     * Parses an endpoint in the form scheme://host[:port][/path].
+     *
+     * @param value endpoint string
+     * @return endpoint
+     * @throws MalformedURLException if the string is not a valid URL
+     */
+    public static Endpoint parse(String value) throws MalformedURLException {
+        if (value == null) {
+            throw new MalformedURLException("Endpoint is null.");
+        }
+
+        int schemeEnd = value.indexOf("://");
+        if (schemeEnd <= 0) {
+            throw new MalformedURLException("No protocol: " + value);
+        }
+        String scheme = canonicalScheme(value, schemeEnd);
+
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = value.length();
+        for (int i = authorityStart; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                authorityEnd = i;
+                break;
+            }
+        }
+
+        int userInfoEnd = value.lastIndexOf('@', authorityEnd - 1);
+        int hostStart = (userInfoEnd >= authorityStart) ? userInfoEnd + 1 : authorityStart;
+
+        int hostEnd;
+        int portStart = -1;
+        if (hostStart < authorityEnd && value.charAt(hostStart) == '[') {
+            int bracket = value.indexOf(']', hostStart);
+            if (bracket < 0 || bracket >= authorityEnd) {
+                throw new MalformedURLException("Invalid IPv6 address: " + value);
+            }
+            hostEnd = bracket + 1;
+            if (hostEnd < authorityEnd) {
+                if (value.charAt(hostEnd) != ':') {
+                    throw new MalformedURLException("Invalid authority: " + value);
+                }
+                portStart = hostEnd + 1;
+            }
+        } else {
+            int colon = value.lastIndexOf(':', authorityEnd - 1);
+            hostEnd = (colon >= hostStart) ? colon : authorityEnd;
+            portStart = (colon >= hostStart) ? colon + 1 : -1;
+        }
+
+        if (hostEnd == hostStart) {
+            throw new MalformedURLException("No host: " + value);
+        }
+
+        int port = -1;
+        if (portStart >= 0 && portStart < authorityEnd) {
+            port = 0;
+            for (int i = portStart; i < authorityEnd; i++) {
+                int digit = Character.digit(value.charAt(i), 10);
+                if (digit < 0) {
+                    throw new MalformedURLException("Invalid port: " + value);
+                }
+                port = port * 10 + digit;
+                if (port > 65535) {
+                    throw new MalformedURLException("Invalid port: " + value);
+                }
+            }
+        }
+
+        Endpoint endpoint = new Endpoint(value, scheme, hostStart, hostEnd, authorityEnd, port);
+
+        if (!HTTP.equals(scheme) && !HTTPS.equals(scheme)) {
+            // other protocols are rare, validate them with URL
+            new URL(value);
+        }
+
+        return endpoint;
+    }
+
+    /**
+     * @param scheme scheme, e.g. http
+     * @param host   host name or IP address
+     * @param port   port
+     * @return endpoint with an empty path
+     */
+    public static Endpoint of(String scheme, String host, int port) {
+        String normalizedScheme = canonicalScheme(scheme, scheme.length());
+        String bracketedHost = (host.indexOf(':') >= 0 && !host.startsWith("[")) ? "[" + host + "]" : host;
+        String value = normalizedScheme + "://" + bracketedHost + ":" + port;
+
+        int hostStart = normalizedScheme.length() + 3;
+
+        return new Endpoint(value, normalizedScheme, hostStart, hostStart + bracketedHost.length(), value.length(),
+                port);
+    }
+
+    /**
+     * @param url URL
+     * @return endpoint of the URL
+     */
+    public static Endpoint of(URL url) {
+        try {
+            return parse(url.toString());
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    /**
+     * @return lower-case host, IPv6 addresses are enclosed in brackets
+     */
+    public String getHost() {
+        return value.substring(hostStart, hostEnd).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return port or the default port of the scheme, if port is not specified
+     */
+    public int getPort() {
+        if (port != -1) {
+            return port;
+        }
+
+        return HTTPS.equals(scheme) ? 443 : HTTP.equals(scheme) ? 80 : -1;
+    }
+
+    public String getPath() {
+        return value.substring(pathStart);
+    }
+
+    /**
+     * @return endpoint as URL, created on the first call
+     */
+    public URL toUrl() {
+        URL result = url;
+        if (result == null) {
+            try {
+                result = new URL(value);
+            } catch (MalformedURLException e) {
+                // validated when parsed
+                throw new IllegalStateException(e);
+            }
+            // concurrent calls may create equal URLs, either one is kept
+            url = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return socket address resolved by the last {@link #refreshAddress()} or null, if the host name was not
+     * resolved yet
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Resolves the host name of the endpoint and keeps the address, if it was resolved. This call blocks on DNS and
+     * should not be used on request threads.
+     *
+     * @return resolved socket address or an unresolved address, if the host name could not be resolved
+     */
+    public InetSocketAddress refreshAddress() {
+        InetSocketAddress resolved = new InetSocketAddress(getHostName(), getPort());
+        if (!resolved.isUnresolved()) {
+            address = resolved;
+        }
+
+        return resolved;
+    }
+
+    private String getHostName() {
+        return (value.charAt(hostStart) == '[') ? value.substring(hostStart + 1, hostEnd - 1) :
+                value.substring(hostStart, hostEnd);
+    }
+
+    /**
+     * Returns a canonical instance of the http and https schemes, so they are shared by all endpoints.
+     */
+    private static String canonicalScheme(String source, int length) {
+        if (length == HTTP.length() && source.regionMatches(true, 0, HTTP, 0, length)) {
+            return HTTP;
+        }
+        if (length == HTTPS.length() && source.regionMatches(true, 0, HTTPS, 0, length)) {
+            return HTTPS;
+        }
+
+        return source.substring(0, length).toLowerCase(Locale.ROOT);
+    }
+
+    private int computeHash() {
+        int h = scheme.hashCode();
+        for (int i = hostStart; i < hostEnd; i++) {
+            h = 31 * h + Character.toLowerCase(value.charAt(i));
+        }
+        h = 31 * h + getPort();
+        for (int i = pathStart; i < value.length(); i++) {
+            h = 31 * h + value.charAt(i);
+        }
+
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Endpoint)) {
+            return false;
+        }
+
+        Endpoint other = (Endpoint) o;
+        int hostLength = hostEnd - hostStart;
+        int pathLength = value.length() - pathStart;
+
+        if (hash != other.hash || getPort() != other.getPort() || !scheme.equals(other.scheme) ||
+                hostLength != other.hostEnd - other.hostStart || pathLength != other.value.length() - other.pathStart) {
+            return false;
+        }
+
+        for (int i = 0; i < hostLength; i++) {
+            if (Character.toLowerCase(value.charAt(hostStart + i)) !=
+                    Character.toLowerCase(other.value.charAt(other.hostStart + i))) {
+                return false;
+            }
+        }
+
+        return value.regionMatches(pathStart, other.value, other.pathStart, pathLength);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
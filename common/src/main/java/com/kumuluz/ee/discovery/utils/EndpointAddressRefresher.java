@@ -0,0 +1,106 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes resolved socket addresses of cached instance endpoints on a schedule.
+ *
+ * Lookups never resolve host names. When the refresh is enabled, host names of all cached endpoints are resolved on a
+ * background thread in a fixed interval and the addresses are kept on the endpoints, where they are available without
+ * blocking from {@link Endpoint#getAddress()}. Endpoints of changed instances are resolved on the next refresh.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class EndpointAddressRefresher {
+
+    private static final Logger log = Logger.getLogger(EndpointAddressRefresher.class.getName());
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param name       name of the refresh thread
+     * @param intervalMs refresh interval in ms, 0 disables the refresh
+     * @param endpoints  source of all cached endpoints
+     */
+    public EndpointAddressRefresher(String name, long intervalMs, EndpointSource endpoints) {
+        if (intervalMs <= 0) {
+            this.executor = null;
+            return;
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(() -> refresh(endpoints), 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void refresh(EndpointSource endpoints) {
+        int[] unresolved = new int[1];
+
+        try {
+            endpoints.forEachEndpoint(endpoint -> {
+                if (endpoint.refreshAddress().isUnresolved()) {
+                    unresolved[0]++;
+                }
+            });
+        } catch (RuntimeException e) {
+            // keep the schedule running
+            log.log(Level.WARNING, "Refresh of endpoint addresses failed: {0}", e.toString());
+        }
+
+        if (unresolved[0] > 0) {
+            log.log(Level.FINE, "{0} endpoints could not be resolved, keeping their previous addresses.",
+                    unresolved[0]);
+        }
+    }
+
+    /**
+     * Cached endpoints of an implementation.
+     */
+    @FunctionalInterface
+    public interface EndpointSource {
+
+        /**
+         * Passes all cached endpoints to the action. Called on the refresh thread.
+         */
+        void forEachEndpoint(Consumer<Endpoint> action);
+    }
+}
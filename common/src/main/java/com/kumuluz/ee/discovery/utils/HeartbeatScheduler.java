@@ -0,0 +1,252 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules registration heartbeats of a service instance.
+ *
+ * The first heartbeat is delayed by a random offset and every following interval is jittered, so instances started at
+ * the same time do not refresh their registrations in lockstep. The next heartbeat is never scheduled later than the
+ * TTL of the last successful refresh minus a safety margin, which is a multiple of the observed backend round-trip
+ * time. Slow backends and slow refreshes therefore shorten the interval. Refreshes close to or past the TTL are
+ * counted as near misses and missed deadlines. Failed heartbeats are retried after a quarter of the interval, or
+ * immediately, if the safety margin before the TTL was already reached.
+ *
+ * Heartbeats can also be asynchronous (see {@link #async}), in which case the next heartbeat is scheduled when the
+ * returned stage completes and the executor is not blocked by requests to the backend.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class HeartbeatScheduler {
+
+    private static final Logger log = Logger.getLogger(HeartbeatScheduler.class.getName());
+
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // failed heartbeats are retried after this fraction of the interval
+    private static final double RETRY_INTERVAL_FRACTION = 0.25;
+    // weight of the newest round-trip time sample
+    private static final double RTT_SMOOTHING = 0.3;
+
+    private final ScheduledExecutorService executor;
+    private final String name;
+    private final Supplier<CompletionStage<Boolean>> heartbeat;
+
+    private final long ttlNanos;
+    private final long intervalNanos;
+    private final double jitter;
+    private final long maxStartOffsetNanos;
+    private final double rttSafetyFactor;
+    private final double nearMissThreshold;
+
+    private volatile ScheduledFuture<?> future;
+    private volatile boolean stopped;
+
+    // accessed only by completions of heartbeats, which never overlap, since the next one is scheduled on completion
+    private long lastSuccess;
+    private long lastDuration;
+
+    private volatile long rttNanos;
+    private final AtomicLong nearMisses = new AtomicLong();
+    private final AtomicLong missedDeadlines = new AtomicLong();
+
+    /**
+     * @param executor     executor, on which heartbeats are run
+     * @param name         name of the registration, used in logs
+     * @param ttlSeconds   TTL of the registration
+     * @param pingInterval heartbeat interval in seconds
+     * @param heartbeat    registers the instance or refreshes the registration, returns true on success
+     */
+    public HeartbeatScheduler(ScheduledExecutorService executor, String name, long ttlSeconds, long pingInterval,
+                              BooleanSupplier heartbeat) {
+        this(executor, name, ttlSeconds, pingInterval,
+                () -> CompletableFuture.completedFuture(heartbeat.getAsBoolean()));
+    }
+
+    private HeartbeatScheduler(ScheduledExecutorService executor, String name, long ttlSeconds, long pingInterval,
+                               Supplier<CompletionStage<Boolean>> heartbeat) {
+        this.executor = executor;
+        this.name = name;
+        this.heartbeat = heartbeat;
+
+        ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
+
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(pingInterval);
+        this.jitter = Math.min(Math.max(configurationUtil.getDouble("kumuluzee.discovery.heartbeat.jitter")
+                .orElse(0.1), 0), 1);
+        this.maxStartOffsetNanos = Math.min(intervalNanos, TimeUnit.MILLISECONDS.toNanos(configurationUtil
+                .getInteger("kumuluzee.discovery.heartbeat.max-start-offset-ms").orElse(5000)));
+        this.rttSafetyFactor = configurationUtil.getDouble("kumuluzee.discovery.heartbeat.rtt-safety-factor")
+                .orElse(3.0);
+        this.nearMissThreshold = configurationUtil.getDouble("kumuluzee.discovery.heartbeat.near-miss-threshold")
+                .orElse(0.8);
+    }
+
+    /**
+     * @param executor     executor, on which heartbeats are started
+     * @param name         name of the registration, used in logs
+     * @param ttlSeconds   TTL of the registration
+     * @param pingInterval heartbeat interval in seconds
+     * @param heartbeat    starts registration of the instance or refresh of the registration and returns a stage,
+     *                     which completes with true on success. The call itself should not block.
+     * @return heartbeat scheduler
+     */
+    public static HeartbeatScheduler async(ScheduledExecutorService executor, String name, long ttlSeconds,
+                                           long pingInterval, Supplier<CompletionStage<Boolean>> heartbeat) {
+        return new HeartbeatScheduler(executor, name, ttlSeconds, pingInterval, heartbeat);
+    }
+
+    public void start() {
+        long offset = (maxStartOffsetNanos > 0) ? ThreadLocalRandom.current().nextLong(maxStartOffsetNanos) : 0;
+
+        schedule(offset);
+    }
+
+    public void stop() {
+        stopped = true;
+
+        ScheduledFuture<?> current = future;
+        if (current != null) {
+            current.cancel(true);
+        }
+    }
+
+    /**
+     * @return number of successful refreshes, which took place after the near miss threshold of the TTL
+     */
+    public long getNearMisses() {
+        return nearMisses.get();
+    }
+
+    /**
+     * @return number of successful refreshes, which took place after the TTL expired
+     */
+    public long getMissedDeadlines() {
+        return missedDeadlines.get();
+    }
+
+    /**
+     * @return smoothed round-trip time of heartbeats in ms
+     */
+    public long getRttMs() {
+        return TimeUnit.NANOSECONDS.toMillis(rttNanos);
+    }
+
+    private void beat() {
+        if (stopped) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        CompletionStage<Boolean> result;
+        try {
+            result = heartbeat.get();
+        } catch (RuntimeException e) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            result = failed;
+        }
+
+        result.whenComplete((success, error) -> {
+            if (error != null) {
+                log.log(Level.SEVERE, "Heartbeat of {0} failed: {1}", new Object[]{name, error.toString()});
+            }
+
+            completed(start, error == null && Boolean.TRUE.equals(success));
+        });
+    }
+
+    private void completed(long start, boolean success) {
+        long end = System.nanoTime();
+
+        lastDuration = end - start;
+        rttNanos = (rttNanos == 0) ? lastDuration :
+                (long) (RTT_SMOOTHING * lastDuration + (1 - RTT_SMOOTHING) * rttNanos);
+
+        if (success) {
+            if (lastSuccess != 0) {
+                long sinceLastSuccess = end - lastSuccess;
+                if (sinceLastSuccess > ttlNanos) {
+                    missedDeadlines.incrementAndGet();
+                    log.log(Level.WARNING, "Registration of {0} was refreshed {1} ms after the TTL expired.",
+                            new Object[]{name, TimeUnit.NANOSECONDS.toMillis(sinceLastSuccess - ttlNanos)});
+                } else if (sinceLastSuccess > ttlNanos * nearMissThreshold) {
+                    nearMisses.incrementAndGet();
+                    log.log(Level.WARNING, "Registration of {0} was refreshed {1} ms before the TTL expired.",
+                            new Object[]{name, TimeUnit.NANOSECONDS.toMillis(ttlNanos - sinceLastSuccess)});
+                }
+            }
+
+            // TTL is reset when the backend receives the request, start of the request is a conservative estimate
+            lastSuccess = start;
+        }
+
+        schedule(nextDelay(success));
+    }
+
+    private long nextDelay(boolean success) {
+        double random = 2 * ThreadLocalRandom.current().nextDouble() - 1;
+        long delay = (long) (intervalNanos * (success ? 1 : RETRY_INTERVAL_FRACTION) * (1 + jitter * random));
+
+        if (lastSuccess != 0) {
+            // refresh early if backend or the last refresh was slow
+            long margin = (long) (rttSafetyFactor * Math.max(rttNanos, lastDuration));
+            long now = System.nanoTime();
+            long untilDeadline = lastSuccess + ttlNanos - margin - now;
+            if (untilDeadline > 0) {
+                delay = Math.min(delay, untilDeadline);
+            } else if (lastSuccess + ttlNanos > now) {
+                // already inside the safety margin, refresh before the TTL expires
+                delay = MIN_DELAY_NANOS;
+            }
+        }
+
+        return Math.max(delay, MIN_DELAY_NANOS);
+    }
+
+    private void schedule(long delayNanos) {
+        if (stopped) {
+            return;
+        }
+
+        try {
+            future = executor.schedule(this::beat, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            log.log(Level.FINE, "Heartbeat executor of {0} is shut down.", name);
+        }
+    }
+}
@@ -57,4 +57,46 @@ public class InitializationUtils {
                     .orElse(900000);
         }
     }
+
+    public static int getWatchQueueSize(ConfigurationUtil configurationUtil, String implementation) {
+        return getInteger(configurationUtil, implementation, "watch-queue-size", 10000);
+    }
+
+    public static int getWatchBatchSize(ConfigurationUtil configurationUtil, String implementation) {
+        return getInteger(configurationUtil, implementation, "watch-batch-size", 500);
+    }
+
+    public static int getCoalescingWindowMs(ConfigurationUtil configurationUtil, String implementation) {
+        return getInteger(configurationUtil, implementation, "coalescing-window-ms", 50);
+    }
+
+    public static int getCoalescingMaxDelayMs(ConfigurationUtil configurationUtil, String implementation) {
+        return getInteger(configurationUtil, implementation, "coalescing-max-delay-ms", 1000);
+    }
+
+    public static int getLookupDeadlineMs(ConfigurationUtil configurationUtil, String implementation) {
+        return getInteger(configurationUtil, implementation, "lookup-deadline-ms", 0);
+    }
+
+    public static int getAddressRefreshIntervalMs(ConfigurationUtil configurationUtil, String implementation) {
+        return getInteger(configurationUtil, implementation, "address-refresh-interval-ms", 0);
+    }
+
+    /**
+     * @return weight of registered instances, at least 1
+     */
+    public static int getWeight(ConfigurationUtil configurationUtil, String implementation) {
+        return Math.max(1, getInteger(configurationUtil, implementation, "weight", WeightedRoundRobin.DEFAULT_WEIGHT));
+    }
+
+    private static int getInteger(ConfigurationUtil configurationUtil, String implementation, String key,
+                                  int defaultValue) {
+        Optional<Integer> universalConfig = configurationUtil.getInteger("kumuluzee.discovery." + key);
+        if (universalConfig.isPresent()) {
+            return universalConfig.get();
+        } else {
+            return configurationUtil.getInteger("kumuluzee.discovery." + implementation + "." + key)
+                    .orElse(defaultValue);
+        }
+    }
 }
@@ -0,0 +1,71 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Last non-empty set of instances of a service, kept after the backend reported no instances.
+ *
+ * @param <T> instance type
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class LastKnownInstances<T> {
+
+    private final List<T> instances;
+    private final long since;
+
+    /**
+     * @param instances last non-empty set of instances, which became stale now
+     */
+    public LastKnownInstances(List<T> instances) {
+        this(instances, System.currentTimeMillis());
+    }
+
+    private LastKnownInstances(List<T> instances, long since) {
+        this.instances = Collections.unmodifiableList(instances);
+        this.since = since;
+    }
+
+    public List<T> getInstances() {
+        return instances;
+    }
+
+    /**
+     * @return time in ms since epoch, when the instances became stale
+     */
+    public long getSince() {
+        return since;
+    }
+
+    public long getAgeMs() {
+        return System.currentTimeMillis() - since;
+    }
+
+    /**
+     * @return subset of the instances with the same age, e.g. instances which passed a probe
+     */
+    public LastKnownInstances<T> withInstances(List<T> instances) {
+        return new LastKnownInstances<>(instances, since);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.kumuluz.ee.discovery.utils;
+
+/**
+ * Participation of this instance in a leader election.
+ *
+ * At most one participant of an election holds the leadership at a time. Leadership is held with a key with a TTL,
+ * which is refreshed periodically. When the leader stops refreshing it, the key expires and one of the waiting
+ * participants takes over.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public interface LeaderElection {
+
+    /**
+     * @return name of the election
+     */
+    String getName();
+
+    /**
+     * @return true if this instance currently holds the leadership
+     */
+    boolean isLeader();
+
+    /**
+     * Withdraws from the election. If this instance is the leader, leadership is released immediately.
+     */
+    void close();
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+import com.kumuluz.ee.discovery.enums.ReadConsistency;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/**
+ * Read consistency settings of service lookups, with optional per-service overrides.
+ *
+ * Settings are read from kumuluzee.discovery.read-consistency or, if not present there, from
+ * kumuluzee.discovery.{implementation}.read-consistency. Overrides of individual services are read from the services
+ * map of the same prefix.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class ReadConsistencyConfiguration {
+
+    private static final Logger log = Logger.getLogger(ReadConsistencyConfiguration.class.getName());
+
+    public static final long UNBOUNDED = -1;
+
+    private final ReadConsistency defaultConsistency;
+    private final long defaultMaxStalenessMs;
+    private final Map<String, ReadConsistency> serviceConsistencies;
+    private final Map<String, Long> serviceMaxStalenessMs;
+
+    public ReadConsistencyConfiguration(ConfigurationUtil configurationUtil, String implementation) {
+
+        String universalPrefix = "kumuluzee.discovery.read-consistency";
+        String implementationPrefix = "kumuluzee.discovery." + implementation + ".read-consistency";
+
+        this.defaultConsistency = parseConsistency(getString(configurationUtil, universalPrefix + ".mode",
+                implementationPrefix + ".mode").orElse(null), ReadConsistency.DEFAULT);
+        this.defaultMaxStalenessMs = getLong(configurationUtil, universalPrefix + ".max-staleness-ms",
+                implementationPrefix + ".max-staleness-ms").orElse(UNBOUNDED);
+
+        this.serviceConsistencies = new HashMap<>();
+        this.serviceMaxStalenessMs = new HashMap<>();
+
+        for (String prefix : new String[]{implementationPrefix, universalPrefix}) {
+            // universal overrides are applied last and take precedence
+            for (String serviceName : configurationUtil.getMapKeys(prefix + ".services")
+                    .orElse(Collections.emptyList())) {
+                String servicePrefix = prefix + ".services." + serviceName;
+
+                configurationUtil.get(servicePrefix + ".mode").ifPresent(mode -> this.serviceConsistencies
+                        .put(serviceName, parseConsistency(mode, this.defaultConsistency)));
+                configurationUtil.getLong(servicePrefix + ".max-staleness-ms").ifPresent(maxStalenessMs -> this
+                        .serviceMaxStalenessMs.put(serviceName, maxStalenessMs));
+            }
+        }
+    }
+
+    /**
+     * @param serviceName name of the service or null for reads, which are not specific to a service
+     * @return read consistency of lookups of the service
+     */
+    public ReadConsistency getConsistency(String serviceName) {
+        ReadConsistency consistency = (serviceName == null) ? null : this.serviceConsistencies.get(serviceName);
+
+        return (consistency == null) ? this.defaultConsistency : consistency;
+    }
+
+    /**
+     * Max staleness only applies to {@link ReadConsistency#STALE} reads.
+     *
+     * @param serviceName name of the service or null for reads, which are not specific to a service
+     * @return max staleness of lookups of the service in milliseconds or {@link #UNBOUNDED}
+     */
+    public long getMaxStalenessMs(String serviceName) {
+        Long maxStalenessMs = (serviceName == null) ? null : this.serviceMaxStalenessMs.get(serviceName);
+
+        return (maxStalenessMs == null) ? this.defaultMaxStalenessMs : maxStalenessMs;
+    }
+
+    /**
+     * @return largest configured max staleness in milliseconds or {@link #UNBOUNDED}, if no bound is configured
+     */
+    public long getLargestMaxStalenessMs() {
+        long largest = this.defaultMaxStalenessMs;
+        for (long maxStalenessMs : this.serviceMaxStalenessMs.values()) {
+            largest = Math.max(largest, maxStalenessMs);
+        }
+
+        return largest;
+    }
+
+    private static Optional<String> getString(ConfigurationUtil configurationUtil, String universalKey,
+                                              String implementationKey) {
+        Optional<String> universalConfig = configurationUtil.get(universalKey);
+
+        return universalConfig.isPresent() ? universalConfig : configurationUtil.get(implementationKey);
+    }
+
+    private static Optional<Long> getLong(ConfigurationUtil configurationUtil, String universalKey,
+                                          String implementationKey) {
+        Optional<Long> universalConfig = configurationUtil.getLong(universalKey);
+
+        return universalConfig.isPresent() ? universalConfig : configurationUtil.getLong(implementationKey);
+    }
+
+    private static ReadConsistency parseConsistency(String value, ReadConsistency defaultConsistency) {
+        if (value == null) {
+            return defaultConsistency;
+        }
+
+        try {
+            return ReadConsistency.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warning("Unknown read consistency mode: " + value + ". Using " + defaultConsistency + ".");
+            return defaultConsistency;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JVM-wide registry of reference-counted backend clients.
+ *
+ * Extensions, which connect to the same backend with the same settings (e.g. discovery and configuration extensions
+ * connecting to the same etcd cluster), acquire the client under the same key and share its connections, threads and
+ * TLS sessions. The client is created by the first acquirer and closed when the last lease is released.
+ *
+ * Keys should contain everything, which affects the behaviour of the client (URLs, credentials, timeouts). Secrets
+ * can be included with {@link #key(String, String...)}, which stores only their digest.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public final class SharedClientRegistry {
+
+    private static final Logger log = Logger.getLogger(SharedClientRegistry.class.getName());
+
+    private static final Map<String, Entry<?>> CLIENTS = new HashMap<>();
+
+    private SharedClientRegistry() {
+    }
+
+    /**
+     * Acquires a lease of the client registered under given key. If no client is registered, it is created with the
+     * factory.
+     *
+     * @param key     key of the client
+     * @param factory creates the client, if it is not registered yet
+     * @param closer  closes the client after the last lease is released
+     * @param <T>     type of the client
+     * @return lease of the client, which must be released when the client is no longer used
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Lease<T> acquire(String key, Supplier<T> factory, Consumer<T> closer) {
+
+        synchronized (CLIENTS) {
+            Entry<T> entry = (Entry<T>) CLIENTS.get(key);
+            if (entry == null) {
+                entry = new Entry<>(factory.get(), closer);
+                CLIENTS.put(key, entry);
+            } else {
+                log.log(Level.FINE, "Reusing shared client {0}", key);
+            }
+            entry.references++;
+
+            return new Lease<>(key, entry.client);
+        }
+    }
+
+    /**
+     * @return number of leases of the client registered under given key, 0 if no client is registered
+     */
+    public static int getReferences(String key) {
+        synchronized (CLIENTS) {
+            Entry<?> entry = CLIENTS.get(key);
+
+            return (entry != null) ? entry.references : 0;
+        }
+    }
+
+    /**
+     * Builds a client key. Parts are only stored as a digest, so they can contain secrets.
+     *
+     * @param backend name of the backend, e.g. etcd or consul
+     * @param parts   settings of the client, may contain null values
+     * @return client key
+     */
+    public static String key(String backend, String... parts) {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (String part : parts) {
+            if (part != null) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+            }
+            // separator, so the parts cannot be shifted between each other
+            digest.update((byte) 0);
+        }
+
+        return backend + ":" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    private static void release(String key) {
+
+        Entry<?> entry;
+        synchronized (CLIENTS) {
+            entry = CLIENTS.get(key);
+            if (entry == null || --entry.references > 0) {
+                return;
+            }
+            CLIENTS.remove(key);
+        }
+
+        try {
+            entry.close();
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Error closing shared client " + key, e);
+        }
+    }
+
+    /**
+     * Lease of a shared client. Released at most once.
+     *
+     * @param <T> type of the client
+     */
+    public static class Lease<T> implements AutoCloseable {
+
+        private final String key;
+        private final T client;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(String key, T client) {
+            this.key = key;
+            this.client = client;
+        }
+
+        public T get() {
+            return client;
+        }
+
+        /**
+         * Releases the lease. The client is closed, if this was its last lease.
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(key);
+            }
+        }
+    }
+
+    private static class Entry<T> {
+
+        private final T client;
+        private final Consumer<T> closer;
+        private int references;
+
+        private Entry(T client, Consumer<T> closer) {
+            this.client = client;
+            this.closer = closer;
+        }
+
+        private void close() {
+            closer.accept(client);
+        }
+    }
+}
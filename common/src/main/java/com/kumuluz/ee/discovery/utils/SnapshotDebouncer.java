@@ -0,0 +1,140 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces bursts of changes of the same key into a single snapshot publication.
+ *
+ * Publication of a key is delayed until no change of the key was submitted for the coalescing window, but at most for
+ * the maximum delay after the first change of the burst, which bounds the staleness of published snapshots. If the
+ * coalescing window is 0, snapshots are published immediately on the submitting thread.
+ *
+ * @param <K> key type
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class SnapshotDebouncer<K> {
+
+    private static final Logger log = Logger.getLogger(SnapshotDebouncer.class.getName());
+
+    private final long windowNanos;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService executor;
+    private final Map<K, Burst> bursts = new ConcurrentHashMap<>();
+
+    /**
+     * @param name       name of the publication thread
+     * @param windowMs   coalescing window in ms
+     * @param maxDelayMs maximum delay of publication after the first change of a burst in ms
+     */
+    public SnapshotDebouncer(String name, long windowMs, long maxDelayMs) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(windowMs, 0));
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(maxDelayMs, windowMs));
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a change of the key.
+     *
+     * @param key       changed key
+     * @param publisher publishes the snapshot of the key, the latest submitted publisher of a burst is used
+     */
+    public void submit(K key, Runnable publisher) {
+        if (windowNanos == 0) {
+            publisher.run();
+            return;
+        }
+
+        long now = System.nanoTime();
+        bursts.compute(key, (k, burst) -> {
+            if (burst == null) {
+                burst = new Burst(now);
+                schedule(k, windowNanos);
+            }
+            burst.lastChange = now;
+            burst.publisher = publisher;
+
+            return burst;
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void fire(K key) {
+        long now = System.nanoTime();
+        Runnable[] publisher = new Runnable[1];
+
+        bursts.computeIfPresent(key, (k, burst) -> {
+            long next = Math.min(burst.lastChange + windowNanos, burst.firstChange + maxDelayNanos);
+            if (next - now > 0) {
+                // burst is still in progress
+                schedule(k, next - now);
+                return burst;
+            }
+
+            publisher[0] = burst.publisher;
+            return null;
+        });
+
+        if (publisher[0] != null) {
+            try {
+                publisher[0].run();
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Exception while publishing snapshot: {0}", e.toString());
+            }
+        }
+    }
+
+    private void schedule(K key, long delayNanos) {
+        try {
+            executor.schedule(() -> fire(key), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // shut down
+        }
+    }
+
+    private static class Burst {
+
+        private final long firstChange;
+        private long lastChange;
+        private Runnable publisher;
+
+        private Burst(long firstChange) {
+            this.firstChange = firstChange;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stale-while-revalidate policy for last known instances.
+ *
+ * When the backend reports no instances of a service, the last non-empty set of instances is kept and served to
+ * lookups, until fresh instances are reported or the set exceeds the max age. While the set is served, it is
+ * revalidated in the background: the backend is read again and, if probing is enabled, instances which do not accept
+ * TCP connections are dropped from the set.
+ *
+ * Settings are read from kumuluzee.discovery.stale-serving or, if not present there, from
+ * kumuluzee.discovery.{implementation}.stale-serving. Counters are exposed as an MXBean named
+ * com.kumuluz.ee.discovery:type=StaleServing,name={implementation}.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class StaleServingPolicy implements StaleServingMetricsMXBean {
+
+    private static final Logger log = Logger.getLogger(StaleServingPolicy.class.getName());
+
+    // three times the default TTL of registrations, so instances, which stopped sending heartbeats, are not served
+    // indefinitely
+    public static final long DEFAULT_MAX_AGE_MS = 90000;
+
+    private final boolean enabled;
+    private final long maxAgeMs;
+    private final long revalidateIntervalMs;
+    private final boolean probe;
+    private final int probeTimeoutMs;
+
+    private final ScheduledExecutorService executor;
+    private final Set<String> revalidatedKeys = ConcurrentHashMap.newKeySet();
+    private final ObjectName objectName;
+
+    private final AtomicLong staleServes = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong probeFailures = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public StaleServingPolicy(ConfigurationUtil configurationUtil, String implementation) {
+
+        this.enabled = getConfig(configurationUtil, implementation, "enabled", configurationUtil::getBoolean)
+                .orElse(true);
+        this.maxAgeMs = getConfig(configurationUtil, implementation, "max-age-ms", configurationUtil::getLong)
+                .orElse(DEFAULT_MAX_AGE_MS);
+        this.revalidateIntervalMs = Math.max(getConfig(configurationUtil, implementation, "revalidate-interval-ms",
+                configurationUtil::getLong).orElse(5000L), 100);
+        this.probe = getConfig(configurationUtil, implementation, "probe", configurationUtil::getBoolean)
+                .orElse(false);
+        this.probeTimeoutMs = getConfig(configurationUtil, implementation, "probe-timeout-ms",
+                configurationUtil::getInteger).orElse(1000);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kumuluzee-discovery-" + implementation + "-revalidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.objectName = registerMXBean(implementation);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if last known instances are present and did not exceed the max age
+     */
+    public boolean isServable(LastKnownInstances<?> lastKnown) {
+        return enabled && lastKnown != null && !lastKnown.getInstances().isEmpty() && !isExpired(lastKnown);
+    }
+
+    /**
+     * Serves last known instances to a lookup, which found no instances.
+     *
+     * @param serviceName name of the service, used for logging
+     * @param lastKnown   last known instances or null
+     * @return last known instances or an empty list, if they are not servable
+     */
+    public <T> List<T> serve(String serviceName, LastKnownInstances<T> lastKnown) {
+        if (!isServable(lastKnown)) {
+            return new ArrayList<>();
+        }
+
+        staleServes.incrementAndGet();
+        log.log(Level.WARNING, "No instances of {0} found, using {1} last known instances, stale for {2} ms.",
+                new Object[]{serviceName, lastKnown.getInstances().size(), lastKnown.getAgeMs()});
+
+        return lastKnown.getInstances();
+    }
+
+    /**
+     * Starts background revalidation of last known instances, if it is not already running for the key.
+     * Revalidation ends, when the last known instances are cleared or expire.
+     *
+     * @param key          key of the last known instances
+     * @param revalidation access to the last known instances and the backend
+     */
+    public <T> void revalidate(String key, Revalidation<T> revalidation) {
+        if (enabled && revalidatedKeys.add(key)) {
+            schedule(key, revalidation);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // already unregistered
+            }
+        }
+    }
+
+    @Override
+    public long getStaleServes() {
+        return staleServes.get();
+    }
+
+    @Override
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    @Override
+    public long getProbeFailures() {
+        return probeFailures.get();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    private boolean isExpired(LastKnownInstances<?> lastKnown) {
+        return maxAgeMs > 0 && lastKnown.getAgeMs() > maxAgeMs;
+    }
+
+    private <T> void schedule(String key, Revalidation<T> revalidation) {
+        try {
+            executor.schedule(() -> run(key, revalidation), revalidateIntervalMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down
+            revalidatedKeys.remove(key);
+        }
+    }
+
+    private <T> void run(String key, Revalidation<T> revalidation) {
+        LastKnownInstances<T> lastKnown = revalidation.getLastKnown();
+
+        if (lastKnown != null && isExpired(lastKnown) && revalidation.replaceLastKnown(lastKnown, null)) {
+            expirations.incrementAndGet();
+            log.log(Level.INFO, "Last known instances of {0} expired after {1} ms.",
+                    new Object[]{key, lastKnown.getAgeMs()});
+        } else if (lastKnown != null) {
+            revalidations.incrementAndGet();
+            try {
+                revalidation.refresh();
+            } catch (RuntimeException e) {
+                log.log(Level.FINE, "Revalidation of {0} failed: {1}", new Object[]{key, e.toString()});
+            }
+
+            lastKnown = revalidation.getLastKnown();
+            if (probe && lastKnown != null) {
+                probe(key, lastKnown, revalidation);
+            }
+        }
+
+        if (revalidation.getLastKnown() != null) {
+            schedule(key, revalidation);
+            return;
+        }
+
+        revalidatedKeys.remove(key);
+        // last known instances may have been set again in the meantime
+        if (revalidation.getLastKnown() != null) {
+            revalidate(key, revalidation);
+        }
+    }
+
+    private <T> void probe(String key, LastKnownInstances<T> lastKnown, Revalidation<T> revalidation) {
+        List<T> reachable = new ArrayList<>(lastKnown.getInstances().size());
+        for (T instance : lastKnown.getInstances()) {
+            if (isReachable(revalidation.getEndpoint(instance))) {
+                reachable.add(instance);
+            }
+        }
+
+        int failures = lastKnown.getInstances().size() - reachable.size();
+        if (failures > 0 && revalidation.replaceLastKnown(lastKnown, reachable.isEmpty() ? null :
+                lastKnown.withInstances(reachable))) {
+            probeFailures.addAndGet(failures);
+            log.log(Level.INFO, "{0} last known instances of {1} failed a probe and were dropped.",
+                    new Object[]{failures, key});
+        }
+    }
+
+    private boolean isReachable(Endpoint endpoint) {
+        if (endpoint == null) {
+            return false;
+        }
+
+        // probes run in the background, so they also refresh the resolved address of the endpoint
+        InetSocketAddress address = endpoint.refreshAddress();
+        if (address.isUnresolved()) {
+            return false;
+        }
+
+        try (Socket socket = new Socket()) {
+            socket.connect(address, probeTimeoutMs);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private ObjectName registerMXBean(String implementation) {
+        try {
+            ObjectName name = new ObjectName("com.kumuluz.ee.discovery:type=StaleServing,name=" + implementation);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+
+            return name;
+        } catch (JMException e) {
+            log.warning("Cannot register stale serving metrics: " + e.toString());
+            return null;
+        }
+    }
+
+    private static <V> Optional<V> getConfig(ConfigurationUtil configurationUtil, String implementation, String key,
+                                             Function<String, Optional<V>> getter) {
+        Optional<V> universalConfig = getter.apply("kumuluzee.discovery.stale-serving." + key);
+
+        return universalConfig.isPresent() ? universalConfig :
+                getter.apply("kumuluzee.discovery." + implementation + ".stale-serving." + key);
+    }
+
+    /**
+     * Access to last known instances of a key and to the backend, used by background revalidation.
+     *
+     * @param <T> instance type
+     */
+    public interface Revalidation<T> {
+
+        /**
+         * @return current last known instances or null, if fresh instances are present
+         */
+        LastKnownInstances<T> getLastKnown();
+
+        /**
+         * Replaces last known instances, if they were not changed in the meantime.
+         *
+         * @param expected current last known instances
+         * @param updated  new last known instances or null to drop them
+         * @return true if last known instances were replaced
+         */
+        boolean replaceLastKnown(LastKnownInstances<T> expected, LastKnownInstances<T> updated);
+
+        /**
+         * Reads instances from the backend and applies them, which clears the last known instances, if the backend
+         * reports instances again.
+         */
+        void refresh();
+
+        Endpoint getEndpoint(T instance);
+    }
+}
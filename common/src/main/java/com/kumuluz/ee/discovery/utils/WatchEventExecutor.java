@@ -0,0 +1,120 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies watch events on a dedicated thread, so the I/O threads of the backend clients are never blocked by cache
+ * updates.
+ *
+ * Events are queued in a bounded queue and drained in batches. The batch handler is expected to publish a single new
+ * snapshot per batch. If the queue is full, the event is passed to the overflow handler, which should fall back to a
+ * full resynchronisation of the affected state.
+ *
+ * @param <E> event type
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class WatchEventExecutor<E> {
+
+    private static final Logger log = Logger.getLogger(WatchEventExecutor.class.getName());
+
+    private final BlockingQueue<E> queue;
+    private final int batchSize;
+    private final Consumer<List<E>> batchHandler;
+    private final Consumer<E> overflowHandler;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param name            name of the event thread
+     * @param queueSize       maximum number of queued events
+     * @param batchSize       maximum number of events applied in a single batch
+     * @param batchHandler    applies a batch of events
+     * @param overflowHandler called on the submitting thread with the event, which did not fit into the queue
+     */
+    public WatchEventExecutor(String name, int queueSize, int batchSize, Consumer<List<E>> batchHandler,
+                              Consumer<E> overflowHandler) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchHandler = batchHandler;
+        this.overflowHandler = overflowHandler;
+
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues event. Never blocks.
+     *
+     * @param event watch event
+     * @return true if event was queued, false if the queue overflowed and the event was passed to the overflow handler
+     */
+    public boolean submit(E event) {
+        if (running && queue.offer(event)) {
+            return true;
+        }
+
+        if (running) {
+            log.log(Level.WARNING, "Watch event queue of {0} is full, falling back to resynchronisation.",
+                    thread.getName());
+            overflowHandler.accept(event);
+        }
+
+        return false;
+    }
+
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        List<E> batch = new ArrayList<>(batchSize);
+
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+
+            try {
+                batchHandler.accept(batch);
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Exception while applying watch events: {0}", e.toString());
+            }
+
+            batch.clear();
+        }
+    }
+}
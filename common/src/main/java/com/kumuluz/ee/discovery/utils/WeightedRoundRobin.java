@@ -0,0 +1,114 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Smooth weighted round-robin selection of service instances.
+ *
+ * On every pick, the current weight of each instance is increased by its weight and the instance with the largest
+ * current weight is picked, after which its current weight is decreased by the total weight. Instances are picked in
+ * proportion to their weights and picks of heavier instances are interleaved with the others instead of following
+ * each other in bursts. Instances with weight 0 are not picked. If all instances have weight 0, no instance is picked.
+ *
+ * If all instances with a positive weight have the same weight, instances are picked with
+ * {@link CommonUtils#pickServiceInstanceRoundRobin(List)}.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class WeightedRoundRobin {
+
+    public static final int DEFAULT_WEIGHT = 1;
+
+    // current weights of instances by selection key
+    private final Map<String, Map<String, Integer>> currentWeights = new ConcurrentHashMap<>();
+
+    /**
+     * @param selectionKey key of the instance list, e.g. service, version and environment
+     * @param instances    instances to pick from
+     * @param weights      weight of an instance
+     * @return picked instance or empty, if there are no instances with a positive weight
+     */
+    public Optional<URL> pick(String selectionKey, List<URL> instances, ToIntFunction<URL> weights) {
+
+        // instances with weight 0 are never picked
+        List<URL> weighted = new ArrayList<>(instances.size());
+        List<Integer> weightList = new ArrayList<>(instances.size());
+        for (URL instance : instances) {
+            int weight = weights.applyAsInt(instance);
+            if (weight > 0) {
+                weighted.add(instance);
+                weightList.add(weight);
+            }
+        }
+
+        if (weighted.size() < 2) {
+            return CommonUtils.pickServiceInstanceRoundRobin(weighted);
+        }
+
+        int[] instanceWeights = new int[weighted.size()];
+        boolean uniform = true;
+        for (int i = 0; i < instanceWeights.length; i++) {
+            instanceWeights[i] = weightList.get(i);
+            uniform &= instanceWeights[i] == instanceWeights[0];
+        }
+
+        if (uniform) {
+            return CommonUtils.pickServiceInstanceRoundRobin(weighted);
+        }
+
+        Map<String, Integer> current = this.currentWeights.computeIfAbsent(selectionKey, k -> new HashMap<>());
+        synchronized (current) {
+            // instances, which are no longer present, are dropped
+            Map<String, Integer> next = new HashMap<>();
+            int totalWeight = 0;
+            int picked = -1;
+            int pickedWeight = 0;
+
+            for (int i = 0; i < instanceWeights.length; i++) {
+                String instance = weighted.get(i).toString();
+                int weight = current.getOrDefault(instance, 0) + instanceWeights[i];
+                next.put(instance, weight);
+                totalWeight += instanceWeights[i];
+
+                if (picked < 0 || weight > pickedWeight) {
+                    picked = i;
+                    pickedWeight = weight;
+                }
+            }
+
+            next.put(weighted.get(picked).toString(), pickedWeight - totalWeight);
+            current.clear();
+            current.putAll(next);
+
+            return Optional.of(weighted.get(picked));
+        }
+    }
+}
@@ -25,27 +25,28 @@ import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
 import com.kumuluz.ee.discovery.enums.AccessType;
 import com.kumuluz.ee.discovery.utils.*;
 import com.orbitz.consul.*;
-import com.orbitz.consul.async.ConsulResponseCallback;
-import com.orbitz.consul.cache.ServiceHealthCache;
-import com.orbitz.consul.cache.ServiceHealthKey;
 import com.orbitz.consul.model.ConsulResponse;
 import com.orbitz.consul.model.health.ServiceHealth;
 import com.orbitz.consul.model.kv.Value;
+import com.orbitz.consul.option.ConsistencyMode;
+import com.orbitz.consul.option.ImmutableQueryOptions;
 import com.orbitz.consul.option.QueryOptions;
+import okhttp3.ConnectionPool;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
-import java.math.BigInteger;
-import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of DiscoveryUtil interface.
@@ -59,33 +60,94 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
 
     private static final Logger log = Logger.getLogger(ConsulDiscoveryUtilImpl.class.getName());
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // blocking agent calls of registrations, so they never block the scheduler
+    private final ExecutorService registrationExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "kumuluzee-discovery-consul-registration");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
 
     private List<ConsulServiceConfiguration> registeredServices;
-    private Map<String, ScheduledFuture> registratorHandles;
+    private Map<String, HeartbeatScheduler> registratorHandles;
+    private Map<String, ConsulRegistrator> registrators;
+    private List<ConsulLeaderElection> leaderElections;
 
     private Map<String, List<ConsulService>> serviceInstances;
     private Map<String, Set<String>> serviceVersions;
-    private Map<String, URL> gatewayUrls;
+    private Map<String, LastKnownInstances<ConsulService>> lastKnownInstances;
+    private Map<String, ConsulInstanceDiff> instanceDiffs;
+    private ConsulRetryScheduler retries;
+    private ConsulWatchManager watchManager;
+    private WatchEventExecutor<String> watchEvents;
+    private SnapshotDebouncer<String> snapshotDebouncer;
 
     private int startRetryDelay;
     private int maxRetryDelay;
 
+    private ReadConsistencyConfiguration readConsistency;
+    private StaleServingPolicy staleServing;
+    private EndpointAddressRefresher addressRefresher;
+    private DeadlineLookupExecutor deadlineLookups;
+    private WeightedRoundRobin weightedRoundRobin;
+    private boolean warningInstances;
+    private String near;
+    private boolean versionWatches;
+    private ConsulDatacenterFailover failover;
+    private long lookupDeadlineMs;
+
     private static final int CONSUL_WATCH_WAIT_SECONDS = 120;
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 64;
+    private static final int DEFAULT_FAILOVER_REFRESH_INTERVAL_MS = 10000;
 
+    private SharedClientRegistry.Lease<Consul> consulLease;
     private AgentClient agentClient;
     private HealthClient healthClient;
     private KeyValueClient kvClient;
+    private SessionClient sessionClient;
 
     @PostConstruct
     public void init() {
 
         this.registeredServices = new LinkedList<>();
         this.registratorHandles = new HashMap<>();
+        this.registrators = new HashMap<>();
+        this.leaderElections = new CopyOnWriteArrayList<>();
+
+        this.serviceInstances = new ConcurrentHashMap<>();
+        this.serviceVersions = new ConcurrentHashMap<>();
+        this.lastKnownInstances = new ConcurrentHashMap<>();
+        this.instanceDiffs = new ConcurrentHashMap<>();
 
-        this.serviceInstances = new HashMap<>();
-        this.serviceVersions = new HashMap<>();
-        this.gatewayUrls = new HashMap<>();
+        // get retry delays
+        this.startRetryDelay = InitializationUtils.getStartRetryDelayMs(configurationUtil, "consul");
+        this.maxRetryDelay = InitializationUtils.getMaxRetryDelayMs(configurationUtil, "consul");
+        this.retries = new ConsulRetryScheduler(scheduler, startRetryDelay, maxRetryDelay);
+
+        this.readConsistency = new ReadConsistencyConfiguration(configurationUtil, "consul");
+        this.staleServing = new StaleServingPolicy(configurationUtil, "consul");
+        this.deadlineLookups = new DeadlineLookupExecutor("kumuluzee-discovery-consul-lookup");
+        this.lookupDeadlineMs = InitializationUtils.getLookupDeadlineMs(configurationUtil, "consul");
+        this.weightedRoundRobin = new WeightedRoundRobin();
+        this.warningInstances = configurationUtil.getBoolean("kumuluzee.discovery.consul.route-warning-instances")
+                .orElse(false);
+        this.near = configurationUtil.getBoolean("kumuluzee.discovery.consul.near-agent").orElse(false) ?
+                "_agent" : null;
+        this.versionWatches = configurationUtil.getBoolean("kumuluzee.discovery.consul.watch.per-version")
+                .orElse(false);
+
+        // health changes are applied in batches on a dedicated thread, overflowing services are applied later
+        // from the latest state of their health cache
+        this.watchEvents = new WatchEventExecutor<>("kumuluzee-discovery-consul-watch",
+                InitializationUtils.getWatchQueueSize(configurationUtil, "consul"),
+                InitializationUtils.getWatchBatchSize(configurationUtil, "consul"), this::applyServiceHealthChanges,
+                serviceKey -> scheduler.schedule(() -> watchEvents.submit(serviceKey), startRetryDelay,
+                        TimeUnit.MILLISECONDS));
+
+        // bursts of health changes of a service are published as a single snapshot
+        this.snapshotDebouncer = new SnapshotDebouncer<>("kumuluzee-discovery-consul-publish",
+                InitializationUtils.getCoalescingWindowMs(configurationUtil, "consul"),
+                InitializationUtils.getCoalescingMaxDelayMs(configurationUtil, "consul"));
 
         URL consulAgentUrl = null;
         try {
@@ -101,10 +163,20 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
         }
         log.info("Connecting to Consul Agent at: " + consulAgentUrl);
 
-        Consul consul = Consul.builder()
-                .withUrl(consulAgentUrl).withPing(false)
-                .withReadTimeoutMillis(CONSUL_WATCH_WAIT_SECONDS * 1000 + (CONSUL_WATCH_WAIT_SECONDS * 1000) / 16 +
-                        1000).build();
+        // every blocking query holds a connection, idle connections are kept for the next query of the watch
+        int maxIdleConnections = configurationUtil.getInteger("kumuluzee.discovery.consul.watch.max-idle-connections")
+                .orElse(DEFAULT_MAX_IDLE_CONNECTIONS);
+
+        long readTimeoutMs = CONSUL_WATCH_WAIT_SECONDS * 1000 + (CONSUL_WATCH_WAIT_SECONDS * 1000) / 16 + 1000;
+
+        // the client is shared with other extensions connecting to the same agent with the same settings
+        URL agentUrl = consulAgentUrl;
+        this.consulLease = SharedClientRegistry.acquire(SharedClientRegistry.key("consul", agentUrl.toString(),
+                String.valueOf(maxIdleConnections), String.valueOf(readTimeoutMs)), () -> Consul.builder()
+                .withUrl(agentUrl).withPing(false)
+                .withConnectionPool(new ConnectionPool(maxIdleConnections, 5, TimeUnit.MINUTES))
+                .withReadTimeoutMillis(readTimeoutMs).build(), Consul::destroy);
+        Consul consul = consulLease.get();
 
         try {
             consul.agentClient().ping();
@@ -115,6 +187,46 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
         this.agentClient = consul.agentClient();
         this.healthClient = consul.healthClient();
         this.kvClient = consul.keyValueClient();
+        this.sessionClient = consul.sessionClient();
+
+        this.watchManager = new ConsulWatchManager(this.healthClient, consul.catalogClient(), this.kvClient,
+                this.retries,
+                serviceKey -> watchEvents.submit(serviceKey),
+                configurationUtil.getBoolean("kumuluzee.discovery.consul.watch.multiplexed").orElse(false),
+                this.warningInstances, this.near,
+                getConsistencyMode(null), CONSUL_WATCH_WAIT_SECONDS);
+        this.addressRefresher = new EndpointAddressRefresher("kumuluzee-discovery-consul-address-refresh",
+                InitializationUtils.getAddressRefreshIntervalMs(configurationUtil, "consul"), this::forEachEndpoint);
+
+        if (configurationUtil.getBoolean("kumuluzee.discovery.consul.failover.enabled").orElse(false)) {
+            this.failover = createFailover(consul);
+        }
+    }
+
+    private ConsulDatacenterFailover createFailover(Consul consul) {
+
+        List<String> datacenters = new ArrayList<>();
+        int datacentersSize = configurationUtil.getListSize("kumuluzee.discovery.consul.failover.datacenters")
+                .orElse(0);
+        for (int i = 0; i < datacentersSize; i++) {
+            configurationUtil.get("kumuluzee.discovery.consul.failover.datacenters[" + i + "]")
+                    .ifPresent(datacenters::add);
+        }
+
+        String localDatacenter = null;
+        if (datacenters.isEmpty()) {
+            try {
+                localDatacenter = this.agentClient.getAgent().getConfig().getDatacenter();
+            } catch (ConsulException e) {
+                log.severe("Cannot read datacenter of Consul agent: " + e.getLocalizedMessage());
+            }
+        }
+
+        int refreshIntervalMs = configurationUtil.getInteger(
+                "kumuluzee.discovery.consul.failover.refresh-interval-ms").orElse(DEFAULT_FAILOVER_REFRESH_INTERVAL_MS);
+
+        return new ConsulDatacenterFailover(this.healthClient, consul.catalogClient(), localDatacenter, datacenters,
+                this.warningInstances, refreshIntervalMs);
     }
 
     @Override
@@ -150,24 +262,64 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
             }
         }
 
-        // get retry delays
-        startRetryDelay = InitializationUtils.getStartRetryDelayMs(configurationUtil, "consul");
-        maxRetryDelay = InitializationUtils.getMaxRetryDelayMs(configurationUtil, "consul");
-
         int deregisterCriticalServiceAfter = configurationUtil
                 .getInteger("kumuluzee.config.consul.deregister-critical-service-after-s").orElse(60);
 
+        ConsulServiceConfiguration.CheckType checkType = getCheckType();
+        String checkTarget = getCheckTarget(checkType, serviceProtocol, address, servicePort);
+
         ConsulServiceConfiguration serviceConfiguration = new ConsulServiceConfiguration(serviceName, environment,
                 version, serviceProtocol, address, servicePort, ttl, singleton, startRetryDelay, maxRetryDelay,
-                deregisterCriticalServiceAfter, serviceId);
+                deregisterCriticalServiceAfter, InitializationUtils.getWeight(configurationUtil, "consul"), checkType,
+                checkTarget, pingInterval, serviceId);
 
-        // register and schedule heartbeats
-        ConsulRegistrator registrator = new ConsulRegistrator(this.agentClient, this.healthClient,
-                serviceConfiguration);
-        ScheduledFuture handle = scheduler.scheduleWithFixedDelay(registrator, 0, pingInterval, TimeUnit.SECONDS);
+        ConsulRegistrator registrator = new ConsulRegistrator(this.agentClient, this.sessionClient, this.kvClient,
+                serviceConfiguration, scheduler, registrationExecutor, this.retries);
 
         this.registeredServices.add(serviceConfiguration);
-        this.registratorHandles.put(serviceId, handle);
+        this.registrators.put(serviceConfiguration.getServiceId(), registrator);
+
+        if (serviceConfiguration.isTtlCheck() || singleton) {
+            // register and schedule heartbeats, heartbeats of singletons refresh the singleton lock
+            HeartbeatScheduler handle = HeartbeatScheduler.async(scheduler, serviceName, ttl, pingInterval,
+                    registrator::heartbeat);
+            handle.start();
+
+            this.registratorHandles.put(serviceConfiguration.getServiceId(), handle);
+        } else {
+            // the check is run by the agent, failed registrations are retried by the registrator
+            registrator.heartbeat();
+        }
+    }
+
+    private ConsulServiceConfiguration.CheckType getCheckType() {
+        String checkType = configurationUtil.get("kumuluzee.discovery.consul.check.type").orElse("ttl");
+        try {
+            return ConsulServiceConfiguration.CheckType.valueOf(checkType.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warning("Unknown Consul check type: " + checkType + ". Using TTL check.");
+            return ConsulServiceConfiguration.CheckType.TTL;
+        }
+    }
+
+    /**
+     * Agent checks are run by the agent, which the service is registered with. If the service address is not set,
+     * the agent is expected to run on the same host as the service.
+     */
+    private String getCheckTarget(ConsulServiceConfiguration.CheckType checkType, String serviceProtocol,
+                                  String address, int servicePort) {
+        String host = (address == null) ? "localhost" : address;
+
+        switch (checkType) {
+            case HTTP:
+                return configurationUtil.get("kumuluzee.discovery.consul.check.url").orElse(serviceProtocol + "://" +
+                        host + ":" + servicePort +
+                        configurationUtil.get("kumuluzee.discovery.consul.check.http-path").orElse("/health"));
+            case TCP:
+                return host + ":" + servicePort;
+            default:
+                return null;
+        }
     }
 
     @Override
@@ -181,8 +333,14 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
     @Override
     public void deregister() {
 
-        for (ScheduledFuture handle : this.registratorHandles.values()) {
-            handle.cancel(true);
+        for (HeartbeatScheduler handle : this.registratorHandles.values()) {
+            handle.stop();
+        }
+        for (ConsulRegistrator registrator : this.registrators.values()) {
+            registrator.close();
+        }
+        for (LeaderElection leaderElection : this.leaderElections) {
+            leaderElection.close();
         }
 
         if (agentClient != null) {
@@ -196,6 +354,27 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
                 }
             }
         }
+
+        registrationExecutor.shutdown();
+        watchManager.stop();
+        watchEvents.shutdown();
+        snapshotDebouncer.shutdown();
+        staleServing.shutdown();
+        addressRefresher.shutdown();
+        deadlineLookups.shutdown();
+        consulLease.close();
+    }
+
+    /**
+     * Passes endpoints of all cached instances and gateway URLs to the action.
+     */
+    private void forEachEndpoint(Consumer<Endpoint> action) {
+        for (List<ConsulService> services : this.serviceInstances.values()) {
+            for (ConsulService service : services) {
+                action.accept(service.getEndpoint());
+            }
+        }
+        this.watchManager.forEachGatewayUrl(action);
     }
 
     @Override
@@ -203,9 +382,13 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
 
         log.info("Deregistering service with Consul. Service id: " + serviceId);
 
-        ScheduledFuture handle = this.registratorHandles.remove(serviceId);
+        HeartbeatScheduler handle = this.registratorHandles.remove(serviceId);
         if (handle != null) {
-            handle.cancel(true);
+            handle.stop();
+        }
+        ConsulRegistrator registrator = this.registrators.remove(serviceId);
+        if (registrator != null) {
+            registrator.close();
         }
 
         try {
@@ -218,48 +401,146 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
     @Override
     public Optional<List<URL>> getServiceInstances(String serviceName, String version, String environment,
                                                    AccessType accessType) {
+
+        return getServiceInstances(serviceName, version, environment, accessType, this.lookupDeadlineMs);
+    }
+
+    @Override
+    public Optional<List<URL>> getServiceInstances(String serviceName, String version, String environment,
+                                                   AccessType accessType, long deadlineMs) {
+
+        if (deadlineMs <= 0 || isCached(serviceName, version, environment, accessType)) {
+            return lookupServiceInstances(serviceName, version, environment, accessType);
+        }
+
+        return this.deadlineLookups.lookup(environment + "/" + serviceName + "/" + version + "/" + accessType,
+                deadlineMs, () -> lookupServiceInstances(serviceName, version, environment, accessType),
+                () -> getKnownServiceInstances(serviceName, version, environment, accessType));
+    }
+
+    /**
+     * @return true if the lookup can be answered from the local cache, without querying Consul
+     */
+    private boolean isCached(String serviceName, String version, String environment, AccessType accessType) {
+
+        // only local maps are checked, a version range is not resolved, if versions of the service are not cached
+        String consulServiceKey = ConsulUtils.getConsulServiceKey(serviceName, environment);
+        String resolvedVersion = (version == null) ? null : resolveCachedVersion(consulServiceKey, version);
+        if (version != null && resolvedVersion == null) {
+            return false;
+        }
+
+        String instancesKey = (this.versionWatches && version != null) ?
+                ConsulUtils.getVersionInstancesKey(consulServiceKey, resolvedVersion) : consulServiceKey;
+        if (!this.serviceInstances.containsKey(instancesKey) || !this.serviceVersions.containsKey(instancesKey)) {
+            return false;
+        }
+
+        if (accessType != AccessType.GATEWAY || version == null) {
+            return true;
+        }
+
+        // gateway URLs are read, if the version has instances
+        return this.watchManager.isWatchingGateways(environment) ||
+                this.serviceInstances.get(instancesKey).stream()
+                        .noneMatch(consulService -> consulService.getVersion().equals(resolvedVersion));
+    }
+
+    /**
+     * Builds the key of cached instances of a service version, without querying Consul.
+     *
+     * @return key or null, if the version is a range and versions of the service are not cached
+     */
+    private String getCachedInstancesKey(String serviceName, String version, String environment) {
+
+        String consulServiceKey = ConsulUtils.getConsulServiceKey(serviceName, environment);
+        if (!this.versionWatches || version == null) {
+            return consulServiceKey;
+        }
+
+        String resolvedVersion = resolveCachedVersion(consulServiceKey, version);
+
+        return (resolvedVersion == null) ? null :
+                ConsulUtils.getVersionInstancesKey(consulServiceKey, resolvedVersion);
+    }
+
+    /**
+     * Resolves a version against cached versions of the service, without querying Consul.
+     *
+     * @return resolved version or null, if the version is a range and versions of the service are not cached
+     */
+    private String resolveCachedVersion(String consulServiceKey, String version) {
+        boolean[] missing = new boolean[1];
+        String resolvedVersion = CommonUtils.determineVersion(version, () -> {
+            Set<String> versions = this.serviceVersions.get(consulServiceKey);
+            if (versions == null) {
+                missing[0] = true;
+                return Optional.empty();
+            }
+
+            return Optional.of(new ArrayList<>(versions));
+        });
+
+        return missing[0] ? null : resolvedVersion;
+    }
+
+    /**
+     * Answers a lookup with instances known to the local cache, without querying Consul. If the gateway URL is not
+     * known, instances are returned directly.
+     */
+    private Optional<List<URL>> getKnownServiceInstances(String serviceName, String version, String environment,
+                                                         AccessType accessType) {
+
+        if (isCached(serviceName, version, environment, AccessType.DIRECT)) {
+            return lookupServiceInstances(serviceName, version, environment,
+                    isCached(serviceName, version, environment, accessType) ? accessType : AccessType.DIRECT);
+        }
+
+        return Optional.of(new LinkedList<>());
+    }
+
+    private Optional<List<URL>> lookupServiceInstances(String serviceName, String version, String environment,
+                                                       AccessType accessType) {
         String consulServiceKey = ConsulUtils.getConsulServiceKey(serviceName, environment);
-        if (!this.serviceInstances.containsKey(consulServiceKey) ||
-                !this.serviceVersions.containsKey(consulServiceKey)) {
+        String instancesKey = getInstancesKey(serviceName, version, environment);
+        if (!this.serviceInstances.containsKey(instancesKey) || !this.serviceVersions.containsKey(instancesKey)) {
 
             log.info("Performing service lookup on Consul Agent.");
 
-            List<ServiceHealth> serviceHealths;
+            ConsulResponse<List<ServiceHealth>> serviceHealths;
             try {
-                serviceHealths = healthClient.getHealthyServiceInstances(consulServiceKey)
-                        .getResponse();
+                serviceHealths = getHealthyServiceInstances(serviceName, instancesKey);
             } catch (ConsulException e) {
                 log.severe("Error retrieving healthy service instances from Consul: " + e.getLocalizedMessage());
                 return Optional.empty();
             }
 
-            Set<String> serviceVersions = new HashSet<>();
-
-            List<ConsulService> serviceUrls = new ArrayList<>();
-            for (ServiceHealth serviceHealth : serviceHealths) {
-                ConsulService consulService = ConsulService.getInstanceFromServiceHealth(serviceHealth);
-                if (consulService != null) {
-                    serviceUrls.add(consulService);
-                    serviceVersions.add(consulService.getVersion());
-                }
-            }
-
-            this.serviceInstances.put(consulServiceKey, serviceUrls);
-            this.serviceVersions.put(consulServiceKey, serviceVersions);
+            applyServiceHealth(instancesKey, serviceHealths.getResponse());
 
-            addServiceListener(consulServiceKey);
+            addServiceListener(serviceName, instancesKey, serviceHealths);
         }
 
         // filter instances by correct version
-        List<ConsulService> serviceList = this.serviceInstances.get(consulServiceKey);
+        List<ConsulService> serviceList = this.serviceInstances.get(instancesKey);
         List<URL> urlList = new LinkedList<>();
 
         if (version != null) {
             String resolvedVersion = CommonUtils.determineVersion(this, serviceName, version, environment);
-            for (ConsulService consulService : serviceList) {
-                if (consulService.getVersion().equals(resolvedVersion)) {
-                    urlList.add(consulService.getServiceUrl());
+            urlList = getVersionInstances(serviceList, resolvedVersion);
+
+            // live instances of the nearest datacenter are preferred over the last known local instances
+            if (urlList.isEmpty() && this.failover != null) {
+                urlList = getFailoverInstances(serviceName, version, consulServiceKey);
+            }
+
+            if (urlList.isEmpty() && serviceList.isEmpty() && this.lastKnownInstances.containsKey(instancesKey)) {
+                // if no services are present, serve the last known services and revalidate them in the background
+                List<ConsulService> lastKnown = this.staleServing.serve(serviceName,
+                        this.lastKnownInstances.get(instancesKey));
+                if (!lastKnown.isEmpty()) {
+                    revalidateLastKnownInstances(serviceName, instancesKey);
                 }
+                urlList = getVersionInstances(lastKnown, resolvedVersion);
             }
 
             if (accessType == AccessType.GATEWAY && urlList.size() > 0) {
@@ -274,99 +555,90 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
         return Optional.of(urlList);
     }
 
-    private URL getGatewayUrl(String serviceName, String version, String environment) {
-        if (!this.gatewayUrls.containsKey(serviceName + "_" + version + "_" + environment)) {
-            String fullKey = "/environments/" + environment + "/services/" + serviceName + "/" + version +
-                    "/gatewayUrl";
-
-            URL gatewayUrl = null;
-            try {
-                Optional<String> gatewayOpt = kvClient.getValueAsString(fullKey);
-                if (gatewayOpt.isPresent()) {
-                    gatewayUrl = new URL(gatewayOpt.get());
-                }
-            } catch (ConsulException e) {
-                log.severe("Consul exception: " + e.getLocalizedMessage());
-            } catch (MalformedURLException e) {
-                log.severe("Malformed URL exception: " + e.getLocalizedMessage());
-            }
-            this.gatewayUrls.put(serviceName + "_" + version + "_" + environment, gatewayUrl);
-
-            // add watch to key
-            ConsulResponseCallback<Optional<Value>> callback = new ConsulResponseCallback<Optional<Value>>() {
+    /**
+     * With per-version watches, instances of a version are read and watched with a query filtered by the version tag,
+     * instances of all versions are only read to list versions.
+     *
+     * @return key of instances, which the lookup is answered from
+     */
+    private String getInstancesKey(String serviceName, String version, String environment) {
 
-                AtomicReference<BigInteger> index = new AtomicReference<>(new BigInteger("0"));
-
-                int currentRetryDelay = startRetryDelay;
+        String consulServiceKey = ConsulUtils.getConsulServiceKey(serviceName, environment);
+        if (!this.versionWatches || version == null) {
+            return consulServiceKey;
+        }
 
-                @Override
-                public void onComplete(ConsulResponse<Optional<Value>> consulResponse) {
-                    // successful request, reset delay
-                    currentRetryDelay = startRetryDelay;
+        return ConsulUtils.getVersionInstancesKey(consulServiceKey,
+                CommonUtils.determineVersion(this, serviceName, version, environment));
+    }
 
-                    if (index.get() != null && !index.get().equals(consulResponse.getIndex())) {
-                        if (consulResponse.getResponse().isPresent()) {
+    private static List<URL> getVersionInstances(List<ConsulService> instances, String version) {
+        List<URL> urlList = new LinkedList<>();
+        for (ConsulService consulService : instances) {
+            if (consulService.getVersion().equals(version)) {
+                urlList.add(consulService.getEndpoint().toUrl());
+            }
+        }
 
-                            Value v = consulResponse.getResponse().get();
+        return urlList;
+    }
 
-                            Optional<String> valueOpt = v.getValueAsString();
+    /**
+     * Returns instances of the nearest failover datacenter, which has instances of the version. Version ranges are
+     * resolved against versions present in each datacenter.
+     */
+    private List<URL> getFailoverInstances(String serviceName, String version, String serviceKey) {
 
-                            if (valueOpt.isPresent()) {
-                                log.info("Gateway URL at " + fullKey + " changed. New value: " + valueOpt.get());
-                                URL gatewayUrl = null;
-                                try {
-                                    gatewayUrl = new URL(valueOpt.get());
-                                } catch (MalformedURLException e) {
-                                    log.severe("Malformed URL exception: " + e.getLocalizedMessage());
-                                }
-                                gatewayUrls.put(serviceName + "_" + version + "_" + environment, gatewayUrl);
-                            }
+        for (String datacenter : this.failover.getDatacenters()) {
+            List<ConsulService> instances = this.failover.getInstances(datacenter, serviceKey);
+            if (instances.isEmpty()) {
+                continue;
+            }
 
-                        } else if (gatewayUrls.get(serviceName + "_" + version + "_" + environment) != null) {
-                            log.info("Gateway URL at " + fullKey + " deleted.");
+            String resolvedVersion = CommonUtils.determineVersion(version, () -> Optional.of(instances.stream()
+                    .map(ConsulService::getVersion).distinct().collect(Collectors.toList())));
 
-                            gatewayUrls.put(serviceName + "_" + version + "_" + environment, null);
-                        }
-                    }
+            List<URL> urlList = getVersionInstances(instances, resolvedVersion);
+            if (!urlList.isEmpty()) {
+                log.fine("No local instances of service " + serviceName + ", version " + version +
+                        ". Failing over to datacenter " + datacenter + ".");
+                return urlList;
+            }
+        }
 
-                    index.set(consulResponse.getIndex());
+        return new LinkedList<>();
+    }
 
-                    watch();
-                }
+    @Override
+    public LeaderElection joinLeaderElection(String electionName, String environment, long ttl,
+                                             LeadershipListener listener) {
 
-                void watch() {
-                    kvClient.getValue(fullKey, QueryOptions.blockSeconds(CONSUL_WATCH_WAIT_SECONDS, index.get())
-                            .build(), this);
-                }
+        ConsulLeaderElection leaderElection = new ConsulLeaderElection(this.sessionClient, this.kvClient,
+                electionName, ConsulUtils.getLeaderKey(environment, electionName), ttl, listener, scheduler,
+                registrationExecutor);
+        this.leaderElections.add(leaderElection);
+        leaderElection.start();
 
-                @Override
-                public void onFailure(Throwable throwable) {
-                    if (throwable instanceof ConnectException) {
-                        try {
-                            Thread.sleep(currentRetryDelay);
-                        } catch (InterruptedException ignored) {
-                        }
-
-                        // exponential increase, limited by maxRetryDelay
-                        currentRetryDelay *= 2;
-                        if (currentRetryDelay > maxRetryDelay) {
-                            currentRetryDelay = maxRetryDelay;
-                        }
-                    } else {
-                        log.severe("Watch error: " + throwable.getLocalizedMessage());
-                    }
-
-                    watch();
-                }
-            };
+        return leaderElection;
+    }
 
-            kvClient.getValue(fullKey, QueryOptions.blockSeconds(CONSUL_WATCH_WAIT_SECONDS, new BigInteger("0"))
-                    .build(), callback);
+    /**
+     * Gateway URLs of all services of the environment are read once and then watched with a single recursive blocking
+     * query, so lookups of other services and versions are answered from the watch.
+     */
+    private URL getGatewayUrl(String serviceName, String version, String environment) {
+        if (!this.watchManager.isWatchingGateways(environment)) {
+            List<Value> values = null;
+            try {
+                values = kvClient.getValues(ConsulUtils.getServicesPrefix(environment), getGatewayQueryOptions(null));
+            } catch (ConsulException e) {
+                log.severe("Consul exception: " + e.getLocalizedMessage());
+            }
 
-            return gatewayUrl;
-        } else {
-            return this.gatewayUrls.get(serviceName + "_" + version + "_" + environment);
+            this.watchManager.watchGateways(environment, values, getConsistencyMode(null));
         }
+
+        return this.watchManager.getGatewayUrl(environment, serviceName, version);
     }
 
     @Override
@@ -375,10 +647,49 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
         Optional<List<URL>> optionalServiceInstances = getServiceInstances(serviceName, version, environment,
                 accessType);
 
-        return optionalServiceInstances.flatMap(CommonUtils::pickServiceInstanceRoundRobin);
+        return optionalServiceInstances.flatMap(instances -> pickServiceInstance(serviceName, version, environment,
+                instances));
 
     }
 
+    @Override
+    public Optional<URL> getServiceInstance(String serviceName, String version, String environment,
+                                            AccessType accessType, long deadlineMs) {
+        Optional<List<URL>> optionalServiceInstances = getServiceInstances(serviceName, version, environment,
+                accessType, deadlineMs);
+
+        return optionalServiceInstances.flatMap(instances -> pickServiceInstance(serviceName, version, environment,
+                instances));
+    }
+
+    /**
+     * Picks an instance by weights of the instances. If all instances have the default weight, instances are picked
+     * round-robin.
+     */
+    private Optional<URL> pickServiceInstance(String serviceName, String version, String environment,
+                                              List<URL> instances) {
+
+        // only cached instances are used, picking must not query Consul
+        String instancesKey = getCachedInstancesKey(serviceName, version, environment);
+        List<ConsulService> serviceList = (instancesKey == null) ? null : this.serviceInstances.get(instancesKey);
+
+        Map<Endpoint, Integer> weights = new HashMap<>();
+        if (serviceList != null) {
+            for (ConsulService consulService : serviceList) {
+                if (consulService.getWeight() != WeightedRoundRobin.DEFAULT_WEIGHT) {
+                    weights.put(consulService.getEndpoint(), consulService.getWeight());
+                }
+            }
+        }
+
+        if (weights.isEmpty()) {
+            return CommonUtils.pickServiceInstanceRoundRobin(instances);
+        }
+
+        return this.weightedRoundRobin.pick(environment + "/" + serviceName + "/" + version, instances,
+                url -> weights.getOrDefault(Endpoint.of(url), WeightedRoundRobin.DEFAULT_WEIGHT));
+    }
+
     @Override
     public Optional<URL> getServiceInstance(String serviceName, String version, String environment) {
 
@@ -397,46 +708,214 @@ public class ConsulDiscoveryUtilImpl implements DiscoveryUtil {
         List<String> versionsList = new LinkedList<>();
         versionsList.addAll(this.serviceVersions.get(consulServiceKey));
 
+        LastKnownInstances<ConsulService> lastKnown = this.lastKnownInstances.get(consulServiceKey);
+        if (versionsList.isEmpty() && this.staleServing.isServable(lastKnown)) {
+            lastKnown.getInstances().stream().map(ConsulService::getVersion).distinct().forEach(versionsList::add);
+        }
+
         return Optional.of(versionsList);
     }
 
-    private void addServiceListener(String serviceKey) {
+    /**
+     * Reads healthy instances with the read consistency of the service. Stale responses from a server, which lost
+     * contact with the leader for longer than the max staleness of the service, are repeated in default mode. If
+     * warning instances are routed, all instances are read and critical instances are filtered out when applied.
+     */
+    private ConsulResponse<List<ServiceHealth>> getHealthyServiceInstances(String serviceName, String serviceKey) {
+
+        ConsistencyMode consistencyMode = getConsistencyMode(serviceName);
+
+        ConsulResponse<List<ServiceHealth>> response = queryInstances(serviceKey,
+                ImmutableQueryOptions.builder().consistencyMode(consistencyMode).build());
+
+        long maxStalenessMs = this.readConsistency.getMaxStalenessMs(serviceName);
+        if (consistencyMode == ConsistencyMode.STALE && maxStalenessMs != ReadConsistencyConfiguration.UNBOUNDED &&
+                (!response.isKnownLeader() || response.getLastContact() > maxStalenessMs)) {
+            log.fine("Stale lookup of service " + serviceKey + " exceeded max staleness, last contact with leader: " +
+                    response.getLastContact() + " ms. Repeating the lookup in default mode.");
+            response = queryInstances(serviceKey, QueryOptions.BLANK);
+        }
+
+        return response;
+    }
+
+    private ConsulResponse<List<ServiceHealth>> queryInstances(String serviceKey, QueryOptions queryOptions) {
+        if (this.near != null) {
+            queryOptions = ImmutableQueryOptions.copyOf(queryOptions).withNear(this.near);
+        }
+        String versionTag = ConsulUtils.getVersionTag(serviceKey);
+        if (versionTag != null) {
+            queryOptions = ImmutableQueryOptions.copyOf(queryOptions).withTag(versionTag);
+        }
+
+        String serviceName = ConsulUtils.getConsulServiceName(serviceKey);
+        if (this.warningInstances) {
+            return healthClient.getAllServiceInstances(serviceName, queryOptions);
+        }
+
+        return healthClient.getHealthyServiceInstances(serviceName, queryOptions);
+    }
+
+    /**
+     * The key-value client does not expose the last contact of a response, so bounded stale reads of gateway URLs
+     * are done in default mode.
+     */
+    private QueryOptions getGatewayQueryOptions(String serviceName) {
+
+        ConsistencyMode consistencyMode = getConsistencyMode(serviceName);
+        if (consistencyMode == ConsistencyMode.STALE &&
+                this.readConsistency.getMaxStalenessMs(serviceName) != ReadConsistencyConfiguration.UNBOUNDED) {
+            consistencyMode = ConsistencyMode.DEFAULT;
+        }
+
+        return ImmutableQueryOptions.builder().consistencyMode(consistencyMode).build();
+    }
+
+    private ConsistencyMode getConsistencyMode(String serviceName) {
+        switch (this.readConsistency.getConsistency(serviceName)) {
+            case STALE:
+                return ConsistencyMode.STALE;
+            case CONSISTENT:
+                return ConsistencyMode.CONSISTENT;
+            default:
+                return ConsistencyMode.DEFAULT;
+        }
+    }
+
+    private void addServiceListener(String serviceName, String serviceKey,
+                                    ConsulResponse<List<ServiceHealth>> serviceHealths) {
+
+        // blocking queries use the consistency of the service, max staleness is not applied to them. Watches
+        // continue from the index of the initial read, changes are queued by the service key and applied from the
+        // latest state of the watch
+        this.watchManager.watch(serviceKey, serviceHealths, getConsistencyMode(serviceName));
+    }
+
+    /**
+     * Applies a batch of health changes. Changes of the same service are coalesced and applied once, from the latest
+     * state of its watch.
+     */
+    private void applyServiceHealthChanges(List<String> serviceKeys) {
+
+        for (String serviceKey : new LinkedHashSet<>(serviceKeys)) {
+            if (this.watchManager.isWatched(serviceKey)) {
+                this.snapshotDebouncer.submit(serviceKey, () -> {
+                    log.info("Service instances for service " + serviceKey + " refreshed.");
 
-        ServiceHealthCache svHealth = ServiceHealthCache.newCache(healthClient, serviceKey);
+                    applyServiceHealth(serviceKey, this.watchManager.getHealth(serviceKey));
+                });
+            }
+        }
+    }
 
-        svHealth.addListener(newValues -> {
+    private void revalidateLastKnownInstances(String serviceName, String serviceKey) {
 
-            log.info("Service instances for service " + serviceKey + " refreshed.");
+        this.staleServing.revalidate(serviceKey, new StaleServingPolicy.Revalidation<ConsulService>() {
+            @Override
+            public LastKnownInstances<ConsulService> getLastKnown() {
+                return lastKnownInstances.get(serviceKey);
+            }
 
-            serviceInstances.get(serviceKey).clear();
-            serviceVersions.get(serviceKey).clear();
+            @Override
+            public boolean replaceLastKnown(LastKnownInstances<ConsulService> expected,
+                                            LastKnownInstances<ConsulService> updated) {
+                return (updated == null) ? lastKnownInstances.remove(serviceKey, expected) :
+                        lastKnownInstances.replace(serviceKey, expected, updated);
+            }
 
-            for (Map.Entry<ServiceHealthKey, ServiceHealth> serviceHealthKey : newValues.entrySet()) {
-                ConsulService consulService = ConsulService
-                        .getInstanceFromServiceHealth(serviceHealthKey.getValue());
-                if (consulService != null) {
-                    serviceInstances.get(serviceKey).add(consulService);
-                    serviceVersions.get(serviceKey).add(consulService.getVersion());
+            @Override
+            public void refresh() {
+                // in case the health cache missed the registration, healthy instances are published in order with
+                // changes of the cache
+                List<ServiceHealth> serviceHealths = getHealthyServiceInstances(serviceName, serviceKey)
+                        .getResponse();
+                if (!serviceHealths.isEmpty()) {
+                    snapshotDebouncer.submit(serviceKey, () -> applyServiceHealth(serviceKey, serviceHealths));
                 }
             }
+
+            @Override
+            public Endpoint getEndpoint(ConsulService instance) {
+                return instance.getEndpoint();
+            }
         });
+    }
 
-        try {
-            svHealth.start();
-        } catch (Exception e) {
-            log.severe("Cannot start service listener: " + e.getLocalizedMessage());
+    /**
+     * Replaces instances and versions of a service with a new snapshot. If the snapshot is empty, previous instances
+     * are kept as last known instances. Only changed instances are parsed again and the snapshot is not replaced, if
+     * no instance changed.
+     */
+    private void applyServiceHealth(String serviceKey, Collection<ServiceHealth> serviceHealths) {
+
+        ConsulInstanceDiff.Delta delta = this.instanceDiffs.computeIfAbsent(serviceKey, k -> new ConsulInstanceDiff())
+                .apply(serviceHealths);
+        if (delta.isEmpty() && this.serviceInstances.containsKey(serviceKey)) {
+            return;
+        }
+        log.fine("Instances of service " + serviceKey + " changed. Added: " + delta.getAdded() + ", changed: " +
+                delta.getChanged() + ", removed: " + delta.getRemoved());
+
+        List<ConsulService> serviceUrls = delta.getInstances();
+        Set<String> versions = new HashSet<>();
+        for (ConsulService consulService : serviceUrls) {
+            versions.add(consulService.getVersion());
+        }
+
+        List<ConsulService> previous = this.serviceInstances.put(serviceKey, serviceUrls);
+        if (!serviceUrls.isEmpty()) {
+            this.lastKnownInstances.remove(serviceKey);
+        } else if (previous != null && !previous.isEmpty() && this.staleServing.isEnabled()) {
+            this.lastKnownInstances.put(serviceKey, new LastKnownInstances<>(previous));
+        }
+        this.serviceVersions.put(serviceKey, Collections.unmodifiableSet(versions));
+    }
+
+    @Override
+    public void setWeight(String serviceName, String version, String environment, URL url, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight must not be negative: " + weight);
+        }
+
+        boolean changed = false;
+
+        for (ConsulRegistrator registrator : this.registrators.values()) {
+            ConsulServiceConfiguration service = registrator.getServiceConfiguration();
+            if (service.getServiceName().equals(serviceName) && service.getVersion().equals(version) &&
+                    service.getEnvironment().equals(environment) && isRegisteredAt(service, url)) {
+                log.info("Changing weight of service instance: " + service.getServiceId() + " Weight: " + weight);
+                registrator.setWeight(weight);
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            log.warning("No registered service instance with URL " + url + ". Weight was not changed.");
         }
+    }
+
+    /**
+     * @return true if the URL points to the registered service, instances registered without an address match any host
+     */
+    private boolean isRegisteredAt(ConsulServiceConfiguration service, URL url) {
+        int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
 
+        return service.getServiceProtocol().equals(url.getProtocol()) && service.getServicePort() == port &&
+                (service.getAddress() == null || service.getAddress().equals(url.getHost()));
     }
 
     @Override
     public void disableServiceInstance(String serviceName, String version, String environment, URL url) {
         // init serviceInstances, if not already present
         getServiceInstances(serviceName, version, environment, AccessType.DIRECT);
-        List<ConsulService> serviceList = this.serviceInstances
-                .get(ConsulUtils.getConsulServiceKey(serviceName, environment));
+        String instancesKey = getCachedInstancesKey(serviceName, version, environment);
+        List<ConsulService> serviceList = (instancesKey == null) ? null : this.serviceInstances.get(instancesKey);
+        if (serviceList == null) {
+            return;
+        }
+        Endpoint endpoint = Endpoint.of(url);
         for (ConsulService consulService : serviceList) {
-            if (consulService.getVersion().equals(version) && consulService.getServiceUrl().equals(url)) {
+            if (consulService.getVersion().equals(version) && consulService.getEndpoint().equals(endpoint)) {
                 try {
                     agentClient.toggleMaintenanceMode(consulService.getId(), true, "Service disabled" +
                             "with KumuluzEE Config Consul's disableServiceInstance call.");
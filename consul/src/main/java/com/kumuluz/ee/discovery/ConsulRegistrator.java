@@ -20,22 +20,39 @@
  */
 package com.kumuluz.ee.discovery;
 
+import com.kumuluz.ee.discovery.utils.ConsulLeaderElection;
+import com.kumuluz.ee.discovery.utils.ConsulRetryScheduler;
 import com.kumuluz.ee.discovery.utils.ConsulService;
 import com.kumuluz.ee.discovery.utils.ConsulServiceConfiguration;
+import com.kumuluz.ee.discovery.utils.ConsulUtils;
+import com.kumuluz.ee.discovery.utils.WeightedRoundRobin;
 import com.orbitz.consul.AgentClient;
 import com.orbitz.consul.ConsulException;
-import com.orbitz.consul.HealthClient;
+import com.orbitz.consul.KeyValueClient;
 import com.orbitz.consul.NotRegisteredException;
+import com.orbitz.consul.SessionClient;
 import com.orbitz.consul.model.agent.ImmutableRegCheck;
 import com.orbitz.consul.model.agent.ImmutableRegistration;
 import com.orbitz.consul.model.agent.Registration;
-import com.orbitz.consul.model.health.ServiceHealth;
 
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.logging.Logger;
 
 /**
- * Runnable for service registration and heartbeats
+ * Registration and heartbeats of a service instance, implemented as a non-blocking state machine.
+ *
+ * An instance is {@link State#UNREGISTERED} until it is registered, {@link State#REGISTERING} while the registration
+ * request is in progress, {@link State#REGISTERED} after a successful registration and in {@link State#BACKOFF}, when
+ * the registration failed and a retry is scheduled. The Consul client only offers blocking agent calls, so every step
+ * runs on a separate I/O executor and transitions are driven by completions of the steps. The scheduler is never
+ * blocked, so a failing or hanging registration does not delay registrations and heartbeats of other instances.
+ *
+ * At most one step of an instance is in progress at a time. After {@link #close()}, results of a step in progress are
+ * ignored and a registration, which completes after close, is removed again. A registered instance is registered
+ * again after {@link #setWeight(int)}, since its weight is published as a tag.
  *
  * @author Urban Malc
  * @author Jan Meznaric
@@ -44,132 +61,277 @@ import java.util.logging.Logger;
 public class ConsulRegistrator implements Runnable {
     private static final Logger log = Logger.getLogger(ConsulRegistrator.class.getName());
 
+    /**
+     * State of the registration.
+     */
+    public enum State {
+        UNREGISTERED,
+        REGISTERING,
+        REGISTERED,
+        BACKOFF,
+        CLOSED
+    }
+
     private AgentClient agentClient;
-    private HealthClient healthClient;
     private ConsulServiceConfiguration serviceConfiguration;
+    private ConsulLeaderElection singletonElection;
+
+    private final ExecutorService ioExecutor;
+    private final ConsulRetryScheduler.Backoff backoff;
 
-    private boolean isRegistered;
+    // guarded by this
+    private State state;
+    private CompletableFuture<Boolean> inProgress;
+    private ScheduledFuture<?> retry;
 
-    private int currentRetryDelay;
+    private volatile boolean weightChanged;
 
-    public ConsulRegistrator(AgentClient agentClient, HealthClient healthClient,
-                             ConsulServiceConfiguration serviceConfiguration) {
+    public ConsulRegistrator(AgentClient agentClient, SessionClient sessionClient, KeyValueClient kvClient,
+                             ConsulServiceConfiguration serviceConfiguration, ScheduledExecutorService executor,
+                             ExecutorService ioExecutor, ConsulRetryScheduler retries) {
         this.agentClient = agentClient;
-        this.healthClient = healthClient;
         this.serviceConfiguration = serviceConfiguration;
+        this.ioExecutor = ioExecutor;
 
-        this.isRegistered = false;
+        this.state = State.UNREGISTERED;
 
-        this.currentRetryDelay = serviceConfiguration.getStartRetryDelay();
+        this.backoff = retries.newBackoff();
+
+        if (serviceConfiguration.isSingleton()) {
+            // only the holder of the singleton lock registers, others take over when the lock is released
+            this.singletonElection = new ConsulLeaderElection(sessionClient, kvClient,
+                    serviceConfiguration.getServiceName(), ConsulUtils.getSingletonKey(
+                    serviceConfiguration.getEnvironment(), serviceConfiguration.getServiceName(),
+                    serviceConfiguration.getVersion()), serviceConfiguration.getTtl(), (election, leader) -> {
+                        if (leader && getState() != State.REGISTERED) {
+                            heartbeat();
+                        }
+                    }, executor, ioExecutor);
+        }
     }
 
     @Override
     public void run() {
-        if (!this.isRegistered) {
-            this.registerToConsul();
-        } else {
-            sendHeartbeat();
+        heartbeat();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public ConsulServiceConfiguration getServiceConfiguration() {
+        return serviceConfiguration;
+    }
+
+    /**
+     * Changes the weight of the instance. A registered instance is registered again with the new weight tag by the
+     * next step, which is started immediately, unless a step is already in progress.
+     *
+     * @param weight new weight of the instance
+     */
+    public void setWeight(int weight) {
+        this.serviceConfiguration.setWeight(weight);
+        this.weightChanged = true;
+
+        heartbeat();
+    }
+
+    /**
+     * Starts registration of the service or a pass of its TTL check on the I/O executor. If a step is already in
+     * progress, no new step is started.
+     *
+     * @return stage, which completes with true if the service is registered and its TTL check was passed
+     */
+    public synchronized CompletableFuture<Boolean> heartbeat() {
+        if (this.state == State.CLOSED) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (this.inProgress != null) {
+            return this.inProgress;
+        }
+
+        CompletableFuture<Boolean> step = CompletableFuture.supplyAsync(this::step, ioExecutor);
+        this.inProgress = step;
+        step.whenComplete((success, error) -> {
+            synchronized (this) {
+                if (this.inProgress == step) {
+                    this.inProgress = null;
+                }
+            }
+        });
+
+        return step;
+    }
+
+    /**
+     * Stops the state machine, cancels a scheduled retry and releases the singleton lock, if held.
+     */
+    public void close() {
+        synchronized (this) {
+            this.state = State.CLOSED;
+            if (this.retry != null) {
+                this.retry.cancel(false);
+                this.retry = null;
+            }
+        }
+
+        if (this.singletonElection != null) {
+            this.singletonElection.close();
+        }
+    }
+
+    private boolean step() {
+        if (this.singletonElection != null && !this.singletonElection.refresh()) {
+            if (getState() == State.REGISTERED) {
+                log.warning("Singleton lock was taken over by another instance. Deregistering service: " +
+                        this.serviceConfiguration.getServiceId());
+                deleteRegistration();
+            } else {
+                log.warning("Instance was not registered. Trying to register a singleton microservice instance, " +
+                        "but another instance is already registered.");
+            }
+
+            return false;
+        }
+
+        switch (getState()) {
+            case CLOSED:
+                return false;
+            case REGISTERED:
+                if (this.weightChanged) {
+                    return registerToConsul();
+                }
+                // agent checks are run by the agent, heartbeats of singletons only refresh the lock
+                return !this.serviceConfiguration.isTtlCheck() || sendHeartbeat();
+            default:
+                return registerToConsul();
         }
     }
 
-    private void sendHeartbeat() {
+    private synchronized boolean transition(State to) {
+        if (this.state == State.CLOSED) {
+            return false;
+        }
+        this.state = to;
+
+        return true;
+    }
+
+    private void deleteRegistration() {
+        try {
+            agentClient.deregister(this.serviceConfiguration.getServiceId());
+            transition(State.UNREGISTERED);
+        } catch (ConsulException e) {
+            log.severe("Consul Exception when deregistering service: " + e.getLocalizedMessage());
+        }
+    }
+
+    private boolean sendHeartbeat() {
         log.fine("Sending heartbeat.");
         try {
             agentClient.pass(this.serviceConfiguration.getServiceId());
+            return true;
         } catch (NotRegisteredException e) {
             log.warning("Received NotRegisteredException from Consul AgentClient when sending heartbeat. " +
                     "Reregistering service.");
-            this.isRegistered = false;
-            this.registerToConsul();
+            return transition(State.UNREGISTERED) && this.registerToConsul();
         }
     }
 
-    private void registerToConsul() {
-        if (this.serviceConfiguration.isSingleton() && isRegistered()) {
-            log.warning("Instance was not registered. Trying to register a singleton microservice instance, but " +
-                    "another instance is already registered.");
-        } else {
-            log.info("Registering service with Consul. Service name: " + this.serviceConfiguration.getServiceName() +
-                    " Service ID: " + this.serviceConfiguration.getServiceId());
-
-            if (agentClient != null) {
-                while (!this.isRegistered) {
-                    try {
-                        ImmutableRegCheck.Builder ttlCheckBuilder = ImmutableRegCheck.builder()
-                                .ttl(String.format("%ss", this.serviceConfiguration.getTtl()));
-
-                        if (this.serviceConfiguration.getDeregisterCriticalServiceAfter() != 0) {
-                            ttlCheckBuilder = ttlCheckBuilder.deregisterCriticalServiceAfter(String
-                                    .format("%ss", this.serviceConfiguration.getDeregisterCriticalServiceAfter()));
-                        }
-                        Registration.RegCheck ttlCheck = ttlCheckBuilder.build();
-
-                        ImmutableRegistration.Builder registrationBuilder = ImmutableRegistration.builder()
-                                .port(this.serviceConfiguration.getServicePort())
-                                .check(ttlCheck)
-                                .name(this.serviceConfiguration.getServiceConsulKey())
-                                .id(this.serviceConfiguration.getServiceId())
-                                .addTags(this.serviceConfiguration.getServiceProtocol(),
-                                        ConsulService.TAG_VERSION_PREFIX + this.serviceConfiguration.getVersion());
-
-                        if (this.serviceConfiguration.getAddress() != null) {
-                            registrationBuilder.address(this.serviceConfiguration.getAddress());
-                        }
+    private boolean registerToConsul() {
+        if (agentClient == null) {
+            log.severe("Consul not initialized.");
+            return false;
+        }
 
-                        agentClient.register(registrationBuilder.build());
+        if (!transition(State.REGISTERING)) {
+            return false;
+        }
 
-                        this.isRegistered = true;
-                        this.currentRetryDelay = serviceConfiguration.getStartRetryDelay();
-                    } catch (ConsulException e) {
-                        log.severe("Consul Exception when registering service: " + e.getLocalizedMessage());
-                        try {
-                            Thread.sleep(currentRetryDelay);
-                        } catch (InterruptedException ignored) {
-                        }
+        log.info("Registering service with Consul. Service name: " + this.serviceConfiguration.getServiceName() +
+                " Service ID: " + this.serviceConfiguration.getServiceId());
 
-                        // exponential increase, limited by maxRetryDelay
-                        currentRetryDelay *= 2;
-                        if (currentRetryDelay > serviceConfiguration.getMaxRetryDelay()) {
-                            currentRetryDelay = serviceConfiguration.getMaxRetryDelay();
-                        }
-                    }
-                }
+        // a weight changed from now on is registered by the next step
+        this.weightChanged = false;
 
-                // we need to send heartbeat immediately after registration so the checks pass
-                sendHeartbeat();
-            } else {
-                log.severe("Consul not initialized.");
+        try {
+            ImmutableRegCheck.Builder checkBuilder = ImmutableRegCheck.builder();
+            switch (this.serviceConfiguration.getCheckType()) {
+                case HTTP:
+                    checkBuilder.http(this.serviceConfiguration.getCheckTarget())
+                            .interval(String.format("%ss", this.serviceConfiguration.getCheckInterval()));
+                    break;
+                case TCP:
+                    checkBuilder.tcp(this.serviceConfiguration.getCheckTarget())
+                            .interval(String.format("%ss", this.serviceConfiguration.getCheckInterval()));
+                    break;
+                default:
+                    checkBuilder.ttl(String.format("%ss", this.serviceConfiguration.getTtl()));
             }
-        }
-    }
 
-    private boolean isRegistered() {
-        if (healthClient != null) {
-            List<ServiceHealth> serviceInstances;
-            try {
-                serviceInstances = healthClient
-                        .getHealthyServiceInstances(this.serviceConfiguration.getServiceConsulKey()).getResponse();
-            } catch (ConsulException e) {
-                log.severe("Error retrieving healthy instances from Consul. Cannot determine, if service is " +
-                        "already registered. ConsulException: " + e.getLocalizedMessage());
-                return true;
+            if (this.serviceConfiguration.getDeregisterCriticalServiceAfter() != 0) {
+                checkBuilder = checkBuilder.deregisterCriticalServiceAfter(String
+                        .format("%ss", this.serviceConfiguration.getDeregisterCriticalServiceAfter()));
             }
+            Registration.RegCheck check = checkBuilder.build();
 
-            boolean registered = false;
+            ImmutableRegistration.Builder registrationBuilder = ImmutableRegistration.builder()
+                    .port(this.serviceConfiguration.getServicePort())
+                    .check(check)
+                    .name(this.serviceConfiguration.getServiceConsulKey())
+                    .id(this.serviceConfiguration.getServiceId())
+                    .addTags(this.serviceConfiguration.getServiceProtocol(),
+                            ConsulService.TAG_VERSION_PREFIX + this.serviceConfiguration.getVersion());
 
-            for (ServiceHealth serviceHealth : serviceInstances) {
-                ConsulService consulService = ConsulService.getInstanceFromServiceHealth(serviceHealth);
-                if (consulService != null && consulService.getVersion().equals(this.serviceConfiguration.getVersion()
-                )) {
-                    registered = true;
-                    break;
-                }
+            if (this.serviceConfiguration.getAddress() != null) {
+                registrationBuilder.address(this.serviceConfiguration.getAddress());
+            }
+            if (this.serviceConfiguration.getWeight() != WeightedRoundRobin.DEFAULT_WEIGHT) {
+                // the agent registration of the client does not support service weights
+                registrationBuilder.addTags(ConsulService.TAG_WEIGHT_PREFIX + this.serviceConfiguration.getWeight());
             }
 
-            return registered;
-        } else {
-            log.severe("Consul not initialized");
+            agentClient.register(registrationBuilder.build());
+        } catch (ConsulException e) {
+            log.severe("Consul Exception when registering service: " + e.getLocalizedMessage());
+            scheduleRetry();
+
+            return false;
+        }
+
+        if (!transition(State.REGISTERED)) {
+            // closed while the registration was in progress
+            log.info("Service was closed during registration, removing registration: " +
+                    this.serviceConfiguration.getServiceId());
+            deleteRegistration();
+
             return false;
         }
+        this.backoff.reset();
+
+        if (!this.serviceConfiguration.isTtlCheck()) {
+            return true;
+        }
+
+        // we need to send heartbeat immediately after registration so the checks pass
+        return sendHeartbeat();
+    }
+
+    /**
+     * Enters backoff and schedules a retry of the registration, in addition to the regular heartbeats.
+     */
+    private synchronized void scheduleRetry() {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        this.state = State.BACKOFF;
+
+        if (this.retry == null || this.retry.isDone()) {
+            this.retry = this.backoff.retry(() -> {
+                if (getState() == State.BACKOFF) {
+                    heartbeat();
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,210 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.ConsulException;
+import com.orbitz.consul.HealthClient;
+import com.orbitz.consul.async.ConsulResponseCallback;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.option.ImmutableQueryOptions;
+import com.orbitz.consul.option.QueryOptions;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Discovers instances of services in other datacenters, used when no instances of a service version are available in
+ * the local datacenter.
+ *
+ * Datacenters are tried in the configured order or, if no datacenters are configured, in the order returned by the
+ * catalog, which sorts datacenters by the round trip time estimated from WAN network coordinates. Instances are kept
+ * in a snapshot per datacenter and service. The first read of a snapshot is synchronous, expired snapshots are
+ * served while they are read again in the background.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class ConsulDatacenterFailover {
+
+    private static final Logger log = Logger.getLogger(ConsulDatacenterFailover.class.getName());
+
+    private final HealthClient healthClient;
+    private final CatalogClient catalogClient;
+    private final String localDatacenter;
+    private final List<String> configuredDatacenters;
+    private final boolean warningInstances;
+    private final long refreshIntervalNanos;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    private volatile List<String> datacenters;
+    private volatile long datacentersReadNanos;
+
+    /**
+     * @param healthClient          health client
+     * @param catalogClient         catalog client, used to order datacenters by round trip time
+     * @param localDatacenter       datacenter of the agent, excluded from failover, may be null
+     * @param configuredDatacenters datacenters in failover order or an empty list to order them by round trip time
+     * @param warningInstances      if true, instances with warning checks are read as well
+     * @param refreshIntervalMs     interval of refreshes of datacenters and snapshots in ms
+     */
+    public ConsulDatacenterFailover(HealthClient healthClient, CatalogClient catalogClient, String localDatacenter,
+                                    List<String> configuredDatacenters, boolean warningInstances,
+                                    long refreshIntervalMs) {
+        this.healthClient = healthClient;
+        this.catalogClient = catalogClient;
+        this.localDatacenter = localDatacenter;
+        this.configuredDatacenters = Collections.unmodifiableList(new ArrayList<>(configuredDatacenters));
+        this.warningInstances = warningInstances;
+        this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(refreshIntervalMs);
+    }
+
+    /**
+     * @return failover datacenters, nearest first
+     */
+    public List<String> getDatacenters() {
+        if (!this.configuredDatacenters.isEmpty()) {
+            return this.configuredDatacenters;
+        }
+
+        List<String> current = this.datacenters;
+        if (current == null || System.nanoTime() - this.datacentersReadNanos > this.refreshIntervalNanos) {
+            try {
+                List<String> read = new ArrayList<>(catalogClient.getDatacenters());
+                read.remove(this.localDatacenter);
+                current = Collections.unmodifiableList(read);
+            } catch (ConsulException e) {
+                log.severe("Cannot read datacenters from Consul: " + e.getLocalizedMessage());
+                if (current == null) {
+                    current = Collections.emptyList();
+                }
+            }
+
+            this.datacenters = current;
+            this.datacentersReadNanos = System.nanoTime();
+        }
+
+        return current;
+    }
+
+    /**
+     * @param datacenter datacenter
+     * @param serviceKey Consul service name
+     * @return instances of the service in the datacenter, possibly empty
+     */
+    public List<ConsulService> getInstances(String datacenter, String serviceKey) {
+        String snapshotKey = datacenter + "/" + serviceKey;
+        Snapshot snapshot = this.snapshots.get(snapshotKey);
+
+        if (snapshot == null) {
+            snapshot = new Snapshot(datacenter, serviceKey);
+            try {
+                snapshot.set(query(datacenter, serviceKey));
+            } catch (ConsulException e) {
+                // failed reads are not repeated before the refresh interval
+                log.severe("Cannot read instances of service " + serviceKey + " in datacenter " + datacenter + ": " +
+                        e.getLocalizedMessage());
+            }
+
+            Snapshot present = this.snapshots.putIfAbsent(snapshotKey, snapshot);
+            if (present != null) {
+                snapshot = present;
+            }
+        } else if (System.nanoTime() - snapshot.readNanos > this.refreshIntervalNanos) {
+            snapshot.refresh();
+        }
+
+        return snapshot.instances;
+    }
+
+    private ConsulResponse<List<ServiceHealth>> query(String datacenter, String serviceKey) {
+        QueryOptions queryOptions = ImmutableQueryOptions.builder().datacenter(datacenter).build();
+
+        return warningInstances ? healthClient.getAllServiceInstances(serviceKey, queryOptions) :
+                healthClient.getHealthyServiceInstances(serviceKey, queryOptions);
+    }
+
+    private static List<ConsulService> toInstances(List<ServiceHealth> serviceHealths) {
+        List<ConsulService> instances = new ArrayList<>(serviceHealths.size());
+        for (ServiceHealth serviceHealth : serviceHealths) {
+            ConsulService consulService = ConsulService.getInstanceFromServiceHealth(serviceHealth);
+            if (consulService != null) {
+                instances.add(consulService);
+            }
+        }
+
+        return Collections.unmodifiableList(instances);
+    }
+
+    /**
+     * Instances of a service in a datacenter.
+     */
+    private class Snapshot implements ConsulResponseCallback<List<ServiceHealth>> {
+
+        private final String datacenter;
+        private final String serviceKey;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile List<ConsulService> instances = Collections.emptyList();
+        private volatile long readNanos = System.nanoTime();
+
+        Snapshot(String datacenter, String serviceKey) {
+            this.datacenter = datacenter;
+            this.serviceKey = serviceKey;
+        }
+
+        void set(ConsulResponse<List<ServiceHealth>> response) {
+            this.instances = toInstances(response.getResponse());
+            this.readNanos = System.nanoTime();
+        }
+
+        void refresh() {
+            if (this.refreshing.compareAndSet(false, true)) {
+                QueryOptions queryOptions = ImmutableQueryOptions.builder().datacenter(datacenter).build();
+                if (warningInstances) {
+                    healthClient.getAllServiceInstances(serviceKey, queryOptions, this);
+                } else {
+                    healthClient.getHealthyServiceInstances(serviceKey, queryOptions, this);
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(ConsulResponse<List<ServiceHealth>> consulResponse) {
+            set(consulResponse);
+            this.refreshing.set(false);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            log.warning("Cannot refresh instances of service " + serviceKey + " in datacenter " + datacenter + ": " +
+                    throwable.getLocalizedMessage());
+            // the snapshot is served until the next refresh interval
+            this.readNanos = System.nanoTime();
+            this.refreshing.set(false);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.orbitz.consul.model.catalog.ServiceWeights;
+import com.orbitz.consul.model.health.HealthCheck;
+import com.orbitz.consul.model.health.ServiceHealth;
+
+import java.util.*;
+
+/**
+ * Applies health responses of a service incrementally. Instances are keyed by node and service ID and only instances,
+ * whose address, port, tags, weights or aggregated check status changed, are parsed again. Other changes, e.g. outputs
+ * of checks, which change the index of the response, leave the instances untouched.
+ *
+ * The health model of the client does not expose modify indexes of instances, so changes are detected by comparing
+ * the fields, which the parsed instance depends on.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class ConsulInstanceDiff {
+
+    private Map<String, Entry> entries = Collections.emptyMap();
+    private List<String> order = Collections.emptyList();
+    private List<ConsulService> instances = Collections.emptyList();
+
+    /**
+     * @param serviceHealths latest health of all instances of the service
+     * @return changes since the previous response
+     */
+    public synchronized Delta apply(Collection<ServiceHealth> serviceHealths) {
+
+        Map<String, Entry> newEntries = new HashMap<>(serviceHealths.size() * 2);
+        List<String> newOrder = new ArrayList<>(serviceHealths.size());
+        int added = 0;
+        int changed = 0;
+
+        for (ServiceHealth serviceHealth : serviceHealths) {
+            String key = serviceHealth.getNode().getNode() + "/" + serviceHealth.getService().getId();
+            Entry previous = this.entries.get(key);
+
+            Entry entry;
+            if (previous == null) {
+                entry = new Entry(serviceHealth);
+                added++;
+            } else if (!previous.matches(serviceHealth)) {
+                entry = new Entry(serviceHealth);
+                changed++;
+            } else {
+                entry = previous;
+            }
+
+            if (newEntries.put(key, entry) == null) {
+                newOrder.add(key);
+            }
+        }
+
+        int removed = 0;
+        for (String key : this.entries.keySet()) {
+            if (!newEntries.containsKey(key)) {
+                removed++;
+            }
+        }
+
+        if (added == 0 && changed == 0 && removed == 0 && newOrder.equals(this.order)) {
+            return new Delta(0, 0, 0, this.instances, false);
+        }
+
+        List<ConsulService> newInstances = new ArrayList<>(newOrder.size());
+        for (String key : newOrder) {
+            ConsulService instance = newEntries.get(key).instance;
+            if (instance != null) {
+                newInstances.add(instance);
+            }
+        }
+
+        this.entries = newEntries;
+        this.order = newOrder;
+        this.instances = Collections.unmodifiableList(newInstances);
+
+        return new Delta(added, changed, removed, this.instances, true);
+    }
+
+    /**
+     * Changes of a response.
+     */
+    public static class Delta {
+
+        private final int added;
+        private final int changed;
+        private final int removed;
+        private final List<ConsulService> instances;
+        private final boolean modified;
+
+        private Delta(int added, int changed, int removed, List<ConsulService> instances, boolean modified) {
+            this.added = added;
+            this.changed = changed;
+            this.removed = removed;
+            this.instances = instances;
+            this.modified = modified;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getChanged() {
+            return changed;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return instances after the response, the same list as before, if nothing changed
+         */
+        public List<ConsulService> getInstances() {
+            return instances;
+        }
+
+        /**
+         * @return true if no instance was added, changed or removed and the order of instances is the same
+         */
+        public boolean isEmpty() {
+            return !modified;
+        }
+    }
+
+    /**
+     * Fields of an instance, which its parsed representation depends on.
+     */
+    private static class Entry {
+
+        private final String serviceAddress;
+        private final String nodeAddress;
+        private final int port;
+        private final List<String> tags;
+        private final Optional<ServiceWeights> weights;
+        private final String status;
+        private final ConsulService instance;
+
+        Entry(ServiceHealth serviceHealth) {
+            this.serviceAddress = serviceHealth.getService().getAddress();
+            this.nodeAddress = serviceHealth.getNode().getAddress();
+            this.port = serviceHealth.getService().getPort();
+            this.tags = serviceHealth.getService().getTags();
+            this.weights = serviceHealth.getService().getWeights();
+            this.status = getStatus(serviceHealth);
+            this.instance = ConsulService.getInstanceFromServiceHealth(serviceHealth);
+        }
+
+        boolean matches(ServiceHealth serviceHealth) {
+            return this.port == serviceHealth.getService().getPort() &&
+                    Objects.equals(this.serviceAddress, serviceHealth.getService().getAddress()) &&
+                    Objects.equals(this.nodeAddress, serviceHealth.getNode().getAddress()) &&
+                    this.tags.equals(serviceHealth.getService().getTags()) &&
+                    this.weights.equals(serviceHealth.getService().getWeights()) &&
+                    this.status.equals(getStatus(serviceHealth));
+        }
+
+        /**
+         * @return statuses of checks, which are not passing, or an empty string if all checks are passing
+         */
+        private static String getStatus(ServiceHealth serviceHealth) {
+            String status = "";
+            for (HealthCheck check : serviceHealth.getChecks()) {
+                if (!"passing".equals(check.getStatus())) {
+                    status = status.isEmpty() ? check.getStatus() : status + "," + check.getStatus();
+                }
+            }
+
+            return status;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.orbitz.consul.ConsulException;
+import com.orbitz.consul.KeyValueClient;
+import com.orbitz.consul.SessionClient;
+import com.orbitz.consul.async.ConsulResponseCallback;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.kv.Value;
+import com.orbitz.consul.model.session.ImmutableSession;
+import com.orbitz.consul.option.QueryOptions;
+
+import java.math.BigInteger;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leader election with a Consul session and a KV lock.
+ *
+ * Every participant creates a session with a TTL and tries to acquire the lock on the leader key with it. The lock is
+ * held while the session is renewed. If the leader stops renewing the session, the session is invalidated and the key
+ * deleted. Participants, which did not acquire the lock, watch the leader key with a blocking query and try to acquire
+ * it as soon as it is released.
+ *
+ * Requests to Consul are blocking, so refreshes run on an I/O executor and the scheduler only starts them.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class ConsulLeaderElection implements LeaderElection {
+
+    private static final Logger log = Logger.getLogger(ConsulLeaderElection.class.getName());
+
+    // Consul limits session TTL to [10s, 86400s]
+    private static final long MIN_SESSION_TTL = 10;
+    private static final long MAX_SESSION_TTL = 86400;
+
+    private static final int WATCH_WAIT_SECONDS = 120;
+
+    private final SessionClient sessionClient;
+    private final KeyValueClient kvClient;
+    private final String name;
+    private final String key;
+    private final long ttl;
+    private final LeadershipListener listener;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService ioExecutor;
+    private final String participantId;
+
+    private volatile boolean leader;
+    private volatile boolean closed;
+    private volatile boolean watching;
+    private String sessionId;
+    private long lastRefresh;
+
+    private HeartbeatScheduler heartbeat;
+
+    /**
+     * @param sessionClient Consul session client
+     * @param kvClient      Consul KV client
+     * @param name          name of the election
+     * @param key           leader key
+     * @param ttl           TTL of the session in seconds
+     * @param listener      leadership listener, may be null
+     * @param scheduler     scheduler of periodic refreshes
+     * @param ioExecutor    executor, on which leadership is refreshed and taken over
+     */
+    public ConsulLeaderElection(SessionClient sessionClient, KeyValueClient kvClient, String name, String key,
+                                long ttl, LeadershipListener listener, ScheduledExecutorService scheduler,
+                                ExecutorService ioExecutor) {
+        this.sessionClient = sessionClient;
+        this.kvClient = kvClient;
+        this.name = name;
+        this.key = key;
+        this.ttl = Math.min(Math.max(ttl, MIN_SESSION_TTL), MAX_SESSION_TTL);
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.ioExecutor = ioExecutor;
+        this.participantId = UUID.randomUUID().toString();
+    }
+
+    /**
+     * Starts refreshing the leadership periodically. Not needed, if {@link #refresh()} is called by the owner.
+     */
+    public synchronized void start() {
+        if (heartbeat == null) {
+            heartbeat = HeartbeatScheduler.async(scheduler, "leader election " + name, ttl, Math.max(ttl / 3, 1),
+                    () -> CompletableFuture.supplyAsync(this::refresh, ioExecutor));
+            heartbeat.start();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * Renews the session and acquires the lock, if it is not held by another participant.
+     *
+     * @return true if this participant holds the leadership
+     */
+    public synchronized boolean refresh() {
+        if (closed) {
+            return false;
+        }
+
+        try {
+            if (sessionId != null && !renewSession()) {
+                // session was invalidated, the lock was released with it
+                log.log(Level.WARNING, "Session of leader election {0} expired.", name);
+                sessionId = null;
+                setLeader(false);
+            }
+
+            if (sessionId == null) {
+                sessionId = sessionClient.createSession(ImmutableSession.builder()
+                        .name(name)
+                        .ttl(ttl + "s")
+                        .behavior("delete")
+                        .lockDelay("0s")
+                        .build()).getId();
+            }
+
+            if (!leader) {
+                boolean acquired = kvClient.acquireLock(key, participantId, sessionId);
+                setLeader(acquired);
+
+                if (!acquired) {
+                    watchLeader(BigInteger.ZERO);
+                }
+            }
+
+            lastRefresh = System.nanoTime();
+        } catch (ConsulException e) {
+            log.log(Level.WARNING, "Cannot refresh leadership of {0}: {1}", new Object[]{name,
+                    e.getLocalizedMessage()});
+
+            if (leader && System.nanoTime() - lastRefresh > TimeUnit.SECONDS.toNanos(ttl)) {
+                // session expired in the meantime, another participant may have taken over
+                setLeader(false);
+            }
+        }
+
+        return leader;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+
+        if (sessionId != null) {
+            try {
+                if (leader) {
+                    kvClient.releaseLock(key, sessionId);
+                }
+                sessionClient.destroySession(sessionId);
+            } catch (ConsulException e) {
+                log.log(Level.WARNING, "Cannot release leadership of {0}: {1}", new Object[]{name,
+                        e.getLocalizedMessage()});
+            }
+        }
+        setLeader(false);
+    }
+
+    private boolean renewSession() {
+        try {
+            return sessionClient.renewSession(sessionId).isPresent();
+        } catch (ConsulException e) {
+            if (e.getCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void watchLeader(BigInteger index) {
+        if (watching || closed) {
+            return;
+        }
+        watching = true;
+
+        kvClient.getValue(key, QueryOptions.blockSeconds(WATCH_WAIT_SECONDS, index).build(),
+                new ConsulResponseCallback<Optional<Value>>() {
+                    @Override
+                    public void onComplete(ConsulResponse<Optional<Value>> consulResponse) {
+                        watching = false;
+                        if (closed) {
+                            return;
+                        }
+
+                        Optional<Value> value = consulResponse.getResponse();
+                        if (!value.isPresent() || !value.get().getSession().isPresent()) {
+                            log.log(Level.FINE, "Leader of {0} is gone, taking over.", name);
+                            try {
+                                ioExecutor.execute(ConsulLeaderElection.this::refresh);
+                            } catch (RejectedExecutionException e) {
+                                log.log(Level.FINE, "Executor of leader election {0} is shut down.", name);
+                            }
+                        } else if (!leader) {
+                            watchLeader(consulResponse.getIndex());
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        // acquisition is retried on the next refresh
+                        watching = false;
+                    }
+                });
+    }
+
+    private void setLeader(boolean leader) {
+        if (this.leader != leader) {
+            this.leader = leader;
+
+            log.log(Level.INFO, leader ? "Acquired leadership of {0}." : "Lost leadership of {0}.", name);
+
+            if (listener != null) {
+                try {
+                    listener.leadershipChanged(this, leader);
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Leadership listener of {0} failed: {1}", new Object[]{name, e});
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Schedules retries of failed Consul requests, shared by all watches and registrations of the module.
+ *
+ * Retries never block the calling thread, which is usually a callback thread of the HTTP client. Each retried request
+ * keeps its own {@link Backoff}. The delay doubles after every failure up to the max retry delay, and every delay is
+ * chosen randomly between half and the full delay, so requests, which failed together (e.g. during an outage of the
+ * agent), are not retried in lockstep.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class ConsulRetryScheduler {
+
+    private static final Logger log = Logger.getLogger(ConsulRetryScheduler.class.getName());
+
+    private final ScheduledExecutorService scheduler;
+    private final int startRetryDelay;
+    private final int maxRetryDelay;
+
+    /**
+     * @param scheduler       scheduler, on which retries are run. Retried tasks should not block.
+     * @param startRetryDelay retry delay after the first failure in ms
+     * @param maxRetryDelay   max retry delay in ms
+     */
+    public ConsulRetryScheduler(ScheduledExecutorService scheduler, int startRetryDelay, int maxRetryDelay) {
+        this.scheduler = scheduler;
+        this.startRetryDelay = Math.max(startRetryDelay, 1);
+        this.maxRetryDelay = Math.max(maxRetryDelay, this.startRetryDelay);
+    }
+
+    /**
+     * @return new backoff, starting with the start retry delay
+     */
+    public Backoff newBackoff() {
+        return new Backoff();
+    }
+
+    /**
+     * Exponential backoff of a single retried request.
+     */
+    public class Backoff {
+
+        private int currentRetryDelay = startRetryDelay;
+
+        /**
+         * Resets the delay after a successful request.
+         */
+        public synchronized void reset() {
+            this.currentRetryDelay = startRetryDelay;
+        }
+
+        /**
+         * @return jittered delay of the next retry in ms, the delay of following retries is doubled
+         */
+        public synchronized long nextDelayMs() {
+            int delay = this.currentRetryDelay;
+            this.currentRetryDelay = (int) Math.min((long) delay * 2, maxRetryDelay);
+
+            return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        }
+
+        /**
+         * Runs the task after the next delay.
+         *
+         * @param task retried request
+         * @return scheduled retry or null, if the scheduler is shut down
+         */
+        public ScheduledFuture<?> retry(Runnable task) {
+            long delay = nextDelayMs();
+            try {
+                return scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.fine("Retry was not scheduled, scheduler is shut down.");
+                return null;
+            }
+        }
+    }
+}
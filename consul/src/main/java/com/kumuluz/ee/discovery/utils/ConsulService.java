@@ -20,10 +20,12 @@
 */
 package com.kumuluz.ee.discovery.utils;
 
+import com.orbitz.consul.model.catalog.ServiceWeights;
+import com.orbitz.consul.model.health.HealthCheck;
 import com.orbitz.consul.model.health.ServiceHealth;
 
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.Optional;
 import java.util.logging.Logger;
 
 /**
@@ -39,19 +41,25 @@ public class ConsulService {
 
     public static final String TAG_HTTPS = "https";
     public static final String TAG_VERSION_PREFIX = "version=";
+    public static final String TAG_WEIGHT_PREFIX = "weight=";
+
+    private static final String STATUS_WARNING = "warning";
+    private static final String STATUS_PASSING = "passing";
 
     private String id;
-    private URL serviceUrl;
+    private Endpoint endpoint;
     private String version;
+    private int weight;
 
-    private ConsulService(String id, URL serviceUrl, String version) {
+    private ConsulService(String id, Endpoint endpoint, String version, int weight) {
         this.id = id;
-        this.serviceUrl = serviceUrl;
+        this.endpoint = endpoint;
         this.version = version;
+        this.weight = weight;
     }
 
-    public URL getServiceUrl() {
-        return serviceUrl;
+    public Endpoint getEndpoint() {
+        return endpoint;
     }
 
     public String getVersion() {
@@ -62,26 +70,71 @@ public class ConsulService {
         return id;
     }
 
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Instances with a critical check (or in maintenance) are not returned. Instances with a warning check get the
+     * warning weight of the service, or are not returned, if the warning weight is 0.
+     *
+     * @param serviceHealth health of the service instance
+     * @return instance or null, if the instance should not receive requests
+     */
     public static ConsulService getInstanceFromServiceHealth(ServiceHealth serviceHealth) {
-        URL url = serviceHealthToURL(serviceHealth);
-        if (url != null) {
+        Endpoint endpoint = serviceHealthToEndpoint(serviceHealth);
+        if (endpoint != null) {
             String version = null;
+            Integer taggedWeight = null;
             for (String tag : serviceHealth.getService().getTags()) {
                 if (tag.startsWith(TAG_VERSION_PREFIX)) {
                     version = tag.substring(TAG_VERSION_PREFIX.length());
+                } else if (tag.startsWith(TAG_WEIGHT_PREFIX)) {
+                    taggedWeight = parseWeight(tag.substring(TAG_WEIGHT_PREFIX.length()));
                 }
             }
             if (version == null || version.isEmpty()) {
                 version = "1.0.0";
             }
 
-            return new ConsulService(serviceHealth.getService().getId(), url, version);
+            // weight tag takes precedence over the passing weight, which is not set by this client
+            Optional<ServiceWeights> weights = serviceHealth.getService().getWeights();
+            int weight = (taggedWeight != null) ? taggedWeight :
+                    weights.map(ServiceWeights::getPassing).orElse(WeightedRoundRobin.DEFAULT_WEIGHT);
+
+            boolean warning = false;
+            for (HealthCheck check : serviceHealth.getChecks()) {
+                if (STATUS_WARNING.equals(check.getStatus())) {
+                    warning = true;
+                } else if (!STATUS_PASSING.equals(check.getStatus())) {
+                    return null;
+                }
+            }
+            if (warning) {
+                weight = Math.min(weight, weights.map(ServiceWeights::getWarning)
+                        .orElse(WeightedRoundRobin.DEFAULT_WEIGHT));
+            }
+
+            if (weight <= 0) {
+                return null;
+            }
+
+            return new ConsulService(serviceHealth.getService().getId(), endpoint, version, weight);
         }
 
         return null;
     }
 
-    private static URL serviceHealthToURL(ServiceHealth serviceHealth) {
+    private static Integer parseWeight(String weight) {
+        try {
+            return Integer.parseInt(weight);
+        } catch (NumberFormatException e) {
+            log.warning("Invalid weight tag: " + weight);
+            return null;
+        }
+    }
+
+    private static Endpoint serviceHealthToEndpoint(ServiceHealth serviceHealth) {
 
         String address = serviceHealth.getService().getAddress();
 
@@ -90,7 +143,7 @@ public class ConsulService {
         }
 
         try {
-            return new URL(((serviceHealth.getService().getTags().contains(TAG_HTTPS)) ? "https" : "http")
+            return Endpoint.parse(((serviceHealth.getService().getTags().contains(TAG_HTTPS)) ? "https" : "http")
                     + "://" + address + ":" + serviceHealth.getService().getPort()); //
         } catch (MalformedURLException e) {
             log.severe("Malformed URL when translating serviceHealth to URL: " + e.getLocalizedMessage());
@@ -29,6 +29,17 @@ import com.kumuluz.ee.common.runtime.EeRuntime;
  * @since 1.0.0
  */
 public class ConsulServiceConfiguration {
+
+    /**
+     * Type of the health check of the service. TTL checks are passed by heartbeats of the service, HTTP and TCP
+     * checks are run by the agent.
+     */
+    public enum CheckType {
+        TTL,
+        HTTP,
+        TCP
+    }
+
     private String serviceName;
     private String environment;
     private String version;
@@ -42,10 +53,16 @@ public class ConsulServiceConfiguration {
     private int startRetryDelay;
     private int maxRetryDelay;
     private int deregisterCriticalServiceAfter;
+    private volatile int weight;
+
+    private CheckType checkType;
+    private String checkTarget;
+    private long checkInterval;
 
     public ConsulServiceConfiguration(String serviceName, String environment, String version, String serviceProtocol,
                                       String address, int servicePort, long ttl, boolean singleton, int startRetryDelay,
-                                      int maxRetryDelay, int deregisterCriticalServiceAfter, String serviceId) {
+                                      int maxRetryDelay, int deregisterCriticalServiceAfter, int weight,
+                                      CheckType checkType, String checkTarget, long checkInterval, String serviceId) {
         this.serviceName = serviceName;
         this.environment = environment;
         this.version = version;
@@ -64,6 +81,11 @@ public class ConsulServiceConfiguration {
         this.startRetryDelay = startRetryDelay;
         this.maxRetryDelay = maxRetryDelay;
         this.deregisterCriticalServiceAfter = deregisterCriticalServiceAfter;
+        this.weight = weight;
+
+        this.checkType = checkType;
+        this.checkTarget = checkTarget;
+        this.checkInterval = checkInterval;
     }
 
     public String getServiceName() {
@@ -117,4 +139,34 @@ public class ConsulServiceConfiguration {
     public int getDeregisterCriticalServiceAfter() {
         return deregisterCriticalServiceAfter;
     }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public CheckType getCheckType() {
+        return checkType;
+    }
+
+    /**
+     * @return URL of an HTTP check or host:port of a TCP check, null for TTL checks
+     */
+    public String getCheckTarget() {
+        return checkTarget;
+    }
+
+    /**
+     * @return interval of HTTP and TCP checks in seconds
+     */
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    public boolean isTtlCheck() {
+        return checkType == CheckType.TTL;
+    }
 }
@@ -29,7 +29,50 @@ package com.kumuluz.ee.discovery.utils;
  */
 public class ConsulUtils {
 
+    private static final char VERSION_SEPARATOR = '#';
+
     public static String getConsulServiceKey(String serviceName, String environment) {
         return environment + "-" + serviceName;
     }
+
+    /**
+     * @param consulServiceKey Consul service name
+     * @param version          version
+     * @return key of instances of a single version of the service
+     */
+    public static String getVersionInstancesKey(String consulServiceKey, String version) {
+        return consulServiceKey + VERSION_SEPARATOR + version;
+    }
+
+    /**
+     * @param instancesKey Consul service name or key of instances of a single version
+     * @return Consul service name
+     */
+    public static String getConsulServiceName(String instancesKey) {
+        int separator = instancesKey.indexOf(VERSION_SEPARATOR);
+
+        return (separator < 0) ? instancesKey : instancesKey.substring(0, separator);
+    }
+
+    /**
+     * @param instancesKey Consul service name or key of instances of a single version
+     * @return version tag, by which instances are filtered, or null if instances of all versions are queried
+     */
+    public static String getVersionTag(String instancesKey) {
+        int separator = instancesKey.indexOf(VERSION_SEPARATOR);
+
+        return (separator < 0) ? null : ConsulService.TAG_VERSION_PREFIX + instancesKey.substring(separator + 1);
+    }
+
+    public static String getServicesPrefix(String environment) {
+        return "environments/" + environment + "/services/";
+    }
+
+    public static String getLeaderKey(String environment, String electionName) {
+        return "environments/" + environment + "/leaders/" + electionName;
+    }
+
+    public static String getSingletonKey(String environment, String serviceName, String version) {
+        return "environments/" + environment + "/singletons/" + serviceName + "/" + version;
+    }
 }
@@ -0,0 +1,699 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.HealthClient;
+import com.orbitz.consul.KeyValueClient;
+import com.orbitz.consul.async.ConsulResponseCallback;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.State;
+import com.orbitz.consul.model.health.HealthCheck;
+import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.model.kv.Value;
+import com.orbitz.consul.option.ConsistencyMode;
+import com.orbitz.consul.option.ImmutableQueryOptions;
+import com.orbitz.consul.option.QueryOptions;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Watches healthy instances of discovered services with Consul blocking queries.
+ *
+ * By default, every service is watched with its own blocking query. Each blocking query holds a connection and a
+ * thread of the HTTP client for up to the wait time, so clients, which discover many services, can multiplex the
+ * watches instead. Multiplexed watches use two catalog-wide blocking queries, one for health checks in any state and
+ * one for the list of services. When either changes, only services with changed checks, changed checks of their
+ * nodes or changed tags are read again, with a regular (non-blocking) query.
+ *
+ * Instances with warning checks are only watched if they are routed (with the warning weight of the service),
+ * otherwise only instances with all checks passing are watched.
+ *
+ * Gateway URLs of all services of an environment are watched with a single recursive blocking query on the key-value
+ * prefix of the environment, so a gateway URL lookup of any version is answered from the local map.
+ *
+ * Responses are stored per service and the listener is notified with the service key. The listener is called on the
+ * callback threads of the HTTP client and should only queue the change.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class ConsulWatchManager implements ConsulWatchMetricsMXBean {
+
+    private static final Logger log = Logger.getLogger(ConsulWatchManager.class.getName());
+
+    private final HealthClient healthClient;
+    private final CatalogClient catalogClient;
+    private final KeyValueClient kvClient;
+    private final ConsulRetryScheduler retries;
+    private final Consumer<String> listener;
+
+    private final boolean multiplexed;
+    private final boolean warningInstances;
+    private final String near;
+    private final ConsistencyMode multiplexedConsistency;
+    private final int waitSeconds;
+
+    private final Map<String, ServiceWatch> watches = new ConcurrentHashMap<>();
+    private final Map<String, GatewayWatch> gatewayWatches = new ConcurrentHashMap<>();
+    private final AtomicLong failures = new AtomicLong();
+
+    private final ChecksWatch checksWatch;
+    private final CatalogWatch catalogWatch;
+
+    private final ObjectName objectName;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param healthClient           health client
+     * @param catalogClient          catalog client, used by multiplexed watches
+     * @param kvClient               key-value client, used by gateway URL watches
+     * @param retries                scheduler of retries of failed requests
+     * @param listener               called with the service key, when healthy instances of a service change
+     * @param multiplexed            if true, services are watched with shared catalog-wide blocking queries
+     * @param warningInstances       if true, instances with warning checks are watched as well
+     * @param near                   node, by distance to which instances are sorted (e.g. _agent), may be null
+     * @param multiplexedConsistency consistency mode of the shared blocking queries
+     * @param waitSeconds            wait time of blocking queries
+     */
+    public ConsulWatchManager(HealthClient healthClient, CatalogClient catalogClient, KeyValueClient kvClient,
+                              ConsulRetryScheduler retries, Consumer<String> listener, boolean multiplexed,
+                              boolean warningInstances, String near, ConsistencyMode multiplexedConsistency,
+                              int waitSeconds) {
+        this.healthClient = healthClient;
+        this.catalogClient = catalogClient;
+        this.kvClient = kvClient;
+        this.retries = retries;
+        this.listener = listener;
+        this.multiplexed = multiplexed;
+        this.warningInstances = warningInstances;
+        this.near = near;
+        this.multiplexedConsistency = multiplexedConsistency;
+        this.waitSeconds = waitSeconds;
+
+        this.checksWatch = multiplexed ? new ChecksWatch() : null;
+        this.catalogWatch = multiplexed ? new CatalogWatch() : null;
+
+        this.objectName = registerMXBean();
+    }
+
+    /**
+     * Starts watching a service. Watch continues from the index of the initial read, so the initial state is not read
+     * again. If the service is already watched, the call has no effect.
+     *
+     * @param serviceKey      Consul service name or key of instances of a single version (see
+     *                        {@link ConsulUtils#getVersionInstancesKey(String, String)})
+     * @param initial         initial read of healthy instances of the service
+     * @param consistencyMode consistency mode of the watch
+     */
+    public void watch(String serviceKey, ConsulResponse<List<ServiceHealth>> initial,
+                      ConsistencyMode consistencyMode) {
+
+        if (stopped || this.watches.containsKey(serviceKey)) {
+            return;
+        }
+
+        ServiceWatch serviceWatch = new ServiceWatch(serviceKey, initial, consistencyMode);
+        if (this.watches.putIfAbsent(serviceKey, serviceWatch) != null) {
+            return;
+        }
+
+        if (multiplexed) {
+            this.checksWatch.startOnce();
+            this.catalogWatch.startOnce();
+        } else {
+            serviceWatch.startOnce();
+        }
+    }
+
+    public boolean isWatched(String serviceKey) {
+        return this.watches.containsKey(serviceKey);
+    }
+
+    /**
+     * @return latest healthy instances of a watched service or null, if the service is not watched
+     */
+    public List<ServiceHealth> getHealth(String serviceKey) {
+        ServiceWatch serviceWatch = this.watches.get(serviceKey);
+
+        return (serviceWatch == null) ? null : serviceWatch.health;
+    }
+
+    /**
+     * Starts watching gateway URLs of all services of an environment. The watch starts from index 0, so its first
+     * response replaces the initial values. If the environment is already watched, the call has no effect.
+     *
+     * @param environment     environment
+     * @param initial         initial read of values under the services prefix of the environment
+     * @param consistencyMode consistency mode of the watch
+     */
+    public void watchGateways(String environment, List<Value> initial, ConsistencyMode consistencyMode) {
+
+        if (stopped || this.gatewayWatches.containsKey(environment)) {
+            return;
+        }
+
+        GatewayWatch gatewayWatch = new GatewayWatch(environment, initial, consistencyMode);
+        if (this.gatewayWatches.putIfAbsent(environment, gatewayWatch) == null) {
+            gatewayWatch.startOnce();
+        }
+    }
+
+    public boolean isWatchingGateways(String environment) {
+        return this.gatewayWatches.containsKey(environment);
+    }
+
+    /**
+     * @return gateway URL of a service version or null, if the version has no gateway URL or the environment is not
+     * watched
+     */
+    public URL getGatewayUrl(String environment, String serviceName, String version) {
+        GatewayWatch gatewayWatch = this.gatewayWatches.get(environment);
+
+        Endpoint gatewayUrl = (gatewayWatch == null) ? null :
+                gatewayWatch.gatewayUrls.get(serviceName + "/" + version);
+
+        return (gatewayUrl == null) ? null : gatewayUrl.toUrl();
+    }
+
+    /**
+     * Passes gateway URLs of all watched environments to the action.
+     */
+    public void forEachGatewayUrl(Consumer<Endpoint> action) {
+        for (GatewayWatch gatewayWatch : this.gatewayWatches.values()) {
+            gatewayWatch.gatewayUrls.values().forEach(action);
+        }
+    }
+
+    public void stop() {
+        this.stopped = true;
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // already unregistered
+            }
+        }
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    @Override
+    public int getWatchedServices() {
+        return this.watches.size();
+    }
+
+    @Override
+    public int getBlockingQueries() {
+        if (multiplexed) {
+            return (this.watches.isEmpty() ? 0 : 2) + this.gatewayWatches.size();
+        }
+
+        return this.watches.size() + this.gatewayWatches.size();
+    }
+
+    @Override
+    public Map<String, Long> getWatchLagMs() {
+        long now = System.nanoTime();
+        long sharedLag = multiplexed ? Math.max(this.checksWatch.getLagMs(now), this.catalogWatch.getLagMs(now)) : 0;
+
+        Map<String, Long> lags = new TreeMap<>();
+        this.watches.forEach((serviceKey, serviceWatch) -> lags.put(serviceKey,
+                multiplexed ? sharedLag : serviceWatch.getLagMs(now)));
+
+        return lags;
+    }
+
+    @Override
+    public long getWatchFailures() {
+        return this.failures.get();
+    }
+
+    private void queryInstances(String serviceKey, QueryOptions queryOptions,
+                                ConsulResponseCallback<List<ServiceHealth>> callback) {
+        if (near != null) {
+            queryOptions = ImmutableQueryOptions.copyOf(queryOptions).withNear(near);
+        }
+        // watches of a single version are filtered by the version tag on the server
+        String versionTag = ConsulUtils.getVersionTag(serviceKey);
+        if (versionTag != null) {
+            queryOptions = ImmutableQueryOptions.copyOf(queryOptions).withTag(versionTag);
+        }
+
+        String serviceName = ConsulUtils.getConsulServiceName(serviceKey);
+        if (warningInstances) {
+            // critical instances are filtered out when the response is applied
+            healthClient.getAllServiceInstances(serviceName, queryOptions, callback);
+        } else {
+            healthClient.getHealthyServiceInstances(serviceName, queryOptions, callback);
+        }
+    }
+
+    /**
+     * Reads the services again, which are affected by changed checks, check of nodes or tags.
+     */
+    private void refresh(Set<String> serviceKeys, Set<String> nodes) {
+        for (ServiceWatch serviceWatch : this.watches.values()) {
+            if (serviceKeys.contains(ConsulUtils.getConsulServiceName(serviceWatch.serviceKey)) ||
+                    serviceWatch.isOnAnyNode(nodes)) {
+                serviceWatch.fetch();
+            }
+        }
+    }
+
+    /**
+     * Blocking query, which is re-issued after every response. On errors, the query is retried with a jittered
+     * exponential delay.
+     *
+     * @param <T> response type
+     */
+    private abstract class BlockingWatch<T> implements ConsulResponseCallback<T> {
+
+        private final ConsistencyMode consistencyMode;
+
+        private volatile BigInteger index;
+        private volatile long lastResponseNanos;
+        private volatile boolean started;
+        private final ConsulRetryScheduler.Backoff backoff = retries.newBackoff();
+
+        BlockingWatch(ConsistencyMode consistencyMode, BigInteger index) {
+            this.consistencyMode = consistencyMode;
+            this.index = (index == null) ? BigInteger.ZERO : index;
+            this.lastResponseNanos = System.nanoTime();
+        }
+
+        abstract void request(QueryOptions queryOptions, ConsulResponseCallback<T> callback);
+
+        /**
+         * @param response response
+         * @param changed  true if the index of the response differs from the previous one
+         */
+        abstract void onResponse(ConsulResponse<T> response, boolean changed);
+
+        synchronized void startOnce() {
+            if (!started) {
+                started = true;
+                watch();
+            }
+        }
+
+        void watch() {
+            if (!stopped) {
+                request(QueryOptions.blockSeconds(waitSeconds, index).consistencyMode(consistencyMode).build(),
+                        this);
+            }
+        }
+
+        @Override
+        public void onComplete(ConsulResponse<T> consulResponse) {
+            this.lastResponseNanos = System.nanoTime();
+            this.backoff.reset();
+
+            boolean changed = handleIndex(consulResponse.getIndex());
+            try {
+                onResponse(consulResponse, changed);
+            } catch (RuntimeException e) {
+                log.severe("Exception while handling watch response: " + e.toString());
+            }
+
+            watch();
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            failures.incrementAndGet();
+            if (!(throwable instanceof ConnectException)) {
+                log.severe("Watch error: " + throwable.getLocalizedMessage());
+            }
+
+            if (!stopped) {
+                this.backoff.retry(this::watch);
+            }
+        }
+
+        /**
+         * @return true if the index changed. Index is reset, if it went backwards, e.g. after a restore of Consul
+         */
+        synchronized boolean handleIndex(BigInteger newIndex) {
+            BigInteger oldIndex = this.index;
+            if (newIndex == null) {
+                return true;
+            }
+
+            this.index = (newIndex.compareTo(oldIndex) < 0) ? BigInteger.ZERO : newIndex;
+
+            return !newIndex.equals(oldIndex);
+        }
+
+        synchronized boolean isOlder(BigInteger newIndex) {
+            return newIndex != null && newIndex.compareTo(this.index) < 0;
+        }
+
+        long getLagMs(long now) {
+            // Consul adds up to wait / 16 of jitter to the wait time
+            long expectedMs = waitSeconds * 1000L + waitSeconds * 1000L / 16;
+            long sinceLastResponseMs = TimeUnit.NANOSECONDS.toMillis(now - this.lastResponseNanos);
+
+            return Math.max(0, sinceLastResponseMs - expectedMs);
+        }
+    }
+
+    /**
+     * Healthy instances of a single service. Watched with its own blocking query, or read with regular queries, when
+     * the multiplexed watches detect a change.
+     */
+    private class ServiceWatch extends BlockingWatch<List<ServiceHealth>> {
+
+        private final String serviceKey;
+        private final ConsistencyMode consistencyMode;
+
+        private volatile List<ServiceHealth> health;
+        private volatile Set<String> nodes;
+
+        private final ConsulResponseCallback<List<ServiceHealth>> fetchCallback =
+                new ConsulResponseCallback<List<ServiceHealth>>() {
+
+                    private final ConsulRetryScheduler.Backoff backoff = retries.newBackoff();
+
+                    @Override
+                    public void onComplete(ConsulResponse<List<ServiceHealth>> consulResponse) {
+                        this.backoff.reset();
+
+                        // concurrent reads may complete out of order
+                        synchronized (ServiceWatch.this) {
+                            if (!isOlder(consulResponse.getIndex())) {
+                                onResponse(consulResponse, handleIndex(consulResponse.getIndex()));
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        failures.incrementAndGet();
+                        log.severe("Cannot read instances of service " + serviceKey + ": " +
+                                throwable.getLocalizedMessage());
+
+                        if (!stopped) {
+                            this.backoff.retry(ServiceWatch.this::fetch);
+                        }
+                    }
+                };
+
+        ServiceWatch(String serviceKey, ConsulResponse<List<ServiceHealth>> initial,
+                     ConsistencyMode consistencyMode) {
+            super(consistencyMode, initial.getIndex());
+            this.serviceKey = serviceKey;
+            this.consistencyMode = consistencyMode;
+            setHealth(initial.getResponse());
+        }
+
+        @Override
+        void request(QueryOptions queryOptions, ConsulResponseCallback<List<ServiceHealth>> callback) {
+            queryInstances(serviceKey, queryOptions, callback);
+        }
+
+        @Override
+        void onResponse(ConsulResponse<List<ServiceHealth>> response, boolean changed) {
+            if (changed) {
+                setHealth(response.getResponse());
+                listener.accept(serviceKey);
+            }
+        }
+
+        /**
+         * Reads healthy instances with a regular query.
+         */
+        void fetch() {
+            if (!stopped) {
+                queryInstances(serviceKey, ImmutableQueryOptions.builder().consistencyMode(consistencyMode).build(),
+                        fetchCallback);
+            }
+        }
+
+        private void setHealth(List<ServiceHealth> health) {
+            Set<String> healthNodes = new HashSet<>();
+            for (ServiceHealth serviceHealth : health) {
+                healthNodes.add(serviceHealth.getNode().getNode());
+            }
+
+            this.nodes = healthNodes;
+            this.health = Collections.unmodifiableList(health);
+        }
+
+        boolean isOnAnyNode(Set<String> changedNodes) {
+            if (changedNodes.isEmpty()) {
+                return false;
+            }
+
+            for (String node : this.nodes) {
+                if (changedNodes.contains(node)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Catalog-wide blocking query of health checks in any state. Checks are reduced to a fingerprint per service and
+     * per node (for node-level checks, e.g. serfHealth), services with changed fingerprints are read again.
+     */
+    private class ChecksWatch extends BlockingWatch<List<HealthCheck>> {
+
+        private Map<String, Integer> serviceFingerprints;
+        private Map<String, Integer> nodeFingerprints;
+
+        ChecksWatch() {
+            super(multiplexedConsistency, BigInteger.ZERO);
+        }
+
+        @Override
+        void request(QueryOptions queryOptions, ConsulResponseCallback<List<HealthCheck>> callback) {
+            healthClient.getChecksByState(State.ANY, queryOptions, callback);
+        }
+
+        @Override
+        void onResponse(ConsulResponse<List<HealthCheck>> response, boolean changed) {
+            if (!changed) {
+                return;
+            }
+
+            Map<String, Integer> newServiceFingerprints = new HashMap<>();
+            Map<String, Integer> newNodeFingerprints = new HashMap<>();
+            for (HealthCheck check : response.getResponse()) {
+                int fingerprint = Objects.hash(check.getNode(), check.getCheckId(), check.getStatus(),
+                        check.getServiceId().orElse(null), check.getServiceTags());
+
+                Optional<String> serviceName = check.getServiceName().filter(name -> !name.isEmpty());
+                if (serviceName.isPresent()) {
+                    newServiceFingerprints.merge(serviceName.get(), fingerprint, Integer::sum);
+                } else {
+                    newNodeFingerprints.merge(check.getNode(), fingerprint, Integer::sum);
+                }
+            }
+
+            if (this.serviceFingerprints == null) {
+                // changes between the initial reads of services and the first response are not known
+                Set<String> serviceNames = new HashSet<>();
+                for (String serviceKey : watches.keySet()) {
+                    serviceNames.add(ConsulUtils.getConsulServiceName(serviceKey));
+                }
+                refresh(serviceNames, Collections.emptySet());
+            } else {
+                refresh(changedKeys(this.serviceFingerprints, newServiceFingerprints),
+                        changedKeys(this.nodeFingerprints, newNodeFingerprints));
+            }
+
+            this.serviceFingerprints = newServiceFingerprints;
+            this.nodeFingerprints = newNodeFingerprints;
+        }
+    }
+
+    /**
+     * Catalog-wide blocking query of services and their tags. Detects services, which are registered or deregistered
+     * without health checks, and changed tags (e.g. versions).
+     */
+    private class CatalogWatch extends BlockingWatch<Map<String, List<String>>> {
+
+        private Map<String, List<String>> services;
+
+        CatalogWatch() {
+            super(multiplexedConsistency, BigInteger.ZERO);
+        }
+
+        @Override
+        void request(QueryOptions queryOptions, ConsulResponseCallback<Map<String, List<String>>> callback) {
+            catalogClient.getServices(queryOptions, callback);
+        }
+
+        @Override
+        void onResponse(ConsulResponse<Map<String, List<String>>> response, boolean changed) {
+            if (!changed) {
+                return;
+            }
+
+            Map<String, List<String>> newServices = response.getResponse();
+            if (this.services != null) {
+                refresh(changedKeys(this.services, newServices), Collections.emptySet());
+            }
+
+            this.services = newServices;
+        }
+    }
+
+    /**
+     * Recursive blocking query of the key-value prefix of services of an environment. Gateway URLs are parsed from
+     * keys {service}/{version}/gatewayUrl, other keys under the prefix (e.g. configuration) are ignored.
+     */
+    private class GatewayWatch extends BlockingWatch<List<Value>> {
+
+        private static final String GATEWAY_URL = "gatewayUrl";
+
+        private final String environment;
+        private final String prefix;
+
+        // endpoints are compared without resolving host names, URLs are created when gateway URLs are returned
+        private volatile Map<String, Endpoint> gatewayUrls;
+
+        GatewayWatch(String environment, List<Value> initial, ConsistencyMode consistencyMode) {
+            super(consistencyMode, BigInteger.ZERO);
+            this.environment = environment;
+            this.prefix = ConsulUtils.getServicesPrefix(environment);
+            this.gatewayUrls = parse(initial);
+        }
+
+        @Override
+        void request(QueryOptions queryOptions, ConsulResponseCallback<List<Value>> callback) {
+            kvClient.getValues(prefix, queryOptions, callback);
+        }
+
+        @Override
+        void onResponse(ConsulResponse<List<Value>> response, boolean changed) {
+            if (!changed) {
+                return;
+            }
+
+            Map<String, Endpoint> oldGatewayUrls = this.gatewayUrls;
+            Map<String, Endpoint> newGatewayUrls = parse(response.getResponse());
+
+            for (String key : changedKeys(oldGatewayUrls, newGatewayUrls)) {
+                Endpoint gatewayUrl = newGatewayUrls.get(key);
+                if (gatewayUrl != null) {
+                    log.info("Gateway URL of " + key + " in environment " + environment + " changed. New value: " +
+                            gatewayUrl);
+                } else {
+                    log.info("Gateway URL of " + key + " in environment " + environment + " deleted.");
+                }
+            }
+
+            this.gatewayUrls = newGatewayUrls;
+        }
+
+        /**
+         * @return gateway URLs by {service}/{version}
+         */
+        private Map<String, Endpoint> parse(List<Value> values) {
+            if (values == null || values.isEmpty()) {
+                return Collections.emptyMap();
+            }
+
+            Map<String, Endpoint> parsed = new HashMap<>();
+            for (Value value : values) {
+                String key = value.getKey();
+                int start = key.startsWith("/") ? 1 : 0;
+                if (!key.startsWith(prefix, start) || !key.endsWith("/" + GATEWAY_URL)) {
+                    continue;
+                }
+
+                // {service}/{version}
+                String serviceVersion = key.substring(start + prefix.length(),
+                        key.length() - GATEWAY_URL.length() - 1);
+                int separator = serviceVersion.indexOf('/');
+                if (separator <= 0 || separator == serviceVersion.length() - 1 ||
+                        serviceVersion.indexOf('/', separator + 1) >= 0) {
+                    continue;
+                }
+
+                Optional<String> gatewayUrl = value.getValueAsString();
+                if (gatewayUrl.isPresent()) {
+                    try {
+                        parsed.put(serviceVersion, Endpoint.parse(gatewayUrl.get()));
+                    } catch (MalformedURLException e) {
+                        log.severe("Malformed URL exception: " + e.getLocalizedMessage());
+                    }
+                }
+            }
+
+            return parsed;
+        }
+    }
+
+    private static <V> Set<String> changedKeys(Map<String, V> oldMap, Map<String, V> newMap) {
+        Set<String> changed = new HashSet<>();
+        oldMap.forEach((key, value) -> {
+            if (!Objects.equals(value, newMap.get(key))) {
+                changed.add(key);
+            }
+        });
+        newMap.forEach((key, value) -> {
+            if (!oldMap.containsKey(key)) {
+                changed.add(key);
+            }
+        });
+
+        return changed;
+    }
+
+    private ObjectName registerMXBean() {
+        try {
+            ObjectName name = new ObjectName("com.kumuluz.ee.discovery:type=Watches,name=consul");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+
+            return name;
+        } catch (JMException e) {
+            log.warning("Cannot register watch metrics: " + e.toString());
+            return null;
+        }
+    }
+}
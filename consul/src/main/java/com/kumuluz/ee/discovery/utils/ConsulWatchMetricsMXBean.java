@@ -0,0 +1,60 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.Map;
+
+/**
+ * JMX view of Consul watches of discovered services.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public interface ConsulWatchMetricsMXBean {
+
+    /**
+     * @return true if services are watched with shared catalog-wide blocking queries
+     */
+    boolean isMultiplexed();
+
+    /**
+     * @return number of watched services
+     */
+    int getWatchedServices();
+
+    /**
+     * @return number of blocking queries currently used by watches
+     */
+    int getBlockingQueries();
+
+    /**
+     * Blocking queries return at least once per wait time. Lag is the time a watch has been without a response for
+     * longer than that, e.g. because of connection errors.
+     *
+     * @return lag of each watched service in milliseconds, 0 for services watched without lag
+     */
+    Map<String, Long> getWatchLagMs();
+
+    /**
+     * @return number of failed watch requests
+     */
+    long getWatchFailures();
+}
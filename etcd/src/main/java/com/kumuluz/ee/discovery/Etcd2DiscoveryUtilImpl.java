@@ -23,18 +23,18 @@ package com.kumuluz.ee.discovery;
 import com.kumuluz.ee.common.config.EeConfig;
 import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
 import com.kumuluz.ee.discovery.enums.AccessType;
+import com.kumuluz.ee.discovery.enums.ReadConsistency;
+import com.kumuluz.ee.discovery.exceptions.EtcdErrorResponseException;
 import com.kumuluz.ee.discovery.exceptions.EtcdNotAvailableException;
 import com.kumuluz.ee.discovery.utils.*;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
 import mousio.client.promises.ResponsePromise;
 import mousio.client.retry.RetryNTimes;
 import mousio.client.retry.RetryOnce;
 import mousio.client.retry.RetryPolicy;
 import mousio.client.retry.RetryWithExponentialBackOff;
 import mousio.etcd4j.EtcdClient;
-import mousio.etcd4j.EtcdSecurityContext;
 import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.requests.EtcdKeyGetRequest;
 import mousio.etcd4j.responses.EtcdAuthenticationException;
 import mousio.etcd4j.responses.EtcdErrorCode;
 import mousio.etcd4j.responses.EtcdException;
@@ -42,15 +42,12 @@ import mousio.etcd4j.responses.EtcdKeysResponse;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
-import javax.net.ssl.SSLException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.*;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,21 +63,55 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
     private static final Logger log = Logger.getLogger(Etcd2DiscoveryUtilImpl.class.getName());
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final ScheduledExecutorService resyncScheduler = Executors.newSingleThreadScheduledExecutor();
+    // blocking requests of leader elections, so they do not delay heartbeats on the scheduler
+    private final ExecutorService electionExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "kumuluzee-discovery-etcd-election");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
 
     private List<Etcd2ServiceConfiguration> registeredServices;
-    private Map<String, ScheduledFuture> registratorHandles;
-
-    private Map<String, Map<String, Etcd2Service>> serviceInstances;
-    private Map<String, List<String>> serviceVersions;
-    private Map<String, URL> gatewayUrls;
-
-    private Map<String, Etcd2Service> lastKnownServices;
-    private Map<String, String> lastKnownVersions;
+    private Map<String, HeartbeatScheduler> registratorHandles;
+    private Map<String, Etcd2Registrator> registrators;
+    private List<Etcd2LeaderElection> leaderElections;
+
+    // reads of a version, which was listed shallowly, if watch events are skipped during the reads
+    private static final int MAX_VERSION_READS = 3;
+    private static final ThreadLocal<Etcd2KeyParser> keyParser = ThreadLocal.withInitial(Etcd2KeyParser::new);
+
+    private Etcd2Registry registry;
+    private Map<String, AtomicLong> watchIndexes;
+    private final Set<String> pendingResyncs = ConcurrentHashMap.newKeySet();
+    private WatchEventExecutor<Etcd2WatchEvent> watchEvents;
+    private SnapshotDebouncer<Etcd2VersionNode> snapshotDebouncer;
+
+    private boolean mirrorEnvironments;
+    private Set<String> mirrorIncludedServices;
+    private Set<String> mirrorExcludedServices;
+    private Set<String> mirroredEnvironments;
+
+    private boolean shallowVersions;
+
+    private ReadConsistencyConfiguration readConsistency;
+    private Etcd2IndexWatermark indexWatermark;
+    private StaleServingPolicy staleServing;
+    private EndpointAddressRefresher addressRefresher;
+    private DeadlineLookupExecutor deadlineLookups;
+    private long lookupDeadlineMs;
+    private WeightedRoundRobin weightedRoundRobin;
 
     private EtcdClient etcd;
+    private SharedClientRegistry.Lease<Etcd2Transport> transport;
+    private Etcd2EndpointManager endpoints;
+    private Etcd2LeanClient leanClient;
+    private Map<String, Etcd2LeanClient.Watch> leanWatches;
     private RetryPolicy initialRequestRetryPolicy;
 
+    private int startRetryDelay;
+    private int maxRetryDelay;
+
     private String clusterId;
 
     private boolean resilience;
@@ -90,51 +121,30 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
         this.registeredServices = new LinkedList<>();
         this.registratorHandles = new HashMap<>();
-
-        this.serviceInstances = new HashMap<>();
-        this.serviceVersions = new HashMap<>();
-        this.gatewayUrls = new HashMap<>();
-        this.lastKnownServices = new HashMap<>();
-        this.lastKnownVersions = new HashMap<>();
-
-        // get user credentials
-        String etcdUsername = configurationUtil.get("kumuluzee.discovery.etcd.username").orElse(null);
-        String etcdPassword = configurationUtil.get("kumuluzee.discovery.etcd.password").orElse(null);
-
-        // get CA certificate
-        String cert = configurationUtil.get("kumuluzee.discovery.etcd.ca").orElse(null);
-        SslContext sslContext = null;
-        if (cert != null) {
-
-            cert = cert.replaceAll("\\s+", "").replace("-----BEGINCERTIFICATE-----", "")
-                    .replace("-----ENDCERTIFICATE-----", "");
-
-            byte[] decoded = Base64.getDecoder().decode(cert);
-
-            try {
-                X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
-                        .generateCertificate(new ByteArrayInputStream(decoded));
-
-                sslContext = SslContextBuilder.forClient().trustManager(certificate).build();
-
-            } catch (CertificateException e) {
-                log.severe("Certificate exception: " + e.toString());
-            } catch (SSLException e) {
-                log.severe("SSL exception: " + e.toString());
-            }
-        }
-
-        // initialize security context
-        EtcdSecurityContext etcdSecurityContext = null;
-        if (etcdUsername != null && !etcdUsername.isEmpty() && etcdPassword != null && !etcdPassword.isEmpty()) {
-            if (sslContext != null) {
-                etcdSecurityContext = new EtcdSecurityContext(sslContext, etcdUsername, etcdPassword);
-            } else {
-                etcdSecurityContext = new EtcdSecurityContext(etcdUsername, etcdPassword);
-            }
-        } else if (sslContext != null) {
-            etcdSecurityContext = new EtcdSecurityContext(sslContext);
-        }
+        this.registrators = new HashMap<>();
+        this.leaderElections = new CopyOnWriteArrayList<>();
+
+        this.registry = new Etcd2Registry();
+        this.watchIndexes = new ConcurrentHashMap<>();
+        this.leanWatches = new ConcurrentHashMap<>();
+
+        this.mirrorEnvironments = configurationUtil.getBoolean("kumuluzee.discovery.etcd.mirror.enabled")
+                .orElse(false);
+        this.mirrorIncludedServices = getServiceNameSet("kumuluzee.discovery.etcd.mirror.include-services");
+        this.mirrorExcludedServices = getServiceNameSet("kumuluzee.discovery.etcd.mirror.exclude-services");
+        this.mirroredEnvironments = ConcurrentHashMap.newKeySet();
+
+        this.shallowVersions = configurationUtil.getBoolean("kumuluzee.discovery.etcd.shallow-versions")
+                .orElse(false);
+
+        this.readConsistency = new ReadConsistencyConfiguration(configurationUtil, "etcd");
+        this.indexWatermark = new Etcd2IndexWatermark(readConsistency.getLargestMaxStalenessMs());
+        this.staleServing = new StaleServingPolicy(configurationUtil, "etcd");
+        this.addressRefresher = new EndpointAddressRefresher("kumuluzee-discovery-etcd-address-refresh",
+                InitializationUtils.getAddressRefreshIntervalMs(configurationUtil, "etcd"), this::forEachEndpoint);
+        this.deadlineLookups = new DeadlineLookupExecutor("kumuluzee-discovery-etcd-lookup");
+        this.lookupDeadlineMs = InitializationUtils.getLookupDeadlineMs(configurationUtil, "etcd");
+        this.weightedRoundRobin = new WeightedRoundRobin();
 
         // get etcd host names
         String etcdUrls = configurationUtil.get("kumuluzee.discovery.etcd.hosts").orElse(null);
@@ -150,24 +160,15 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
                 log.warning("Using an odd number of etcd hosts is recommended. See etcd documentation.");
             }
 
-            if (etcdSecurityContext != null) {
-
-                etcd = new EtcdClient(etcdSecurityContext, etcdHosts);
-
-            } else {
-
-                etcd = new EtcdClient(etcdHosts);
-
-            }
-
             this.resilience = configurationUtil.getBoolean("kumuluzee.discovery.resilience").orElse(true);
 
-            int startRetryDelay = InitializationUtils.getStartRetryDelayMs(configurationUtil, "etcd");
-            int maxRetryDelay = InitializationUtils.getMaxRetryDelayMs(configurationUtil, "etcd");
+            this.startRetryDelay = InitializationUtils.getStartRetryDelayMs(configurationUtil, "etcd");
+            this.maxRetryDelay = InitializationUtils.getMaxRetryDelayMs(configurationUtil, "etcd");
 
             RetryPolicy defaultRetryPolicy = new RetryWithExponentialBackOff(startRetryDelay, -1,
                     maxRetryDelay);
-            etcd.setRetryHandler(defaultRetryPolicy);
+            // requests to a single member retry once, then the next best member is used
+            RetryPolicy memberRetryPolicy = new RetryWithExponentialBackOff(startRetryDelay, 1, maxRetryDelay);
 
             RetryPolicy zeroRetryPolicy = new RetryNTimes(1, 0);
 
@@ -184,10 +185,57 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
             if (!resilience) {
                 // set default and initial request retry policies to zero retry
-                etcd.setRetryHandler(zeroRetryPolicy);
+                defaultRetryPolicy = zeroRetryPolicy;
+                memberRetryPolicy = zeroRetryPolicy;
                 this.initialRequestRetryPolicy = zeroRetryPolicy;
             }
 
+            // get user credentials and CA certificate
+            String etcdUsername = configurationUtil.get("kumuluzee.discovery.etcd.username").orElse(null);
+            String etcdPassword = configurationUtil.get("kumuluzee.discovery.etcd.password").orElse(null);
+            String cert = configurationUtil.get("kumuluzee.discovery.etcd.ca").orElse(null);
+
+            // event loop and TLS context are shared with other clients of the same cluster
+            this.transport = Etcd2Transport.acquire(etcdUrls, cert, etcdUsername, etcdPassword);
+
+            this.endpoints = new Etcd2EndpointManager(etcdHosts, transport.get()::createClient, defaultRetryPolicy,
+                    memberRetryPolicy,
+                    configurationUtil.getInteger("kumuluzee.discovery.etcd.endpoint-probe-interval-ms").orElse(5000),
+                    configurationUtil.getInteger("kumuluzee.discovery.etcd.endpoint-failure-threshold").orElse(3),
+                    configurationUtil.getInteger("kumuluzee.discovery.etcd.endpoint-circuit-open-ms").orElse(30000));
+            this.etcd = endpoints.getClusterClient();
+
+            // reads and watches of discovered services can use the lean client, other requests always use etcd4j
+            String client = configurationUtil.get("kumuluzee.discovery.etcd.client").orElse("etcd4j");
+            if ("lean".equalsIgnoreCase(client)) {
+                log.info("Using lean etcd client for service discovery.");
+                this.leanClient = new Etcd2LeanClient(etcdHosts, endpoints::getReadHost,
+                        transport.get().getEventLoopGroup(), transport.get().getSslContext(), etcdUsername,
+                        etcdPassword, configurationUtil.getInteger("kumuluzee.discovery.etcd.lean-client.timeout-ms")
+                        .orElse(10000));
+            } else if (!"etcd4j".equalsIgnoreCase(client)) {
+                log.warning("Unknown etcd client " + client + ", using etcd4j.");
+            }
+
+            // watch events are applied in batches on a dedicated thread, overflowing watches are resynchronised
+            this.watchEvents = new WatchEventExecutor<>("kumuluzee-discovery-etcd-watch",
+                    InitializationUtils.getWatchQueueSize(configurationUtil, "etcd"),
+                    InitializationUtils.getWatchBatchSize(configurationUtil, "etcd"), this::applyWatchEvents,
+                    event -> scheduleResync(event.getWatchedKey()));
+
+            // bursts of instance changes of a version are published as a single snapshot
+            this.snapshotDebouncer = new SnapshotDebouncer<>("kumuluzee-discovery-etcd-publish",
+                    InitializationUtils.getCoalescingWindowMs(configurationUtil, "etcd"),
+                    InitializationUtils.getCoalescingMaxDelayMs(configurationUtil, "etcd"));
+
+            // periodically compare watched keys with etcd, in case a watch missed an event
+            int antiEntropyInterval = configurationUtil
+                    .getInteger("kumuluzee.discovery.etcd.anti-entropy-interval-s").orElse(300);
+            if (antiEntropyInterval > 0) {
+                resyncScheduler.scheduleWithFixedDelay(this::checkWatchedKeys, antiEntropyInterval,
+                        antiEntropyInterval, TimeUnit.SECONDS);
+            }
+
         } else {
             log.severe("No etcd server hosts provided. Specify hosts with configuration key " +
                     "kumuluzee.discovery.etcd.hosts in format " +
@@ -197,6 +245,21 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         this.clusterId = configurationUtil.get("kumuluzee.discovery.cluster").orElse(null);
     }
 
+    private Set<String> getServiceNameSet(String configurationKey) {
+        Set<String> serviceNames = new HashSet<>();
+
+        String value = configurationUtil.get(configurationKey).orElse(null);
+        if (value != null) {
+            for (String serviceName : value.split(",")) {
+                if (!serviceName.trim().isEmpty()) {
+                    serviceNames.add(serviceName.trim());
+                }
+            }
+        }
+
+        return serviceNames;
+    }
+
     @Override
     public void register(String serviceName, String version, String environment, long ttl,
                          long pingInterval, boolean singleton, String baseUrl, String serviceId) {
@@ -289,13 +352,18 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         }
 
         Etcd2ServiceConfiguration serviceConfiguration = new Etcd2ServiceConfiguration(serviceName, version,
-                environment, (int) ttl, singleton, baseUrl, containerUrl, this.clusterId, serviceId);
+                environment, (int) ttl, singleton, baseUrl, containerUrl, this.clusterId,
+                InitializationUtils.getWeight(configurationUtil, "etcd"), serviceId);
 
         this.registeredServices.add(serviceConfiguration);
 
-        Etcd2Registrator registrator = new Etcd2Registrator(etcd, serviceConfiguration, resilience);
-        ScheduledFuture handle = scheduler.scheduleWithFixedDelay(registrator, 0, pingInterval, TimeUnit.SECONDS);
+        Etcd2Registrator registrator = new Etcd2Registrator(this::getWriteClient, serviceConfiguration, resilience,
+                scheduler, electionExecutor);
+        HeartbeatScheduler handle = new HeartbeatScheduler(scheduler, serviceName, ttl, pingInterval,
+                registrator::heartbeat);
+        handle.start();
         this.registratorHandles.put(serviceId, handle);
+        this.registrators.put(serviceId, registrator);
     }
 
     @Override
@@ -309,17 +377,24 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
     @Override
     public void deregister() {
 
-        for (ScheduledFuture handle : this.registratorHandles.values()) {
-            handle.cancel(true);
+        for (HeartbeatScheduler handle : this.registratorHandles.values()) {
+            handle.stop();
         }
 
         if (etcd != null) {
+            for (Etcd2Registrator registrator : this.registrators.values()) {
+                registrator.close();
+            }
+            for (LeaderElection leaderElection : this.leaderElections) {
+                leaderElection.close();
+            }
+
             for (Etcd2ServiceConfiguration serviceConfiguration : this.registeredServices) {
                 log.info("Deregistering service with etcd. Service name: " + serviceConfiguration.getServiceName() +
                         " Service ID: " + serviceConfiguration.getServiceKeyUrl());
 
                 try {
-                    etcd.deleteDir(serviceConfiguration.getServiceInstanceKey()).recursive()
+                    getWriteClient().deleteDir(serviceConfiguration.getServiceInstanceKey()).recursive()
                             .setRetryPolicy(new RetryOnce(0))
                             .send().get();
                 } catch (IOException | EtcdException | EtcdAuthenticationException | TimeoutException e) {
@@ -328,12 +403,21 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
             }
 
             log.info("Closing etcd connection for Discovery extension.");
-            try {
-                etcd.close();
-                etcd = null;
-            } catch (IOException e) {
-                log.severe("Could not close etcd extension. Exception: " + e.getMessage());
+            resyncScheduler.shutdownNow();
+            electionExecutor.shutdown();
+            watchEvents.shutdown();
+            snapshotDebouncer.shutdown();
+            staleServing.shutdown();
+            addressRefresher.shutdown();
+            deadlineLookups.shutdown();
+            if (leanClient != null) {
+                leanClient.close();
+                leanClient = null;
             }
+            endpoints.close();
+            transport.close();
+            etcd = null;
+            endpoints = null;
         }
     }
 
@@ -342,9 +426,14 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
         log.log(Level.INFO, "Deregistering service with etcd. Service id: {0}", serviceId);
 
-        ScheduledFuture handle = this.registratorHandles.remove(serviceId);
+        HeartbeatScheduler handle = this.registratorHandles.remove(serviceId);
         if (handle != null) {
-            handle.cancel(true);
+            handle.stop();
+        }
+
+        Etcd2Registrator registrator = this.registrators.remove(serviceId);
+        if (registrator != null && etcd != null) {
+            registrator.close();
         }
 
         if (etcd != null) {
@@ -352,7 +441,7 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
             for (Etcd2ServiceConfiguration service : this.registeredServices) {
                 if (service.getServiceInstanceKey().endsWith(serviceId)) {
                     try {
-                        etcd.deleteDir(service.getServiceInstanceKey()).recursive()
+                        getWriteClient().deleteDir(service.getServiceInstanceKey()).recursive()
                                 .setRetryPolicy(new RetryOnce(0))
                                 .send().get();
                     } catch (IOException | EtcdException | EtcdAuthenticationException | TimeoutException e) {
@@ -367,106 +456,315 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
     public Optional<List<URL>> getServiceInstances(String serviceName, String version,
                                                    String environment, AccessType accessType) {
 
-        version = CommonUtils.determineVersion(this, serviceName, version, environment);
+        return getServiceInstances(serviceName, version, environment, accessType, this.lookupDeadlineMs);
+    }
 
-        if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" + environment)) {
+    @Override
+    public Optional<List<URL>> getServiceInstances(String serviceName, String version, String environment,
+                                                   AccessType accessType, long deadlineMs) {
 
-            EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(etcd, Etcd2Utils.getServiceKeyInstances
-                    (environment, serviceName, version), this.initialRequestRetryPolicy, this.resilience);
+        if (deadlineMs <= 0 || isCached(serviceName, version, environment)) {
+            return lookupServiceInstances(serviceName, version, environment, accessType);
+        }
 
-            HashMap<String, Etcd2Service> serviceUrls = new HashMap<>();
-            if (etcdKeysResponse != null) {
-                for (EtcdKeysResponse.EtcdNode node : etcdKeysResponse.getNode().getNodes()) {
+        return this.deadlineLookups.lookup(environment + "/" + serviceName + "/" + version + "/" + accessType,
+                deadlineMs, () -> lookupServiceInstances(serviceName, version, environment, accessType),
+                () -> getKnownServiceInstances(serviceName, version, environment, accessType));
+    }
 
-                    String url = null;
-                    String containerUrlString = null;
-                    String clusterId = null;
-                    boolean isActive = true;
-                    for (EtcdKeysResponse.EtcdNode instanceNode : node.getNodes()) {
+    /**
+     * @return true if the lookup can be answered from the registry, without reading etcd
+     */
+    private boolean isCached(String serviceName, String version, String environment) {
 
-                        if ("url".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                instanceNode.getValue() != null) {
-                            url = instanceNode.getValue();
-                        }
+        if (this.mirrorEnvironments && isMirrored(serviceName) && !this.mirroredEnvironments.contains(environment)) {
+            return false;
+        }
 
-                        if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                instanceNode.getValue() != null) {
-                            containerUrlString = instanceNode.getValue();
-                        }
+        Etcd2ServiceNode serviceNode = this.registry.getService(environment, serviceName);
+        if (serviceNode == null) {
+            return false;
+        }
 
-                        if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                instanceNode.getValue() != null && !instanceNode.getValue().isEmpty()) {
-                            clusterId = instanceNode.getValue();
-                        }
+        // versions are only needed to resolve version ranges
+        boolean[] versionsLoaded = {true};
+        String resolvedVersion = CommonUtils.determineVersion(version, () -> {
+            versionsLoaded[0] = serviceNode.isVersionsLoaded();
+            return versionsLoaded[0] ? Optional.of(getPresentVersions(serviceNode)) : Optional.empty();
+        });
 
-                        if ("status".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                "disabled".equals(instanceNode.getValue())) {
-                            isActive = false;
-                        }
+        Etcd2VersionNode versionNode = serviceNode.getVersion(resolvedVersion);
+        if (!versionsLoaded[0] || versionNode == null || !versionNode.isInstancesLoaded()) {
+            return false;
+        }
 
-                    }
-                    if (isActive && url != null) {
-                        try {
-                            URL containerUrl = (containerUrlString == null || containerUrlString.isEmpty()) ?
-                                    null : new URL(containerUrlString);
-                            serviceUrls.put(node.getKey() + "/url",
-                                    new Etcd2Service(new URL(url), containerUrl, clusterId));
-                        } catch (MalformedURLException e) {
-                            log.severe("Malformed URL exception: " + e.toString());
-                        }
-                    }
-                }
+        if (this.shallowVersions && !resolvedVersion.equals(version) && !versionNode.hasActiveInstances()) {
+            // version would be resolved again
+            return false;
+        }
+
+        // gateway URL is read, if the version has instances
+        return versionNode.isGatewayUrlLoaded() || serviceNode.isVersionsLoaded() ||
+                (!versionNode.hasActiveInstances() && versionNode.getLastKnownInstances() == null);
+    }
+
+    /**
+     * Answers a lookup with instances known to the registry, without reading etcd.
+     */
+    private Optional<List<URL>> getKnownServiceInstances(String serviceName, String version, String environment,
+                                                         AccessType accessType) {
+
+        if (isCached(serviceName, version, environment)) {
+            return lookupServiceInstances(serviceName, version, environment, accessType);
+        }
+
+        Etcd2ServiceNode serviceNode = this.registry.getService(environment, serviceName);
+        Etcd2VersionNode versionNode = (serviceNode == null) ? null : serviceNode.getVersion(version);
+        if (versionNode == null || !versionNode.isInstancesLoaded()) {
+            return Optional.of(new LinkedList<>());
+        }
+
+        return Optional.of(getInstanceUrls(getPresentServices(serviceNode, versionNode),
+                versionNode.isGatewayUrlLoaded() ? versionNode.getGatewayUrl() : null, accessType));
+    }
+
+    private Optional<List<URL>> lookupServiceInstances(String serviceName, String version, String environment,
+                                                       AccessType accessType) {
 
-                this.serviceInstances.put(serviceName + "_" + version + "_" + environment, serviceUrls);
+        mirrorEnvironment(environment, serviceName);
 
-                if (!this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-                    // we are already watching all versions, no need to watch specific version
-                    watchServiceInstances(Etcd2Utils.getServiceKeyInstances(environment, serviceName, version),
-                            etcdKeysResponse.etcdIndex + 1);
+        String resolvedVersion = CommonUtils.determineVersion(this, serviceName, version, environment);
+
+        Etcd2ServiceNode serviceNode = this.registry.getOrCreateService(environment, serviceName);
+        Etcd2VersionNode versionNode = getLoadedVersion(serviceNode, resolvedVersion);
+
+        if (this.shallowVersions && !resolvedVersion.equals(version)) {
+            // listed versions are resolved before their instances are known, if the resolved version turns out to
+            // have no instances, resolve again from the remaining versions
+            Set<String> resolvedVersions = new HashSet<>();
+            while (!versionNode.hasActiveInstances() && resolvedVersions.add(resolvedVersion)) {
+                String nextVersion = CommonUtils.determineVersion(this, serviceName, version, environment);
+                if (resolvedVersions.contains(nextVersion)) {
+                    break;
                 }
+
+                resolvedVersion = nextVersion;
+                versionNode = getLoadedVersion(serviceNode, resolvedVersion);
             }
         }
 
-        Map<String, Etcd2Service> presentServices = this.serviceInstances
-                .get(serviceName + "_" + version + "_" + environment);
-        if ((presentServices == null || presentServices.size() == 0) && this.lastKnownServices
-                .containsKey(serviceName + "_" + version + "_" + environment)) {
-            // if no services are present, use the last known service
-            log.log(Level.WARNING, "No instances of {0} found, using last known service.", serviceName);
-            presentServices = Collections.singletonMap("lastKnownService", this.lastKnownServices
-                    .get(serviceName + "_" + version + "_" + environment));
+        List<Etcd2Service> presentServices = getPresentServices(serviceNode, versionNode);
+        Endpoint gatewayUrl = presentServices.isEmpty() ? null : getGatewayUrl(serviceNode, versionNode);
+
+        return Optional.of(getInstanceUrls(presentServices, gatewayUrl, accessType));
+    }
+
+    private List<Etcd2Service> getPresentServices(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode) {
+
+        List<Etcd2Service> presentServices = versionNode.getActiveInstances();
+        if (presentServices.isEmpty() && versionNode.getLastKnownInstances() != null) {
+            // if no services are present, serve the last known services and revalidate them in the background
+            presentServices = this.staleServing.serve(serviceNode.getServiceName(),
+                    versionNode.getLastKnownInstances());
+            if (!presentServices.isEmpty()) {
+                revalidateLastKnownInstances(serviceNode, versionNode);
+            }
         }
 
+        return presentServices;
+    }
+
+    private List<URL> getInstanceUrls(List<Etcd2Service> presentServices, Endpoint gatewayUrl,
+                                      AccessType accessType) {
+
         List<URL> instances = new LinkedList<>();
 
-        if (presentServices != null && presentServices.size() > 0) {
-            URL gatewayUrl = getGatewayUrl(serviceName, version, environment);
+        if (!presentServices.isEmpty()) {
             if (accessType == AccessType.GATEWAY && gatewayUrl != null) {
-                instances.add(gatewayUrl);
+                instances.add(gatewayUrl.toUrl());
             } else {
-                for (Etcd2Service service : presentServices.values()) {
+                for (Etcd2Service service : presentServices) {
                     if (this.clusterId != null && this.clusterId.equals(service.getClusterId())) {
-                        instances.add(service.getContainerUrl());
+                        instances.add(service.getContainerUrl().toUrl());
                     } else {
-                        instances.add(service.getBaseUrl());
+                        instances.add(service.getBaseUrl().toUrl());
+                    }
+                }
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Passes endpoints of all instances and gateway URLs in the registry to the action.
+     */
+    private void forEachEndpoint(Consumer<Endpoint> action) {
+        this.registry.forEachService(serviceNode -> serviceNode.getVersions().forEach((version, versionNode) -> {
+            versionNode.getInstances().forEach((instanceId, service) -> {
+                if (service.getBaseUrl() != null) {
+                    action.accept(service.getBaseUrl());
+                }
+                if (service.getContainerUrl() != service.getBaseUrl()) {
+                    action.accept(service.getContainerUrl());
+                }
+            });
+            if (versionNode.getGatewayUrl() != null) {
+                action.accept(versionNode.getGatewayUrl());
+            }
+        }));
+    }
+
+    private Etcd2VersionNode getLoadedVersion(Etcd2ServiceNode serviceNode, String version) {
+        Etcd2VersionNode versionNode = serviceNode.getOrCreateVersion(version);
+
+        if (!versionNode.isInstancesLoaded()) {
+            synchronized (versionNode.getLoadLock()) {
+                if (!versionNode.isInstancesLoaded()) {
+                    loadServiceInstances(serviceNode, versionNode);
+                }
+            }
+        }
+
+        return versionNode;
+    }
+
+    private void revalidateLastKnownInstances(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode) {
+        String instancesKey = Etcd2Utils.getServiceKeyInstances(serviceNode.getEnvironment(),
+                serviceNode.getServiceName(), versionNode.getVersion());
+
+        this.staleServing.revalidate(instancesKey, new StaleServingPolicy.Revalidation<Etcd2Service>() {
+            @Override
+            public LastKnownInstances<Etcd2Service> getLastKnown() {
+                return versionNode.getLastKnownInstances();
+            }
+
+            @Override
+            public boolean replaceLastKnown(LastKnownInstances<Etcd2Service> expected,
+                                            LastKnownInstances<Etcd2Service> updated) {
+                return versionNode.replaceLastKnownInstances(expected, updated);
+            }
+
+            @Override
+            public void refresh() {
+                refreshServiceInstances(serviceNode, versionNode, instancesKey);
+            }
+
+            @Override
+            public Endpoint getEndpoint(Etcd2Service instance) {
+                return instance.getBaseUrl();
+            }
+        });
+    }
+
+    /**
+     * Reads instances of a version, which has no active instances, in case a watch missed their registration.
+     * The read is not applied, if a watch covering the version already applied newer events.
+     */
+    private void refreshServiceInstances(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode,
+                                         String instancesKey) {
+        Etcd2DirectorySnapshot snapshot = readDir(instancesKey, true, serviceNode.getServiceName());
+        if (snapshot == null) {
+            return;
+        }
+
+        long etcdIndex = snapshot.getEtcdIndex();
+        if (isStale(instancesKey, etcdIndex) || isStale(getEnvironmentKey(serviceNode.getEnvironment()), etcdIndex) ||
+                isStale(getServiceKeyVersions(serviceNode.getEnvironment(), serviceNode.getServiceName()),
+                        etcdIndex)) {
+            return;
+        }
+
+        int changes = applyServiceInstances(serviceNode, versionNode, snapshot);
+        if (changes > 0) {
+            log.log(Level.WARNING, "Revalidated instances of {0} with etcd. Changed entries: {1}",
+                    new Object[]{instancesKey, changes});
+        }
+    }
+
+    private void loadServiceInstances(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode) {
+
+        if (serviceNode.isVersionsLoaded()) {
+            if (versionNode.isListed()) {
+                // versions were listed shallowly, load the version, which is watched together with all versions
+                String versionKey = Etcd2Utils.getServiceKeyVersion(serviceNode.getEnvironment(),
+                        serviceNode.getServiceName(), versionNode.getVersion());
+
+                // watch events are not blocked by the read, the version is read again if the read missed an event
+                versionNode.beginLoad();
+                try {
+                    for (int read = 1; read <= MAX_VERSION_READS; read++) {
+                        Etcd2DirectorySnapshot snapshot = readDir(versionKey, true, serviceNode.getServiceName());
+                        if (snapshot == null) {
+                            return;
+                        }
+
+                        versionNode.setLoadedIndex(snapshot.getEtcdIndex());
+                        applyVersion(serviceNode, versionNode.getVersion(),
+                                snapshot.getVersion(serviceNode.getServiceName(), versionNode.getVersion()),
+                                snapshot.getEtcdIndex());
+                        if (!versionNode.hasSkippedEvents(snapshot.getEtcdIndex())) {
+                            return;
+                        }
                     }
+                    log.log(Level.WARNING, "Version {0} changed during {1} reads, changes are applied by the " +
+                            "anti-entropy check.", new Object[]{versionKey, MAX_VERSION_READS});
+                } finally {
+                    versionNode.endLoad();
                 }
+            } else {
+                // all versions are loaded and watched, so the version has no instances
+                versionNode.replaceInstances(Etcd2SegmentMap.empty(), 0);
+            }
+            return;
+        }
+
+        String instancesKey = Etcd2Utils.getServiceKeyInstances(serviceNode.getEnvironment(),
+                serviceNode.getServiceName(), versionNode.getVersion());
+
+        Etcd2DirectorySnapshot snapshot = readDir(instancesKey, true, serviceNode.getServiceName());
+
+        if (snapshot != null) {
+            applyServiceInstances(serviceNode, versionNode, snapshot);
+
+            if (!serviceNode.isVersionsLoaded()) {
+                // we are already watching all versions, no need to watch specific version
+                watchServiceInstances(instancesKey, snapshot.getEtcdIndex() + 1);
             }
         }
-        return Optional.of(instances);
     }
 
-    private URL getGatewayUrl(String serviceName, String version, String environment) {
-        if (!this.gatewayUrls.containsKey(serviceName + "_" + version + "_" + environment)) {
-            URL gatewayUrl = null;
+    /**
+     * Replaces instances of a version with instances read from the instances directory.
+     *
+     * @return number of changed instances
+     */
+    private int applyServiceInstances(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode,
+                                      Etcd2DirectorySnapshot snapshot) {
+        Etcd2DirectorySnapshot.Version version = snapshot.getVersion(serviceNode.getServiceName(),
+                versionNode.getVersion());
+
+        return versionNode.replaceInstances((version == null) ? Etcd2SegmentMap.empty() :
+                Etcd2SegmentMap.of(version.getInstances()), snapshot.getEtcdIndex());
+    }
+
+    private Endpoint getGatewayUrl(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode) {
+        if (!versionNode.isGatewayUrlLoaded() && serviceNode.isVersionsLoaded() && versionNode.isInstancesLoaded()) {
+            // all versions are loaded and watched, so the version has no gateway URL
+            versionNode.setGatewayUrl(null);
+        }
+
+        if (!versionNode.isGatewayUrlLoaded()) {
+            String gatewayKey = getGatewayKey(serviceNode.getEnvironment(), serviceNode.getServiceName(),
+                    versionNode.getVersion());
+
+            Endpoint gatewayUrl = null;
 
             long index = 0;
             try {
-                EtcdKeysResponse etcdKeysResponse = etcd.get(getGatewayKey(environment, serviceName, version))
-                        .setRetryPolicy(this.initialRequestRetryPolicy).send().get();
+                EtcdKeysResponse etcdKeysResponse = getKey(gatewayKey, serviceNode.getServiceName());
                 index = etcdKeysResponse.getNode().getModifiedIndex();
 
-                gatewayUrl = new URL(etcdKeysResponse.getNode().getValue());
+                gatewayUrl = Endpoint.parse(etcdKeysResponse.getNode().getValue());
             } catch (SocketException | TimeoutException e) {
                 String message = "Timeout exception. Cannot read given key in specified time or retry-count " +
                         "constraints.";
@@ -488,12 +786,14 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
                 log.severe("Etcd authentication exception. Cannot read given key: " + e);
             }
 
-            this.gatewayUrls.put(serviceName + "_" + version + "_" + environment, gatewayUrl);
-            watchServiceInstances(getGatewayKey(environment, serviceName, version), index);
+            versionNode.setGatewayUrl(gatewayUrl);
+            if (!serviceNode.isVersionsLoaded()) {
+                watchServiceInstances(gatewayKey, index);
+            }
 
             return gatewayUrl;
         } else {
-            return this.gatewayUrls.get(serviceName + "_" + version + "_" + environment);
+            return versionNode.getGatewayUrl();
         }
     }
 
@@ -504,7 +804,48 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         Optional<List<URL>> optionalServiceInstances = getServiceInstances(serviceName, version, environment,
                 accessType);
 
-        return optionalServiceInstances.flatMap(CommonUtils::pickServiceInstanceRoundRobin);
+        return optionalServiceInstances.flatMap(instances -> pickServiceInstance(serviceName, version, environment,
+                instances));
+    }
+
+    @Override
+    public Optional<URL> getServiceInstance(String serviceName, String version, String environment,
+                                            AccessType accessType, long deadlineMs) {
+
+        Optional<List<URL>> optionalServiceInstances = getServiceInstances(serviceName, version, environment,
+                accessType, deadlineMs);
+
+        return optionalServiceInstances.flatMap(instances -> pickServiceInstance(serviceName, version, environment,
+                instances));
+    }
+
+    /**
+     * Picks an instance by weights of the instances. If all instances have the default weight, instances are picked
+     * round-robin. Weights are looked up in all loaded versions of the service, since returned instances do not carry
+     * the resolved version.
+     */
+    private Optional<URL> pickServiceInstance(String serviceName, String version, String environment,
+                                              List<URL> instances) {
+
+        Map<Endpoint, Integer> weights = new HashMap<>();
+        Etcd2ServiceNode serviceNode = this.registry.getService(environment, serviceName);
+        if (serviceNode != null) {
+            for (Etcd2VersionNode versionNode : serviceNode.getVersions().values()) {
+                for (Etcd2Service service : versionNode.getActiveInstances()) {
+                    if (service.getWeight() != WeightedRoundRobin.DEFAULT_WEIGHT && service.getBaseUrl() != null) {
+                        weights.put(service.getBaseUrl(), service.getWeight());
+                        weights.put(service.getContainerUrl(), service.getWeight());
+                    }
+                }
+            }
+        }
+
+        if (weights.isEmpty()) {
+            return CommonUtils.pickServiceInstanceRoundRobin(instances);
+        }
+
+        return this.weightedRoundRobin.pick(environment + "/" + serviceName + "/" + version, instances,
+                url -> weights.getOrDefault(Endpoint.of(url), WeightedRoundRobin.DEFAULT_WEIGHT));
     }
 
     @Override
@@ -516,103 +857,214 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
     @Override
     public Optional<List<String>> getServiceVersions(String serviceName, String environment) {
-        if (!this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-            EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(etcd, getServiceKeyVersions(environment,
-                    serviceName), this.initialRequestRetryPolicy, this.resilience);
 
-            if (etcdKeysResponse != null) {
+        mirrorEnvironment(environment, serviceName);
 
-                List<String> versions = new LinkedList<>();
-                for (EtcdKeysResponse.EtcdNode versionNode : etcdKeysResponse.getNode().getNodes()) {
+        Etcd2ServiceNode serviceNode = this.registry.getOrCreateService(environment, serviceName);
 
-                    String version = Etcd2Utils.getLastKeyLayer(versionNode.getKey());
+        if (!serviceNode.isVersionsLoaded()) {
+            synchronized (serviceNode) {
+                if (!serviceNode.isVersionsLoaded()) {
+                    loadServiceVersions(serviceNode);
+                }
+            }
+        }
 
-                    EtcdKeysResponse.EtcdNode instanceParentNode = null;
-                    for (EtcdKeysResponse.EtcdNode instanceParentNodeCandidate : versionNode.getNodes()) {
-                        if (Etcd2Utils.getLastKeyLayer(instanceParentNodeCandidate.key).equals("instances")) {
-                            instanceParentNode = instanceParentNodeCandidate;
-                            break;
-                        }
-                    }
-                    if (instanceParentNode == null) {
-                        continue;
-                    }
+        return Optional.of(getPresentVersions(serviceNode));
+    }
 
-                    boolean versionActive = false;
-                    for (EtcdKeysResponse.EtcdNode instanceNode : instanceParentNode.getNodes()) {
+    private List<String> getPresentVersions(Etcd2ServiceNode serviceNode) {
 
-                        String url = null;
-                        String status = null;
-                        String containerUrlString = null;
-                        String clusterId = null;
+        List<String> presentVersions = serviceNode.getActiveVersions();
 
-                        for (EtcdKeysResponse.EtcdNode node : instanceNode.getNodes()) {
+        if (presentVersions.isEmpty()) {
+            // we check last known version only if there are no present versions left
+            presentVersions = new LinkedList<>();
+            String lastKnownVersion = serviceNode.getLastKnownVersion();
+            if (lastKnownVersion != null) {
+                presentVersions.add(lastKnownVersion);
+            }
+        }
+        return presentVersions;
+    }
 
-                            if ("url".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null) {
-                                url = node.getValue();
-                            }
+    private void loadServiceVersions(Etcd2ServiceNode serviceNode) {
 
-                            if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null) {
-                                containerUrlString = node.getValue();
-                            }
+        String versionsKey = getServiceKeyVersions(serviceNode.getEnvironment(), serviceNode.getServiceName());
 
-                            if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null && !node.getValue().isEmpty()) {
-                                clusterId = node.getValue();
-                            }
+        Etcd2DirectorySnapshot snapshot = readDir(versionsKey, !this.shallowVersions, serviceNode.getServiceName());
 
-                            if ("status".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null) {
-                                status = node.getValue();
-                            }
-                        }
+        if (snapshot != null) {
+            Map<String, Etcd2DirectorySnapshot.Version> versions = snapshot.getVersions(serviceNode.getServiceName());
+            if (this.shallowVersions) {
+                applyVersionListing(serviceNode, versions, snapshot.getEtcdIndex());
+            } else {
+                applyServiceVersions(serviceNode, versions, snapshot.getEtcdIndex());
+            }
 
-                        if (url != null && !"disabled".equals(status)) {
-                            versionActive = true;
-
-                            // active instance, add to buffer
-                            try {
-                                if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                        environment)) {
-                                    this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                            new HashMap<>());
-                                }
-                                URL containerUrl = (containerUrlString == null || containerUrlString.isEmpty()) ?
-                                        null : new URL(containerUrlString);
-                                this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .put(instanceNode.getKey() + "/url",
-                                                new Etcd2Service(new URL(url), containerUrl, clusterId));
-                            } catch (MalformedURLException e) {
-                                log.severe("Malformed URL exception: " + e.toString());
-                            }
-                        }
+            serviceNode.setVersionsLoaded(true);
+            watchServiceInstances(versionsKey, snapshot.getEtcdIndex() + 1);
+        }
+    }
 
-                    }
+    /**
+     * Replaces instances and gateway URLs of all versions with the content of the service directory. Versions, which
+     * are no longer present in the directory, are cleared.
+     *
+     * @param readIndex etcd index of the read
+     * @return number of changed instances
+     */
+    private int applyServiceVersions(Etcd2ServiceNode serviceNode,
+                                     Map<String, Etcd2DirectorySnapshot.Version> versions, long readIndex) {
+
+        int changes = 0;
+        Set<String> presentVersions = new HashSet<>();
+
+        for (Map.Entry<String, Etcd2DirectorySnapshot.Version> version : versions.entrySet()) {
+            if (version.getValue().hasContent()) {
+                presentVersions.add(version.getKey());
+                changes += applyVersion(serviceNode, version.getKey(), version.getValue(), readIndex);
+            }
+        }
 
-                    if (versionActive) {
-                        versions.add(version);
-                    }
-                }
+        for (Etcd2VersionNode versionNode : serviceNode.getVersions().values()) {
+            if (!presentVersions.contains(versionNode.getVersion())) {
+                changes += clearVersion(serviceNode, versionNode, readIndex);
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Replaces instances and gateway URL of a version with the content of the version directory. If the version
+     * directory is not present, the version is cleared.
+     *
+     * @param readIndex etcd index of the read
+     * @return number of changed instances
+     */
+    private int applyVersion(Etcd2ServiceNode serviceNode, String version,
+                             Etcd2DirectorySnapshot.Version versionContent, long readIndex) {
+
+        if (versionContent == null) {
+            return clearVersion(serviceNode, serviceNode.getOrCreateVersion(version), readIndex);
+        }
 
-                this.serviceVersions.put(serviceName + "_" + environment, versions);
-                watchServiceInstances(getServiceKeyVersions(environment, serviceName),
-                        etcdKeysResponse.etcdIndex + 1);
+        // version directory is watched from now on, so instances and gateway URL are up to date
+        Etcd2VersionNode node = serviceNode.getOrCreateVersion(version);
+        int changes = node.replaceInstances(Etcd2SegmentMap.of(versionContent.getInstances()), readIndex);
+        node.setGatewayUrl(versionContent.getGatewayUrl());
+
+        return changes;
+    }
+
+    /**
+     * Applies a shallow listing of the service directory. Listed versions are created without instances, which are
+     * loaded when the version is resolved. Versions, which are no longer listed, are cleared.
+     *
+     * @param readIndex etcd index of the read
+     * @return number of changed instances
+     */
+    private int applyVersionListing(Etcd2ServiceNode serviceNode,
+                                    Map<String, Etcd2DirectorySnapshot.Version> versions, long readIndex) {
+
+        int changes = 0;
+
+        for (String version : versions.keySet()) {
+            serviceNode.getOrCreateVersion(version).setListed(true);
+        }
+
+        for (Etcd2VersionNode versionNode : serviceNode.getVersions().values()) {
+            if (!versions.containsKey(versionNode.getVersion())) {
+                versionNode.setListed(false);
+                changes += clearVersion(serviceNode, versionNode, readIndex);
             }
         }
 
-        List<String> presentVersions = this.serviceVersions.get(serviceName + "_" + environment);
+        return changes;
+    }
 
-        if (presentVersions == null || presentVersions.size() == 0) {
-            // we check last known version only if there are no present versions left
-            presentVersions = new LinkedList<>();
-            String lastKnownVersion = lastKnownVersions.get(serviceName + "_" + environment);
-            if (lastKnownVersion != null) {
-                presentVersions.add(lastKnownVersion);
+    /**
+     * Removes all instances and the gateway URL of a version, which is no longer present in etcd.
+     *
+     * @param readIndex etcd index of the read, which no longer contains the version
+     * @return number of removed instances
+     */
+    private int clearVersion(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode, long readIndex) {
+        int removed = versionNode.replaceInstances(Etcd2SegmentMap.empty(), readIndex);
+        if (removed > 0) {
+            serviceNode.setLastKnownVersion(versionNode.getVersion());
+        }
+        versionNode.setGatewayUrl(null);
+
+        return removed;
+    }
+
+    /**
+     * Mirrors all services of the environment with a single recursive read and a single watch, if mirroring is
+     * enabled and the service is not excluded by the mirror filters.
+     */
+    private void mirrorEnvironment(String environment, String serviceName) {
+
+        if (!this.mirrorEnvironments || this.mirroredEnvironments.contains(environment) ||
+                !isMirrored(serviceName)) {
+            return;
+        }
+
+        synchronized (this.mirroredEnvironments) {
+            if (this.mirroredEnvironments.contains(environment)) {
+                return;
+            }
+
+            String environmentKey = getEnvironmentKey(environment);
+
+            log.log(Level.INFO, "Mirroring services of environment {0}.", environment);
+
+            Etcd2DirectorySnapshot snapshot = readDir(environmentKey, true, null);
+
+            if (snapshot != null) {
+                applyEnvironmentServices(environment, snapshot);
+
+                this.mirroredEnvironments.add(environment);
+                watchServiceInstances(environmentKey, snapshot.getEtcdIndex() + 1);
             }
         }
-        return Optional.ofNullable(presentVersions);
+    }
+
+    /**
+     * Replaces all mirrored services of the environment with the content of the environment's services directory.
+     *
+     * @return number of changed instances
+     */
+    private int applyEnvironmentServices(String environment, Etcd2DirectorySnapshot snapshot) {
+
+        int changes = 0;
+        Set<String> presentServices = new HashSet<>();
+
+        for (String serviceName : snapshot.getServices()) {
+            if (!isMirrored(serviceName)) {
+                continue;
+            }
+            presentServices.add(serviceName);
+
+            Etcd2ServiceNode serviceNode = this.registry.getOrCreateService(environment, serviceName);
+            changes += applyServiceVersions(serviceNode, snapshot.getVersions(serviceName), snapshot.getEtcdIndex());
+            serviceNode.setVersionsLoaded(true);
+        }
+
+        for (Etcd2ServiceNode serviceNode : this.registry.getServices(environment)) {
+            if (!presentServices.contains(serviceNode.getServiceName()) && isMirrored(serviceNode.getServiceName())) {
+                changes += applyServiceVersions(serviceNode, Collections.emptyMap(), snapshot.getEtcdIndex());
+                serviceNode.setVersionsLoaded(true);
+            }
+        }
+
+        return changes;
+    }
+
+    private boolean isMirrored(String serviceName) {
+        return (this.mirrorIncludedServices.isEmpty() || this.mirrorIncludedServices.contains(serviceName)) &&
+                !this.mirrorExcludedServices.contains(serviceName);
     }
 
     @Override
@@ -621,13 +1073,14 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
         String key = Etcd2Utils.getServiceKeyInstances(environment, serviceName, version);
 
-        EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(etcd, key, this.resilience);
+        EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(getReadClient(), key, this.resilience);
         if (etcdKeysResponse != null) {
 
+            Endpoint endpoint = Endpoint.of(url);
+
             for (EtcdKeysResponse.EtcdNode instance : etcdKeysResponse.getNode().getNodes()) {
                 for (EtcdKeysResponse.EtcdNode node : instance.getNodes()) {
-                    if ("url".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                            node.getValue().equals(url.toString())) {
+                    if (Etcd2Utils.isLastKeyLayer(node.getKey(), "url") && isEndpoint(node.getValue(), endpoint)) {
                         log.info("Disabling service instance: " + instance.getKey());
                         putEtcdKey(instance.getKey() + "/status", "disabled");
                     }
@@ -636,15 +1089,61 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         }
     }
 
+    @Override
+    public void setWeight(String serviceName, String version, String environment, URL url, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight must not be negative: " + weight);
+        }
+
+        Endpoint endpoint = Endpoint.of(url);
+        boolean changed = false;
+
+        for (Etcd2Registrator registrator : this.registrators.values()) {
+            Etcd2ServiceConfiguration service = registrator.getServiceConfig();
+            if (service.getServiceName().equals(serviceName) && service.getServiceVersion().equals(version) &&
+                    service.getEnvironment().equals(environment) && (isEndpoint(service.getBaseUrl(), endpoint) ||
+                    service.getContainerUrl() != null && isEndpoint(service.getContainerUrl(), endpoint))) {
+                log.info("Changing weight of service instance: " + service.getServiceInstanceKey() + " Weight: " +
+                        weight);
+                registrator.setWeight(weight);
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            log.warning("No registered service instance with URL " + url + ". Weight was not changed.");
+        }
+    }
+
+    @Override
+    public LeaderElection joinLeaderElection(String electionName, String environment, long ttl,
+                                             LeadershipListener listener) {
+
+        Etcd2LeaderElection leaderElection = new Etcd2LeaderElection(this::getWriteClient, electionName,
+                Etcd2Utils.getLeaderKey(environment, electionName), (int) ttl, listener, scheduler,
+                electionExecutor);
+        this.leaderElections.add(leaderElection);
+        leaderElection.start();
+
+        return leaderElection;
+    }
+
     private void watchServiceInstances(String key, long index) {
 
-        if (etcd != null) {
+        if (etcd != null && this.leanClient != null) {
+            watchContinuously(key, index);
+        } else if (etcd != null) {
 
             log.log(Level.INFO, "Initialising watch for key: {0}", key);
 
+            boolean versionsWatch = isKeyForVersions(key);
+            AtomicLong watchIndex = this.watchIndexes.computeIfAbsent(key, k -> new AtomicLong());
+
+            EtcdClient client = getReadClient();
+
             EtcdResponsePromise<EtcdKeysResponse> responsePromiseUrl = null;
             try {
-                responsePromiseUrl = etcd.getDir(key).recursive().waitForChange(index).send();
+                responsePromiseUrl = client.getDir(key).recursive().waitForChange(index).send();
             } catch (IOException e) {
                 log.severe("Exception while setting the watch for service instances. Message: " + e.getMessage());
             }
@@ -656,270 +1155,606 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
                         log.log(Level.SEVERE, "Exception in etcd promise: {0}", ((EtcdException) t).etcdMessage);
                     }
                     if (((EtcdException) t).isErrorCode(EtcdErrorCode.EventIndexCleared)) {
-                        // index to old, reset watch to new index
-                        watchServiceInstances(key, ((EtcdException) t).getIndex());
+                        // index too old, events between the index and the current index were lost
+                        // read the key again and continue watching from the index of the read
+                        log.log(Level.WARNING, "Watch index for key {0} was cleared. Resynchronising.", key);
+                        scheduleResync(key);
                         return;
                     }
                 }
 
+                if (promise.getNow() == null) {
+                    if (etcd != null) {
+                        // continue on another member, if this one keeps failing
+                        Etcd2EndpointManager endpointManager = this.endpoints;
+                        if (endpointManager != null) {
+                            endpointManager.reportFailure(client);
+                        }
+                        log.log(Level.SEVERE, "Watch for key {0} failed. Resynchronising. Exception: {1}",
+                                new Object[]{key, t});
+                        scheduleResync(key);
+                    }
+                    return;
+                }
+
+                // event is applied and the watch re-armed on the watch event thread
                 EtcdKeysResponse.EtcdNode node = promise.getNow().getNode();
+                this.watchEvents.submit(new Etcd2WatchEvent(key, versionsWatch, watchIndex, node.getKey(),
+                        node.getValue(), node.getTTL(), node.getModifiedIndex()));
+            });
 
-                // get service name, version and environment from key
-                String serviceName = getServiceNameFromKey(node.getKey());
-                String version = getVersionFromKey(node.getKey());
-                String environment = getEnvironmentFromKey(node.getKey());
-
-                if (serviceName != null && version != null && environment != null) {
-
-                    // url have changed: added or deleted
-                    if ("url".equals(Etcd2Utils.getLastKeyLayer(node.getKey()))) {
-
-                        if (node.getValue() == null) {
-                            log.log(Level.INFO, "Service instance deleted: {0}", node.getKey());
-                            if (this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                    .size() == 1) {
-                                // if removing last service, save it to separate buffer
-                                // this service will be returned, if no other services are present
-                                this.lastKnownServices.put(serviceName + "_" + version + "_" + environment,
-                                        this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                                .get(node.getKey()));
-                                this.lastKnownVersions.put(serviceName + "_" + environment, version);
-                            }
-                            this.serviceInstances.get(serviceName + "_" + version + "_" + environment).remove(node
-                                    .getKey());
-                        } else {
-                            log.info("Service instance added: " + node.getKey() + " Value: " + node.getValue());
-                            try {
-                                if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                        environment)) {
-                                    this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                            new HashMap<>());
-                                }
-                                Etcd2Service etcd2Service = new Etcd2Service(new URL(node.getValue()), null,
-                                        null);
-                                if (this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .containsKey(node.getKey())) {
-                                    etcd2Service.setContainerUrl(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(node.getKey()).getContainerUrl());
-                                    etcd2Service.setClusterId(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(node.getKey()).getClusterId());
-                                }
-                                this.serviceInstances.get(serviceName + "_" + version + "_" + environment).put(node
-                                        .getKey(), etcd2Service);
-                            } catch (MalformedURLException e) {
-                                log.severe("Malformed URL exception: " + e.toString());
-                            }
-                        }
+        } else {
+            log.severe("etcd not initialised.");
+        }
+    }
 
-                    }
+    /**
+     * Watches the key with a single streaming request of the lean client. Re-arming an active watch has no effect.
+     */
+    private void watchContinuously(String key, long index) {
 
-                    // container url added or deleted
-                    if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(node.getKey()))) {
-                        if (node.getValue() == null) {
-                            Etcd2Service service = this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                    environment).get(getKeyOneLayerUp(node.getKey()) + "url");
-                            if (service != null) {
-                                log.info("Service container url deleted: " + node.getKey());
-                                service.setContainerUrl(null);
-                                this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                        environment).put(getKeyOneLayerUp(node.getKey()) + "url", service);
-                            }
-                        } else {
-                            log.info("Service container url added: " + node.getKey() + " Value: " + node.getValue());
-                            try {
-                                if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                        environment)) {
-                                    this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                            new HashMap<>());
-                                }
-                                String instanceMapKey = getKeyOneLayerUp(node.getKey()) + "url";
-                                Etcd2Service etcd2Service = new Etcd2Service(null, new URL(node.getValue()),
-                                        null);
-                                if (this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .containsKey(instanceMapKey)) {
-                                    etcd2Service.setBaseUrl(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(instanceMapKey).getBaseUrl());
-                                    etcd2Service.setClusterId(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(instanceMapKey).getClusterId());
-                                }
-                                this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .put(instanceMapKey, etcd2Service);
-                            } catch (MalformedURLException e) {
-                                log.severe("Malformed URL exception: " + e.toString());
-                            }
-                        }
-                    }
+        Etcd2LeanClient.Watch activeWatch = this.leanWatches.get(key);
+        if (activeWatch != null && !activeWatch.isClosed()) {
+            return;
+        }
 
-                    if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(node.getKey()))) {
-                        if (node.getValue() == null) {
-                            Etcd2Service service = this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                    environment).get(getKeyOneLayerUp(node.getKey()) + "url");
-                            if (service != null) {
-                                log.info("Service container id deleted: " + node.getKey());
-                                service.setClusterId(null);
-                                this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                        environment).put(getKeyOneLayerUp(node.getKey()) + "url", service);
-                            }
-                        } else {
-                            log.info("Service container id added: " + node.getKey() + " Value: " + node.getValue());
-
-                            if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                    environment)) {
-                                this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                        new HashMap<>());
-                            }
-                            String instanceMapKey = getKeyOneLayerUp(node.getKey()) + "url";
-                            Etcd2Service etcd2Service = new Etcd2Service(null, null,
-                                    node.getValue());
-                            if (this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                    .containsKey(instanceMapKey)) {
-                                etcd2Service.setBaseUrl(this.serviceInstances.get(serviceName + "_" + version
-                                        + "_" + environment).get(instanceMapKey).getBaseUrl());
-                                etcd2Service.setContainerUrl(this.serviceInstances.get(serviceName + "_" + version
-                                        + "_" + environment).get(instanceMapKey).getContainerUrl());
-                            }
-                            this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                    .put(instanceMapKey, etcd2Service);
-                        }
-                    }
+        log.log(Level.INFO, "Initialising continuous watch for key: {0}", key);
 
-                    // gatewayUrl changed: added, modified or deleted
-                    if ("gatewayUrl".equals(Etcd2Utils.getLastKeyLayer(node.getKey()))) {
-                        if (node.getValue() == null &&
-                                this.gatewayUrls.containsKey(serviceName + "_" + version + "_" + environment)) {
-                            log.info("Gateway URL deleted: " + node.getKey());
-                            this.gatewayUrls.remove(serviceName + "_" + version + "_" + environment);
-                        } else {
-                            log.info("Gateway URL added or modified: " + node.getKey() + " Value: " +
-                                    node.getValue());
-
-                            URL gatewayUrl = null;
-
-                            try {
-                                gatewayUrl = new URL(node.getValue());
-                            } catch (MalformedURLException e) {
-                                log.severe("Malformed URL exception: " + e.toString());
-                            }
-
-                            this.gatewayUrls.put(serviceName + "_" + version + "_" + environment, gatewayUrl);
-                        }
-                    }
+        boolean versionsWatch = isKeyForVersions(key);
+        AtomicLong watchIndex = this.watchIndexes.computeIfAbsent(key, k -> new AtomicLong());
+        AtomicLong receivedIndex = new AtomicLong(index - 1);
 
-                    // status has changed: set to disabled
-                    if ("status".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                            "disabled".equals(node.getValue())) {
-                        log.info("Service instance disabled: " + node.getKey());
-                        this.serviceInstances.get(serviceName + "_" + version + "_" + environment).remove
-                                (getKeyOneLayerUp(node.getKey()) + "url");
+        Etcd2LeanClient.Watch watch = this.leanClient.watch(key, index,
+                (nodeKey, value, dir, ttl, modifiedIndex) -> {
+                    receivedIndex.accumulateAndGet(modifiedIndex, Math::max);
+                    this.watchEvents.submit(new Etcd2WatchEvent(key, versionsWatch, watchIndex, nodeKey, value, ttl,
+                            modifiedIndex));
+                }, cause -> {
+                    if (etcd == null) {
+                        return;
                     }
 
-                    // node's TTL expired
-                    if (node.getTTL() == 0 && this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                            environment) && this.serviceInstances.get(serviceName + "_" + version + "_" +
-                            environment).containsKey(node.getKey() + "/url")) {
-                        log.info("Service instance TTL expired: " + node.getKey());
-                        if (this.serviceInstances.get(serviceName + "_" + version + "_" + environment).size() == 1) {
-                            // if removing last service, save it to separate buffer
-                            // this service will be returned, if no other services are present
-                            this.lastKnownServices.put(serviceName + "_" + version + "_" + environment,
-                                    this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                            .get(node.getKey() + "/url"));
-                            this.lastKnownVersions.put(serviceName + "_" + environment, version);
-                        }
-                        this.serviceInstances.get(serviceName + "_" + version + "_" + environment).remove(node.getKey
-                                () + "/url");
+                    if (cause == null) {
+                        // etcd ended the stream, continue after the last received event
+                        resyncScheduler.execute(() -> watchServiceInstances(key, receivedIndex.get() + 1));
+                    } else if (cause instanceof EtcdErrorResponseException &&
+                            ((EtcdErrorResponseException) cause).getErrorCode() == EtcdErrorCode.EventIndexCleared) {
+                        log.log(Level.WARNING, "Watch index for key {0} was cleared. Resynchronising.", key);
+                        scheduleResync(key);
+                    } else {
+                        log.log(Level.SEVERE, "Watch for key {0} failed. Resynchronising. Exception: {1}",
+                                new Object[]{key, cause});
+                        scheduleResync(key);
                     }
+                });
 
-                    // if we are watching all versions, update serviceVersions
-                    if (isKeyForVersions(key)) {
-                        if (this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-                            List<String> versions = this.serviceVersions.get(serviceName + "_" + environment);
-                            if (versions.contains(version) &&
-                                    this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                            .isEmpty()) {
-                                // version was removed and no other instances of this version exist, remove version
-                                versions.remove(version);
-                            } else if (!versions.contains(version) &&
-                                    (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                            environment) ||
-                                            !this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                                    environment).isEmpty())) {
-                                // instance of new version was added
-                                versions.add(version);
-                            }
-                        }
-                    }
+        this.leanWatches.put(key, watch);
+    }
 
-                }
+    /**
+     * Stops watching the key. Needed only for continuous watches, other watches end with the next event, if they are
+     * not re-armed.
+     */
+    private void stopWatch(String key) {
+        this.watchIndexes.remove(key);
 
-                if (isKeyForVersions(key) || !this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-                    // does not set watch if key is for specific version and we are already watching all versions
-                    watchServiceInstances(key, node.getModifiedIndex() + 1);
-                }
-            });
+        Etcd2LeanClient.Watch watch = this.leanWatches.remove(key);
+        if (watch != null) {
+            watch.close();
+        }
+    }
 
-        } else {
-            log.severe("etcd not initialised.");
+    /**
+     * Reads a directory with the read consistency of the service. Stale reads, which are behind the max staleness of
+     * the service, are repeated with a quorum read.
+     *
+     * @param key         directory key
+     * @param recursive   if false, only direct children are read
+     * @param serviceName name of the service or null, if the directory contains multiple services
+     * @return content of the directory or null, if it could not be read
+     */
+    private Etcd2DirectorySnapshot readDir(String key, boolean recursive, String serviceName) {
+
+        ReadConsistency consistency = this.readConsistency.getConsistency(serviceName);
+
+        Etcd2DirectorySnapshot snapshot = readDir(key, recursive, consistency == ReadConsistency.CONSISTENT);
+
+        if (snapshot != null && consistency == ReadConsistency.STALE) {
+            long maxStalenessMs = this.readConsistency.getMaxStalenessMs(serviceName);
+            if (maxStalenessMs != ReadConsistencyConfiguration.UNBOUNDED &&
+                    snapshot.getEtcdIndex() < this.indexWatermark.getRequiredIndex(maxStalenessMs)) {
+                log.log(Level.FINE, "Read of key {0} is too stale, repeating the read with quorum.", key);
+                snapshot = readDir(key, recursive, true);
+            }
+        }
+
+        if (snapshot != null) {
+            this.indexWatermark.observe(snapshot.getEtcdIndex());
         }
+
+        return snapshot;
     }
 
-    private boolean isKeyForVersions(String key) {
-        return key.split("/").length == 5;
+    /**
+     * Reads a directory with the lean client, if enabled, or with etcd4j.
+     *
+     * @param key       directory key
+     * @param recursive if false, only direct children are read
+     * @param quorum    if true, the read is confirmed by a quorum of the cluster
+     * @return content of the directory or null, if it could not be read
+     */
+    private Etcd2DirectorySnapshot readDir(String key, boolean recursive, boolean quorum) {
+
+        Etcd2LeanClient client = this.leanClient;
+        if (client == null) {
+            EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(getReadClient(), key, recursive, quorum,
+                    this.initialRequestRetryPolicy, this.resilience);
+
+            return (etcdKeysResponse == null) ? null :
+                    Etcd2DirectorySnapshot.of(etcdKeysResponse.getNode(), etcdKeysResponse.etcdIndex);
+        }
+
+        Etcd2DirectorySnapshot snapshot = new Etcd2DirectorySnapshot();
+        try {
+            snapshot.setEtcdIndex(client.getDir(key, recursive, quorum, snapshot));
+
+            return snapshot;
+        } catch (IOException e) {
+            String message = "Cannot read key " + key + " from any etcd member.";
+            if (resilience) {
+                log.warning(message + " Error: " + e);
+            } else {
+                throw new EtcdNotAvailableException(message, e);
+            }
+        } catch (EtcdErrorResponseException e) {
+            log.info("Etcd exception. " + e.getMessage());
+        }
+
+        return null;
     }
 
-    private String getServiceKeyVersions(String environment, String serviceName) {
-        return "/environments/" + environment + "/services/" + serviceName;
+    /**
+     * Reads a single key with the read consistency of the service. Stale reads, which are behind the max staleness
+     * of the service, are repeated with a quorum read.
+     */
+    private EtcdKeysResponse getKey(String key, String serviceName) throws IOException, EtcdException,
+            EtcdAuthenticationException, TimeoutException {
+
+        ReadConsistency consistency = this.readConsistency.getConsistency(serviceName);
+
+        EtcdKeyGetRequest request = getReadClient().get(key).setRetryPolicy(this.initialRequestRetryPolicy);
+        if (consistency == ReadConsistency.CONSISTENT) {
+            request.consistent();
+        }
+        EtcdKeysResponse etcdKeysResponse = request.send().get();
+
+        if (consistency == ReadConsistency.STALE) {
+            long maxStalenessMs = this.readConsistency.getMaxStalenessMs(serviceName);
+            if (maxStalenessMs != ReadConsistencyConfiguration.UNBOUNDED &&
+                    etcdKeysResponse.etcdIndex < this.indexWatermark.getRequiredIndex(maxStalenessMs)) {
+                log.log(Level.FINE, "Read of key {0} is too stale, repeating the read with quorum.", key);
+                etcdKeysResponse = getReadClient().get(key).setRetryPolicy(this.initialRequestRetryPolicy)
+                        .consistent().send().get();
+            }
+        }
+
+        this.indexWatermark.observe(etcdKeysResponse.etcdIndex);
+
+        return etcdKeysResponse;
     }
 
-    private String getGatewayKey(String environment, String serviceName, String version) {
-        return "/environments/" + environment + "/services/" + serviceName + "/" + version + "/gatewayUrl";
+    /**
+     * Applies a batch of watch events, submits changed versions for publication and re-arms the watches.
+     */
+    private void applyWatchEvents(List<Etcd2WatchEvent> events) {
+
+        Set<Etcd2VersionNode> changedVersions = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Etcd2WatchEvent> rearmedWatches = new ArrayList<>(events.size());
+
+        for (Etcd2WatchEvent event : events) {
+            Etcd2ServiceNode serviceNode = null;
+            try {
+                serviceNode = applyWatchEvent(event, changedVersions);
+            } catch (RuntimeException e) {
+                log.severe("Exception while applying watch event for key " + event.getKey() + ": " + e.toString());
+            }
+            event.getWatchIndex().accumulateAndGet(event.getModifiedIndex(), Math::max);
+            this.indexWatermark.observe(event.getModifiedIndex());
+
+            if (event.isVersionsWatch() || serviceNode == null || !serviceNode.isVersionsLoaded()) {
+                rearmedWatches.add(event);
+            } else {
+                // does not set watch if key is for specific version and we are already watching all versions
+                stopWatch(event.getWatchedKey());
+            }
+        }
+
+        for (Etcd2VersionNode versionNode : changedVersions) {
+            this.snapshotDebouncer.submit(versionNode, versionNode::publish);
+        }
+
+        for (Etcd2WatchEvent event : rearmedWatches) {
+            watchServiceInstances(event.getWatchedKey(), event.getModifiedIndex() + 1);
+        }
     }
 
-    private String getKeyOneLayerUp(String key) {
+    /**
+     * Routes watch event to the owning version node and stages the change.
+     *
+     * @param event           watch event
+     * @param changedVersions collects version nodes with staged changes, which need to be published
+     * @return service node, which owns the changed key, or null if the key does not belong to a tracked service
+     */
+    private Etcd2ServiceNode applyWatchEvent(Etcd2WatchEvent event, Set<Etcd2VersionNode> changedVersions) {
+
+        Etcd2KeyParser key = keyParser.get();
+        if (!key.parse(event.getKey())) {
+            return null;
+        }
+
+        Etcd2ServiceNode serviceNode = this.registry.route(key);
+        if (serviceNode == null && key.has(Etcd2KeyParser.SEGMENT_SERVICE) && this.mirrorEnvironments &&
+                this.mirroredEnvironments.contains(key.get(Etcd2KeyParser.SEGMENT_ENVIRONMENT)) &&
+                isMirrored(key.get(Etcd2KeyParser.SEGMENT_SERVICE))) {
+            // new service in a mirrored environment
+            serviceNode = this.registry.getOrCreateService(key.get(Etcd2KeyParser.SEGMENT_ENVIRONMENT),
+                    key.get(Etcd2KeyParser.SEGMENT_SERVICE));
+            serviceNode.setVersionsLoaded(true);
+        }
+        if (serviceNode == null || !key.has(Etcd2KeyParser.SEGMENT_VERSION)) {
+            return serviceNode;
+        }
+
+        Etcd2VersionNode versionNode = serviceNode.getVersion(key);
+        if (versionNode == null) {
+            if (!serviceNode.isVersionsLoaded()) {
+                return serviceNode;
+            }
+
+            // new version of a service, for which we are watching all versions
+            versionNode = serviceNode.getOrCreateVersion(key.get(Etcd2KeyParser.SEGMENT_VERSION));
+            versionNode.replaceInstances(Etcd2SegmentMap.empty(), 0);
+            versionNode.setGatewayUrl(null);
+            versionNode.setListed(this.shallowVersions);
+        } else if (this.shallowVersions && !versionNode.isInstancesLoaded()) {
+            // version was listed, but not resolved yet, its instances are read when it is resolved
+            versionNode.skipEvent(event.getModifiedIndex());
+            return serviceNode;
+        } else if (versionNode.isContainedInLoad(event.getModifiedIndex())) {
+            return serviceNode;
+        }
+        changedVersions.add(versionNode);
+
+        if (key.isGatewayUrlKey()) {
+            // gatewayUrl changed: added, modified or deleted
+            if (event.getValue() == null) {
+                log.info("Gateway URL deleted: " + event.getKey());
+                versionNode.setGatewayUrl(null);
+            } else {
+                log.info("Gateway URL added or modified: " + event.getKey() + " Value: " + event.getValue());
+
+                Endpoint gatewayUrl = null;
 
-        String[] splittedKey = key.split("/");
+                try {
+                    gatewayUrl = Endpoint.parse(event.getValue());
+                } catch (MalformedURLException e) {
+                    log.severe("Malformed URL exception: " + e.toString());
+                }
+
+                versionNode.setGatewayUrl(gatewayUrl);
+            }
+        } else if (key.isInstanceFieldKey()) {
+            Etcd2Service service = versionNode.getInstance(key);
+            String instanceId = key.get(Etcd2KeyParser.SEGMENT_INSTANCE);
+            long modifiedIndex = event.getModifiedIndex();
+
+            if (key.isField("url")) {
+                // url have changed: added or deleted
+                if (event.getValue() == null) {
+                    log.log(Level.INFO, "Service instance deleted: {0}", event.getKey());
+                    removeServiceInstance(serviceNode, versionNode, instanceId, modifiedIndex);
+                } else {
+                    log.info("Service instance added: " + event.getKey() + " Value: " + event.getValue());
+                    try {
+                        Endpoint baseUrl = Endpoint.parse(event.getValue());
+                        versionNode.putInstance(instanceId, (service == null) ?
+                                new Etcd2Service(baseUrl, null, null) : service.withBaseUrl(baseUrl), modifiedIndex);
+                    } catch (MalformedURLException e) {
+                        log.severe("Malformed URL exception: " + e.toString());
+                    }
+                }
+            } else if (key.isField("containerUrl")) {
+                // container url added or deleted
+                if (event.getValue() == null) {
+                    if (service != null) {
+                        log.info("Service container url deleted: " + event.getKey());
+                        versionNode.putInstance(instanceId, service.withContainerUrl(null), modifiedIndex);
+                    }
+                } else {
+                    log.info("Service container url added: " + event.getKey() + " Value: " + event.getValue());
+                    try {
+                        Endpoint containerUrl = Endpoint.parse(event.getValue());
+                        versionNode.putInstance(instanceId, (service == null) ?
+                                new Etcd2Service(null, containerUrl, null) : service.withContainerUrl(containerUrl),
+                                modifiedIndex);
+                    } catch (MalformedURLException e) {
+                        log.severe("Malformed URL exception: " + e.toString());
+                    }
+                }
+            } else if (key.isField("clusterId")) {
+                if (event.getValue() == null) {
+                    if (service != null) {
+                        log.info("Service container id deleted: " + event.getKey());
+                        versionNode.putInstance(instanceId, service.withClusterId(null), modifiedIndex);
+                    }
+                } else {
+                    log.info("Service container id added: " + event.getKey() + " Value: " + event.getValue());
+                    versionNode.putInstance(instanceId, (service == null) ?
+                            new Etcd2Service(null, null, event.getValue()) : service.withClusterId(event.getValue()),
+                            modifiedIndex);
+                }
+            } else if (key.isField("weight")) {
+                int weight = Etcd2Utils.parseWeight(event.getValue());
+                log.info("Service instance weight changed: " + event.getKey() + " Value: " + weight);
+                versionNode.putInstance(instanceId, (service == null) ?
+                        new Etcd2Service(null, null, null, weight) : service.withWeight(weight), modifiedIndex);
+            } else if (key.isField("status") && "disabled".equals(event.getValue())) {
+                // status has changed: set to disabled
+                log.info("Service instance disabled: " + event.getKey());
+                versionNode.removeInstance(instanceId, false, modifiedIndex);
+            }
+        } else if (key.isInstanceKey() && event.getTtl() == 0 && versionNode.getInstance(key) != null) {
+            // node's TTL expired
+            log.info("Service instance TTL expired: " + event.getKey());
+            removeServiceInstance(serviceNode, versionNode, key.get(Etcd2KeyParser.SEGMENT_INSTANCE),
+                    event.getModifiedIndex());
+        }
 
-        StringBuilder newKey = new StringBuilder();
+        return serviceNode;
+    }
 
-        for (int i = 0; i < splittedKey.length - 1; i++) {
-            newKey.append(splittedKey[i]).append("/");
+    /**
+     * Resynchronises the key and watches it again. Requests for a key, whose resynchronisation has not started yet, are
+     * merged, so a burst of overflowing events of a key results in a single resynchronisation and watch.
+     */
+    private void scheduleResync(String key) {
+        if (this.pendingResyncs.add(key)) {
+            resyncScheduler.execute(() -> {
+                this.pendingResyncs.remove(key);
+                resyncAndWatch(key, this.startRetryDelay);
+            });
         }
-        return newKey.toString();
     }
 
-    private String getServiceNameFromKey(String key) {
+    /**
+     * Reads the watched key again, applies the difference to the registry and resumes the watch from the index of the
+     * read. If etcd cannot be read, resynchronisation is retried with exponential delay.
+     */
+    private void resyncAndWatch(String key, int retryDelay) {
+        if (etcd == null) {
+            return;
+        }
 
-        String[] splitted = key.split("/");
+        long index = resync(key);
 
-        if (splitted.length < 4) {
-            return null;
+        if (index > 0) {
+            watchServiceInstances(key, index);
         } else {
-            return splitted[4];
+            log.log(Level.WARNING, "Resynchronisation of key {0} failed. Retrying in {1} ms.",
+                    new Object[]{key, retryDelay});
+            resyncScheduler.schedule(() -> resyncAndWatch(key, Math.min(retryDelay * 2, this.maxRetryDelay)),
+                    retryDelay, TimeUnit.MILLISECONDS);
         }
     }
 
-    private String getVersionFromKey(String key) {
+    /**
+     * Anti-entropy check. Reads all watched keys and repairs the registry, if a watch missed an event.
+     */
+    private void checkWatchedKeys() {
+        for (String key : this.watchIndexes.keySet()) {
+            try {
+                resync(key);
+            } catch (RuntimeException e) {
+                log.severe("Anti-entropy check of key " + key + " failed. Exception: " + e.toString());
+            }
+        }
+    }
 
-        String[] splitted = key.split("/");
+    /**
+     * Reads watched key from etcd and applies the difference to the registry.
+     *
+     * @param key watched key
+     * @return index to continue watching from or -1, if key could not be read
+     */
+    private long resync(String key) {
+
+        Etcd2KeyParser parsedKey = new Etcd2KeyParser();
+        if (etcd == null || !parsedKey.parse(key)) {
+            return -1;
+        }
 
-        if (splitted.length < 5) {
-            return null;
+        if (parsedKey.isEnvironmentKey()) {
+            Etcd2DirectorySnapshot snapshot = readDir(key, true, null);
+            if (snapshot == null) {
+                return -1;
+            }
+
+            if (!isStale(key, snapshot.getEtcdIndex())) {
+                int changes = applyEnvironmentServices(parsedKey.get(Etcd2KeyParser.SEGMENT_ENVIRONMENT), snapshot);
+                if (changes > 0) {
+                    log.log(Level.WARNING, "Resynchronised key {0} with etcd. Changed entries: {1}",
+                            new Object[]{key, changes});
+                }
+            }
+
+            return snapshot.getEtcdIndex() + 1;
+        }
+
+        Etcd2ServiceNode serviceNode = this.registry.route(parsedKey);
+        if (serviceNode == null) {
+            return -1;
+        }
+
+        long etcdIndex;
+        int changes;
+
+        if (parsedKey.isGatewayUrlKey()) {
+            Etcd2VersionNode versionNode = serviceNode.getOrCreateVersion(parsedKey.get(Etcd2KeyParser
+                    .SEGMENT_VERSION));
+
+            String value = null;
+            try {
+                EtcdKeysResponse etcdKeysResponse = getKey(key, serviceNode.getServiceName());
+                etcdIndex = etcdKeysResponse.etcdIndex;
+                value = etcdKeysResponse.getNode().getValue();
+            } catch (EtcdException e) {
+                if (e.getErrorCode() != 100) {
+                    log.info("Etcd exception. " + e);
+                    return -1;
+                }
+                etcdIndex = e.getIndex();
+            } catch (IOException | EtcdAuthenticationException | TimeoutException e) {
+                log.info("Cannot read given key: " + e);
+                return -1;
+            }
+
+            if (isStale(key, etcdIndex)) {
+                return etcdIndex + 1;
+            }
+
+            Endpoint currentUrl = versionNode.getGatewayUrl();
+            changes = (value == null ? currentUrl == null :
+                    currentUrl != null && value.equals(currentUrl.toString())) ? 0 : 1;
+            if (changes > 0) {
+                Endpoint gatewayUrl = null;
+                if (value != null) {
+                    try {
+                        gatewayUrl = Endpoint.parse(value);
+                    } catch (MalformedURLException e) {
+                        log.severe("Malformed URL exception: " + e.toString());
+                    }
+                }
+                versionNode.setGatewayUrl(gatewayUrl);
+            }
         } else {
-            return splitted[5];
+            boolean shallow = this.shallowVersions && parsedKey.isServiceKey();
+            Etcd2DirectorySnapshot snapshot = readDir(key, !shallow, serviceNode.getServiceName());
+            if (snapshot == null) {
+                return -1;
+            }
+            etcdIndex = snapshot.getEtcdIndex();
+
+            if (isStale(key, etcdIndex)) {
+                return etcdIndex + 1;
+            }
+
+            if (shallow) {
+                changes = applyVersionListing(serviceNode, snapshot.getVersions(serviceNode.getServiceName()),
+                        etcdIndex);
+                changes += resyncLoadedVersions(serviceNode);
+            } else if (parsedKey.isServiceKey()) {
+                changes = applyServiceVersions(serviceNode, snapshot.getVersions(serviceNode.getServiceName()),
+                        etcdIndex);
+            } else if (parsedKey.isInstancesKey()) {
+                Etcd2VersionNode versionNode = serviceNode.getOrCreateVersion(parsedKey.get(Etcd2KeyParser
+                        .SEGMENT_VERSION));
+                changes = applyServiceInstances(serviceNode, versionNode, snapshot);
+                if (changes > 0 && versionNode.getInstances().isEmpty()) {
+                    serviceNode.setLastKnownVersion(versionNode.getVersion());
+                }
+            } else {
+                return -1;
+            }
+        }
+
+        if (changes > 0) {
+            log.log(Level.WARNING, "Resynchronised key {0} with etcd. Changed entries: {1}",
+                    new Object[]{key, changes});
         }
 
+        return etcdIndex + 1;
     }
 
-    private String getEnvironmentFromKey(String key) {
+    /**
+     * Reads all listed versions, which were already resolved, after a shallow listing of the service directory.
+     *
+     * @return number of changed instances
+     */
+    private int resyncLoadedVersions(Etcd2ServiceNode serviceNode) {
+        int changes = 0;
+
+        for (Etcd2VersionNode versionNode : serviceNode.getVersions().values()) {
+            if (versionNode.isListed() && versionNode.isInstancesLoaded()) {
+                Etcd2DirectorySnapshot snapshot = readDir(Etcd2Utils.getServiceKeyVersion(
+                        serviceNode.getEnvironment(), serviceNode.getServiceName(), versionNode.getVersion()), true,
+                        serviceNode.getServiceName());
+                if (snapshot != null) {
+                    changes += applyVersion(serviceNode, versionNode.getVersion(),
+                            snapshot.getVersion(serviceNode.getServiceName(), versionNode.getVersion()),
+                            snapshot.getEtcdIndex());
+                }
+            }
+        }
 
-        String[] splitted = key.split("/");
+        return changes;
+    }
 
-        if (splitted.length < 2) {
-            return null;
-        } else {
-            return splitted[2];
+    /**
+     * @return true if the watch already applied events newer than the given etcd index
+     */
+    private boolean isStale(String key, long etcdIndex) {
+        AtomicLong watchIndex = this.watchIndexes.get(key);
+
+        return watchIndex != null && watchIndex.get() > etcdIndex;
+    }
+
+    private void removeServiceInstance(Etcd2ServiceNode serviceNode, Etcd2VersionNode versionNode,
+                                       String instanceId, long modifiedIndex) {
+        Etcd2Service removed = versionNode.removeInstance(instanceId, true, modifiedIndex);
+        if (removed != null && versionNode.isEmpty()) {
+            serviceNode.setLastKnownVersion(versionNode.getVersion());
         }
+    }
 
+    /**
+     * @return true if watch on the key covers all versions of a service (service or environment watch)
+     */
+    private boolean isKeyForVersions(String key) {
+        Etcd2KeyParser parsedKey = keyParser.get();
+
+        return parsedKey.parse(key) && (parsedKey.isServiceKey() || parsedKey.isEnvironmentKey());
+    }
+
+    private EtcdClient getReadClient() {
+        Etcd2EndpointManager endpointManager = this.endpoints;
+
+        return (endpointManager != null) ? endpointManager.getReadClient() : null;
+    }
+
+    private EtcdClient getWriteClient() {
+        Etcd2EndpointManager endpointManager = this.endpoints;
+
+        return (endpointManager != null) ? endpointManager.getWriteClient() : null;
+    }
+
+    private String getEnvironmentKey(String environment) {
+        return "/environments/" + environment + "/services";
+    }
+
+    private String getServiceKeyVersions(String environment, String serviceName) {
+        return "/environments/" + environment + "/services/" + serviceName;
+    }
+
+    private String getGatewayKey(String environment, String serviceName, String version) {
+        return "/environments/" + environment + "/services/" + serviceName + "/" + version + "/gatewayUrl";
+    }
+
+    private boolean isEndpoint(String value, Endpoint endpoint) {
+        try {
+            return Endpoint.parse(value).equals(endpoint);
+        } catch (MalformedURLException e) {
+            return false;
+        }
     }
 
     private void putEtcdKey(String key, String value) {
@@ -927,7 +1762,7 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         if (etcd != null) {
 
             try {
-                etcd.put(key, value).send().get();
+                getWriteClient().put(key, value).send().get();
             } catch (SocketException | TimeoutException e) {
                 String message = "Timeout exception. Cannot read given key in specified time or retry-count " +
                         "constraints.";
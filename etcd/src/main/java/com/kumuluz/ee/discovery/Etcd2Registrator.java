@@ -21,16 +21,20 @@
 package com.kumuluz.ee.discovery;
 
 import com.kumuluz.ee.discovery.exceptions.EtcdNotAvailableException;
+import com.kumuluz.ee.discovery.utils.Etcd2LeaderElection;
 import com.kumuluz.ee.discovery.utils.Etcd2ServiceConfiguration;
 import com.kumuluz.ee.discovery.utils.Etcd2Utils;
+import com.kumuluz.ee.discovery.utils.WeightedRoundRobin;
 import mousio.etcd4j.EtcdClient;
 import mousio.etcd4j.responses.EtcdAuthenticationException;
 import mousio.etcd4j.responses.EtcdException;
-import mousio.etcd4j.responses.EtcdKeysResponse;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,28 +48,113 @@ import java.util.logging.Logger;
 public class Etcd2Registrator implements Runnable {
     private static final Logger log = Logger.getLogger(Etcd2Registrator.class.getName());
 
-    private EtcdClient etcd;
+    private Supplier<EtcdClient> etcdClient;
     private Etcd2ServiceConfiguration serviceConfig;
     private boolean resilience;
 
-    private boolean isRegistered;
+    private volatile boolean isRegistered;
 
-    public Etcd2Registrator(EtcdClient etcd, Etcd2ServiceConfiguration serviceConfig, boolean resilience) {
-        this.etcd = etcd;
+    private Etcd2LeaderElection singletonElection;
+
+    /**
+     * @param etcdClient    supplies the client for writes, which may change when etcd members fail
+     * @param serviceConfig service configuration
+     * @param resilience    if false, timeouts are thrown as exceptions
+     * @param executor      executor, on which heartbeats are run
+     * @param ioExecutor    executor, on which the singleton key is taken over
+     */
+    public Etcd2Registrator(Supplier<EtcdClient> etcdClient, Etcd2ServiceConfiguration serviceConfig,
+                            boolean resilience, ScheduledExecutorService executor, ExecutorService ioExecutor) {
+        this.etcdClient = etcdClient;
         this.serviceConfig = serviceConfig;
         this.resilience = resilience;
+
+        if (serviceConfig.isSingleton()) {
+            // only the holder of the singleton key registers, others take over when the key expires
+            this.singletonElection = new Etcd2LeaderElection(etcdClient, serviceConfig.getServiceName(),
+                    Etcd2Utils.getSingletonKey(serviceConfig.getEnvironment(), serviceConfig.getServiceName(),
+                            serviceConfig.getServiceVersion()), serviceConfig.getTtl(), (election, leader) -> {
+                        if (leader) {
+                            executor.execute(() -> {
+                                if (!this.isRegistered) {
+                                    heartbeat();
+                                }
+                            });
+                        }
+                    }, executor, ioExecutor);
+        }
     }
 
     public void run() {
+        heartbeat();
+    }
+
+    public Etcd2ServiceConfiguration getServiceConfig() {
+        return serviceConfig;
+    }
+
+    /**
+     * Changes the weight of the instance. The weight key is written immediately, if the instance is registered, and
+     * with every later registration.
+     *
+     * @param weight new weight of the instance
+     */
+    public synchronized void setWeight(int weight) {
+        this.serviceConfig.setWeight(weight);
+
+        if (!this.isRegistered) {
+            return;
+        }
+
+        EtcdClient etcd = this.etcdClient.get();
+        if (etcd == null) {
+            log.severe("etcd not initialised.");
+            return;
+        }
+
+        try {
+            etcd.put(this.serviceConfig.getServiceInstanceKey() + "/weight", Integer.toString(weight)).send().get();
+        } catch (IOException | EtcdException | EtcdAuthenticationException | TimeoutException e) {
+            log.severe("Cannot update weight of service instance. Error: " + e.toString());
+        }
+    }
+
+    /**
+     * Registers the service or refreshes its TTL.
+     *
+     * @return true if the service is registered and its TTL was refreshed
+     */
+    public boolean heartbeat() {
+        if (this.singletonElection != null && !this.singletonElection.refresh()) {
+            if (this.isRegistered) {
+                log.warning("Singleton key was taken over by another instance. Deregistering service instance: " +
+                        this.serviceConfig.getServiceInstanceKey());
+                deleteRegistration();
+            } else {
+                log.warning("Instance was not registered. Trying to register a singleton microservice instance, " +
+                        "but another instance is already registered.");
+            }
+
+            return false;
+        }
+
         if (!this.isRegistered) {
             this.registerToEtcd();
+            return this.isRegistered;
         } else {
 
             log.fine("Sending heartbeat. " + this.serviceConfig.getServiceInstanceKey());
 
+            EtcdClient etcd = this.etcdClient.get();
+            if (etcd == null) {
+                log.severe("etcd not initialised.");
+                return false;
+            }
+
             try {
-                this.etcd.putDir(this.serviceConfig.getServiceInstanceKey()).prevExist(true)
+                etcd.putDir(this.serviceConfig.getServiceInstanceKey()).prevExist(true)
                         .refresh(this.serviceConfig.getTtl()).send().get();
+                return true;
             } catch (SocketException | TimeoutException e) {
                 handleTimeoutException(e);
             } catch (IOException e) {
@@ -79,85 +168,73 @@ public class Etcd2Registrator implements Runnable {
 
                     this.isRegistered = false;
                     this.registerToEtcd();
+                    return this.isRegistered;
                 } else {
                     log.severe("Unknown etcd exception. Message: " + e.getMessage());
                 }
             }
+
+            return false;
         }
     }
 
-    private void registerToEtcd() {
-        if (this.serviceConfig.isSingleton() && isRegistered()) {
-
-            log.warning("Instance was not registered. Trying to register a singleton microservice instance, but " +
-                    "another instance is already registered.");
+    /**
+     * Releases the singleton key, so another instance can take over immediately.
+     */
+    public void close() {
+        if (this.singletonElection != null) {
+            this.singletonElection.close();
+        }
+    }
 
-        } else {
+    private synchronized void registerToEtcd() {
+        EtcdClient etcd = this.etcdClient.get();
+        if (etcd != null) {
+            log.info("Registering service with etcd. Service ID: " + this.serviceConfig.getServiceKeyUrl());
 
-            if (this.etcd != null) {
-                log.info("Registering service with etcd. Service ID: " + this.serviceConfig.getServiceKeyUrl());
-
-                try {
-                    etcd.putDir(this.serviceConfig.getServiceInstanceKey()).ttl(this.serviceConfig.getTtl())
-                            .send().get();
-                    etcd.put(this.serviceConfig.getServiceKeyUrl(), this.serviceConfig.getBaseUrl()).send().get();
-                    if (this.serviceConfig.getContainerUrl() != null) {
-                        etcd.put(this.serviceConfig.getServiceInstanceKey() + "/containerUrl",
-                                this.serviceConfig.getContainerUrl()).send().get();
-                    }
-                    if (this.serviceConfig.getClusterId() != null) {
-                        etcd.put(this.serviceConfig.getServiceInstanceKey() + "/clusterId",
-                                this.serviceConfig.getClusterId()).send().get();
-                    }
-
-                    this.isRegistered = true;
-                } catch (SocketException | TimeoutException e) {
-                    handleTimeoutException(e);
-                } catch (IOException e) {
-                    log.info("IO Exception. Cannot put given key: " + e);
-                } catch (EtcdException e) {
-                    log.info("Etcd exception. " + e);
-                } catch (EtcdAuthenticationException e) {
-                    log.severe("Etcd authentication exception. Cannot put given key: " + e);
+            try {
+                etcd.putDir(this.serviceConfig.getServiceInstanceKey()).ttl(this.serviceConfig.getTtl())
+                        .send().get();
+                etcd.put(this.serviceConfig.getServiceKeyUrl(), this.serviceConfig.getBaseUrl()).send().get();
+                if (this.serviceConfig.getContainerUrl() != null) {
+                    etcd.put(this.serviceConfig.getServiceInstanceKey() + "/containerUrl",
+                            this.serviceConfig.getContainerUrl()).send().get();
+                }
+                if (this.serviceConfig.getClusterId() != null) {
+                    etcd.put(this.serviceConfig.getServiceInstanceKey() + "/clusterId",
+                            this.serviceConfig.getClusterId()).send().get();
+                }
+                if (this.serviceConfig.getWeight() != WeightedRoundRobin.DEFAULT_WEIGHT) {
+                    etcd.put(this.serviceConfig.getServiceInstanceKey() + "/weight",
+                            Integer.toString(this.serviceConfig.getWeight())).send().get();
                 }
-            } else {
-                log.severe("etcd not initialised.");
-            }
 
+                this.isRegistered = true;
+            } catch (SocketException | TimeoutException e) {
+                handleTimeoutException(e);
+            } catch (IOException e) {
+                log.info("IO Exception. Cannot put given key: " + e);
+            } catch (EtcdException e) {
+                log.info("Etcd exception. " + e);
+            } catch (EtcdAuthenticationException e) {
+                log.severe("Etcd authentication exception. Cannot put given key: " + e);
+            }
+        } else {
+            log.severe("etcd not initialised.");
         }
     }
 
-    private boolean isRegistered() {
-        String serviceInstancesKey = Etcd2Utils.getServiceKeyInstances(this.serviceConfig.getEnvironment(),
-                this.serviceConfig.getServiceName(), this.serviceConfig.getServiceVersion());
-
-        EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(this.etcd, serviceInstancesKey, this.resilience);
-
-        if (etcdKeysResponse != null) {
-            for (EtcdKeysResponse.EtcdNode node : etcdKeysResponse.getNode().getNodes()) {
-
-                String url = null;
-                boolean isActive = true;
-                for (EtcdKeysResponse.EtcdNode instanceNode : node.getNodes()) {
+    private void deleteRegistration() {
+        this.isRegistered = false;
 
-                    if ("url".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                            instanceNode.getValue() != null) {
-                        url = instanceNode.getValue();
-                    }
-
-                    if ("status".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                            "disabled".equals(instanceNode.getValue())) {
-                        isActive = false;
-                    }
-
-                }
-                if (isActive && url != null) {
-                    return true;
-                }
+        EtcdClient etcd = this.etcdClient.get();
+        if (etcd != null) {
+            try {
+                etcd.deleteDir(this.serviceConfig.getServiceInstanceKey()).recursive().send().get();
+            } catch (IOException | EtcdException | EtcdAuthenticationException | TimeoutException e) {
+                log.severe("Cannot deregister service. Error: " + e.toString());
             }
         }
-
-        return false;
     }
 
     private void handleTimeoutException(Throwable e) {
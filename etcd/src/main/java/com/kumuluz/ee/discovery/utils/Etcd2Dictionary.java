@@ -0,0 +1,81 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of values, which repeat across many instances, e.g. cluster IDs.
+ *
+ * Values read from etcd are separate strings, even if they are equal. The dictionary returns a single shared instance
+ * for equal values, so a registry with many instances holds each distinct value only once. The number of entries is
+ * bounded, values over the limit are returned as they are.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2Dictionary {
+
+    private static final int DEFAULT_MAX_SIZE = 4096;
+
+    private static final Etcd2Dictionary CLUSTER_IDS = new Etcd2Dictionary(DEFAULT_MAX_SIZE);
+
+    private final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    public Etcd2Dictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return dictionary shared by cluster IDs of all instances
+     */
+    public static Etcd2Dictionary clusterIds() {
+        return CLUSTER_IDS;
+    }
+
+    /**
+     * @param value value
+     * @return shared instance of the value or the value itself, if the dictionary is full
+     */
+    public String get(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        String shared = values.get(value);
+        if (shared != null) {
+            return shared;
+        }
+
+        if (values.size() >= maxSize) {
+            return value;
+        }
+
+        shared = values.putIfAbsent(value, value);
+
+        return (shared != null) ? shared : value;
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
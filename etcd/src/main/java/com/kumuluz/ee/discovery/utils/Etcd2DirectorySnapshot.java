@@ -0,0 +1,203 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import mousio.etcd4j.responses.EtcdKeysResponse;
+
+import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Content of an environment, service, version or instances directory, read from etcd.
+ *
+ * Nodes are routed by their keys into instances and gateway URLs of their versions as they are received, so the
+ * snapshot can be filled directly from a streamed response or from a node tree read with etcd4j.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2DirectorySnapshot implements Etcd2NodeHandler {
+
+    private static final Logger log = Logger.getLogger(Etcd2DirectorySnapshot.class.getName());
+
+    private static final int FIELD_URL = 0;
+    private static final int FIELD_CONTAINER_URL = 1;
+    private static final int FIELD_CLUSTER_ID = 2;
+    private static final int FIELD_STATUS = 3;
+    private static final int FIELD_WEIGHT = 4;
+
+    private final Etcd2KeyParser key = new Etcd2KeyParser();
+    private final Map<String, Map<String, Version>> services = new HashMap<>();
+
+    private long etcdIndex;
+
+    /**
+     * Fills a snapshot from a node tree read with etcd4j.
+     *
+     * @param node      directory node
+     * @param etcdIndex etcd index of the read
+     */
+    public static Etcd2DirectorySnapshot of(EtcdKeysResponse.EtcdNode node, long etcdIndex) {
+        Etcd2DirectorySnapshot snapshot = new Etcd2DirectorySnapshot();
+        snapshot.setEtcdIndex(etcdIndex);
+        snapshot.addTree(node);
+
+        return snapshot;
+    }
+
+    private void addTree(EtcdKeysResponse.EtcdNode node) {
+        if (node.getNodes() != null) {
+            for (EtcdKeysResponse.EtcdNode child : node.getNodes()) {
+                addTree(child);
+            }
+        }
+
+        node(node.getKey(), node.getValue(), node.isDir(), (node.getTTL() == null) ? 0 : node.getTTL(),
+                (node.getModifiedIndex() == null) ? 0 : node.getModifiedIndex());
+    }
+
+    @Override
+    public void node(String nodeKey, String value, boolean dir, long ttl, long modifiedIndex) {
+        if (!key.parse(nodeKey) || !key.has(Etcd2KeyParser.SEGMENT_SERVICE)) {
+            return;
+        }
+
+        Map<String, Version> versions = services.computeIfAbsent(key.get(Etcd2KeyParser.SEGMENT_SERVICE),
+                s -> new HashMap<>());
+        if (!key.has(Etcd2KeyParser.SEGMENT_VERSION)) {
+            return;
+        }
+
+        if (key.isVersionKey()) {
+            if (dir) {
+                versions.computeIfAbsent(key.get(Etcd2KeyParser.SEGMENT_VERSION), v -> new Version());
+            }
+            return;
+        }
+
+        Version version = versions.computeIfAbsent(key.get(Etcd2KeyParser.SEGMENT_VERSION), v -> new Version());
+        version.hasContent = true;
+
+        if (key.isGatewayUrlKey() && value != null) {
+            try {
+                version.gatewayUrl = Endpoint.parse(value);
+            } catch (MalformedURLException e) {
+                log.severe("Malformed URL exception: " + e.toString());
+            }
+        } else if (key.isInstanceFieldKey() && value != null) {
+            String[] fields = version.instanceFields.computeIfAbsent(key.get(Etcd2KeyParser.SEGMENT_INSTANCE),
+                    i -> new String[5]);
+
+            if (key.isField("url")) {
+                fields[FIELD_URL] = value;
+            } else if (key.isField("containerUrl")) {
+                fields[FIELD_CONTAINER_URL] = value;
+            } else if (key.isField("clusterId")) {
+                fields[FIELD_CLUSTER_ID] = value;
+            } else if (key.isField("status")) {
+                fields[FIELD_STATUS] = value;
+            } else if (key.isField("weight")) {
+                fields[FIELD_WEIGHT] = value;
+            }
+        }
+    }
+
+    public long getEtcdIndex() {
+        return etcdIndex;
+    }
+
+    public void setEtcdIndex(long etcdIndex) {
+        this.etcdIndex = etcdIndex;
+    }
+
+    /**
+     * @return names of services present in the snapshot
+     */
+    public Iterable<String> getServices() {
+        return services.keySet();
+    }
+
+    /**
+     * @return versions of the service present in the snapshot, keyed by version
+     */
+    public Map<String, Version> getVersions(String serviceName) {
+        Map<String, Version> versions = services.get(serviceName);
+
+        return (versions == null) ? Collections.emptyMap() : versions;
+    }
+
+    /**
+     * @return content of the version directory, or null if the version is not present in the snapshot
+     */
+    public Version getVersion(String serviceName, String version) {
+        return getVersions(serviceName).get(version);
+    }
+
+    /**
+     * Content of a version directory.
+     */
+    public static class Version {
+
+        private final Map<String, String[]> instanceFields = new HashMap<>();
+        private Endpoint gatewayUrl;
+        private boolean hasContent;
+
+        /**
+         * @return true if the version directory has any children
+         */
+        public boolean hasContent() {
+            return hasContent;
+        }
+
+        public Endpoint getGatewayUrl() {
+            return gatewayUrl;
+        }
+
+        /**
+         * @return active instances with a base URL, keyed by instance ID
+         */
+        public Map<String, Etcd2Service> getInstances() {
+            Map<String, Etcd2Service> instances = new HashMap<>();
+
+            instanceFields.forEach((instanceId, fields) -> {
+                if (fields[FIELD_URL] == null || "disabled".equals(fields[FIELD_STATUS])) {
+                    return;
+                }
+
+                try {
+                    Endpoint containerUrl = (fields[FIELD_CONTAINER_URL] == null ||
+                            fields[FIELD_CONTAINER_URL].isEmpty()) ? null : Endpoint.parse(fields[FIELD_CONTAINER_URL]);
+                    String clusterId = (fields[FIELD_CLUSTER_ID] == null || fields[FIELD_CLUSTER_ID].isEmpty()) ?
+                            null : fields[FIELD_CLUSTER_ID];
+                    instances.put(instanceId, new Etcd2Service(Endpoint.parse(fields[FIELD_URL]), containerUrl,
+                            clusterId, Etcd2Utils.parseWeight(fields[FIELD_WEIGHT])));
+                } catch (MalformedURLException e) {
+                    log.severe("Malformed URL exception: " + e.toString());
+                }
+            });
+
+            return instances;
+        }
+    }
+}
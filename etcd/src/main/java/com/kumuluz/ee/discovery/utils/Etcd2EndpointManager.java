@@ -0,0 +1,284 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import mousio.client.retry.RetryPolicy;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.responses.EtcdSelfStatsResponse;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects etcd cluster members for requests.
+ *
+ * Every member gets its own client and is periodically probed. Reads and watches are sent to the healthy member with
+ * the lowest smoothed round-trip time, writes are sent to the leader, so they are not forwarded by a follower. Members
+ * which fail repeatedly are skipped until the circuit open time elapses and a probe succeeds again. If no member is
+ * healthy, the client with all members is used, which retries over all hosts.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2EndpointManager {
+
+    private static final Logger log = Logger.getLogger(Etcd2EndpointManager.class.getName());
+
+    private static final String LEADER_STATE = "StateLeader";
+
+    // weight of the newest RTT sample
+    private static final double RTT_SMOOTHING = 0.3;
+    // another member is preferred only if it is faster by this factor, to prevent flapping between similar members
+    private static final double SWITCH_THRESHOLD = 0.8;
+
+    private final EtcdClient clusterClient;
+    private final List<Member> members;
+    private final int failureThreshold;
+    private final long circuitOpenNanos;
+    private final ScheduledExecutorService prober;
+
+    private volatile Member preferredMember;
+
+    /**
+     * @param hosts              etcd hosts
+     * @param clientFactory      creates a client for given hosts
+     * @param clusterRetryPolicy default retry policy of the client with all members
+     * @param memberRetryPolicy  default retry policy of the member clients
+     * @param probeIntervalMs    interval of member probes in ms, 0 disables endpoint selection
+     * @param failureThreshold   number of consecutive failures, after which the circuit of a member is opened
+     * @param circuitOpenMs      time in ms, for which a member with open circuit is skipped
+     */
+    public Etcd2EndpointManager(URI[] hosts, Function<URI[], EtcdClient> clientFactory,
+                                RetryPolicy clusterRetryPolicy, RetryPolicy memberRetryPolicy, int probeIntervalMs,
+                                int failureThreshold, int circuitOpenMs) {
+
+        this.clusterClient = clientFactory.apply(hosts);
+        this.clusterClient.setRetryHandler(clusterRetryPolicy);
+
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.circuitOpenNanos = TimeUnit.MILLISECONDS.toNanos(circuitOpenMs);
+
+        if (hosts.length > 1 && probeIntervalMs > 0) {
+            List<Member> memberList = new ArrayList<>(hosts.length);
+            for (URI host : hosts) {
+                EtcdClient client = clientFactory.apply(new URI[]{host});
+                client.setRetryHandler(memberRetryPolicy);
+                memberList.add(new Member(host, client));
+            }
+            this.members = Collections.unmodifiableList(memberList);
+
+            this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kumuluzee-discovery-etcd-probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.prober.scheduleWithFixedDelay(this::probeMembers, 0, probeIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.members = Collections.emptyList();
+            this.prober = null;
+        }
+    }
+
+    /**
+     * @return client with all members, used when no member is known to be healthy
+     */
+    public EtcdClient getClusterClient() {
+        return clusterClient;
+    }
+
+    /**
+     * @return client for reads and watches
+     */
+    public EtcdClient getReadClient() {
+        Member member = preferredMember;
+
+        return (member != null && member.isAvailable()) ? member.client : clusterClient;
+    }
+
+    /**
+     * @return member preferred for reads and watches, or null if no member is known to be healthy
+     */
+    public URI getReadHost() {
+        Member member = preferredMember;
+
+        return (member != null && member.isAvailable()) ? member.host : null;
+    }
+
+    /**
+     * @return client for writes
+     */
+    public EtcdClient getWriteClient() {
+        for (Member member : members) {
+            if (member.leader && member.isAvailable()) {
+                return member.client;
+            }
+        }
+
+        return getReadClient();
+    }
+
+    /**
+     * Reports a failed request. Opens the circuit of the member after the configured number of consecutive failures.
+     */
+    public void reportFailure(EtcdClient client) {
+        Member member = getMember(client);
+        if (member != null) {
+            recordFailure(member);
+            if (member == preferredMember && !member.isAvailable()) {
+                selectPreferredMember();
+            }
+        }
+    }
+
+    public void close() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+
+        for (Member member : members) {
+            closeClient(member.client);
+        }
+        closeClient(clusterClient);
+    }
+
+    private void probeMembers() {
+        for (Member member : members) {
+            if (member.isOpen()) {
+                // circuit is open, member is probed again after the open time elapses
+                continue;
+            }
+
+            long start = System.nanoTime();
+            EtcdSelfStatsResponse stats = member.client.getSelfStats();
+            long rtt = System.nanoTime() - start;
+
+            if (stats != null) {
+                member.recordSuccess(rtt, LEADER_STATE.equals(stats.getState()));
+            } else {
+                recordFailure(member);
+            }
+        }
+
+        selectPreferredMember();
+    }
+
+    private synchronized void selectPreferredMember() {
+        Member current = preferredMember;
+        Member best = null;
+
+        for (Member member : members) {
+            if (member.isAvailable() && member.rttNanos > 0 && (best == null || member.rttNanos < best.rttNanos)) {
+                best = member;
+            }
+        }
+
+        if (current != null && current.isAvailable() && best != null &&
+                best.rttNanos > current.rttNanos * SWITCH_THRESHOLD) {
+            // current member is not significantly slower
+            return;
+        }
+
+        if (best != current) {
+            if (best != null) {
+                log.log(Level.INFO, "Using etcd member {0} for reads and watches. Round-trip time: {1} ms",
+                        new Object[]{best.host, TimeUnit.NANOSECONDS.toMillis(best.rttNanos)});
+            } else {
+                log.warning("No healthy etcd member found, using all members.");
+            }
+            preferredMember = best;
+        }
+    }
+
+    private void recordFailure(Member member) {
+        synchronized (member) {
+            member.failures++;
+            if (member.failures >= failureThreshold && !member.isOpen()) {
+                log.log(Level.WARNING, "etcd member {0} failed {1} times, skipping it for {2} ms.",
+                        new Object[]{member.host, member.failures, TimeUnit.NANOSECONDS.toMillis(circuitOpenNanos)});
+                member.openUntil = System.nanoTime() + circuitOpenNanos;
+                member.open = true;
+            }
+        }
+    }
+
+    private Member getMember(EtcdClient client) {
+        for (Member member : members) {
+            if (member.client == client) {
+                return member;
+            }
+        }
+
+        return null;
+    }
+
+    private static void closeClient(EtcdClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.severe("Could not close etcd client. Exception: " + e.getMessage());
+        }
+    }
+
+    private static class Member {
+
+        private final URI host;
+        private final EtcdClient client;
+
+        private volatile long rttNanos;
+        private volatile boolean leader;
+        private volatile boolean open;
+        private volatile long openUntil;
+        private int failures;
+
+        private Member(URI host, EtcdClient client) {
+            this.host = host;
+            this.client = client;
+        }
+
+        private boolean isOpen() {
+            return open && openUntil - System.nanoTime() > 0;
+        }
+
+        /**
+         * @return true if circuit is closed. After the open time elapses, the member stays unavailable until a probe
+         * succeeds.
+         */
+        private boolean isAvailable() {
+            return !open;
+        }
+
+        private synchronized void recordSuccess(long rtt, boolean isLeader) {
+            this.rttNanos = (rttNanos == 0) ? rtt : (long) (RTT_SMOOTHING * rtt + (1 - RTT_SMOOTHING) * rttNanos);
+            this.leader = isLeader;
+            this.failures = 0;
+            this.open = false;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records etcd indexes observed by reads and watches over time.
+ *
+ * etcd v2 responses do not carry the replication lag of the member, which served them. Staleness of a read is
+ * therefore bounded by its etcd index: a read is at most max staleness behind, if its index is not lower than the
+ * highest index observed max staleness ago.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2IndexWatermark {
+
+    private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long retentionNanos;
+    private final Deque<long[]> samples = new ArrayDeque<>();
+
+    private volatile long highestIndex;
+
+    /**
+     * @param retentionMs largest max staleness, for which required indexes are queried
+     */
+    public Etcd2IndexWatermark(long retentionMs) {
+        this.retentionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(retentionMs, 0));
+    }
+
+    /**
+     * @param index etcd index, which was read or received with a watch event
+     */
+    public void observe(long index) {
+        if (index <= this.highestIndex) {
+            return;
+        }
+
+        synchronized (this.samples) {
+            if (index <= this.highestIndex) {
+                return;
+            }
+            this.highestIndex = index;
+
+            long now = System.nanoTime();
+            long[] newest = this.samples.peekLast();
+            if (newest != null && now - newest[0] < SAMPLE_INTERVAL_NANOS) {
+                // bursts of events are coalesced into the current sample, which makes the bound stricter by at most
+                // the sample interval
+                newest[1] = index;
+            } else {
+                this.samples.addLast(new long[]{now, index});
+            }
+
+            // keep the newest sample older than the retention, it is the watermark of the largest max staleness
+            while (this.samples.size() > 1) {
+                long[] oldest = this.samples.removeFirst();
+                if (now - this.samples.peekFirst()[0] < this.retentionNanos) {
+                    this.samples.addFirst(oldest);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param maxStalenessMs max staleness in milliseconds
+     * @return lowest etcd index, which a read must have, to be at most max staleness behind
+     */
+    public long getRequiredIndex(long maxStalenessMs) {
+        if (maxStalenessMs <= 0) {
+            return this.highestIndex;
+        }
+
+        long threshold = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxStalenessMs);
+
+        synchronized (this.samples) {
+            Iterator<long[]> iterator = this.samples.descendingIterator();
+            while (iterator.hasNext()) {
+                long[] sample = iterator.next();
+                if (sample[0] - threshold <= 0) {
+                    return sample[1];
+                }
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+/**
+ * Single-pass parser for etcd keys used by service discovery.
+ *
+ * Keys follow the schema /environments/{environment}/services/{service}/{version}/instances/{instanceId}/{field}.
+ * Parsing only records segment boundaries, so the parser can be reused for every watch event without allocating.
+ * Segment values are materialized as strings only when {@link #get(int)} is called.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2KeyParser {
+
+    public static final int SEGMENT_ENVIRONMENT = 1;
+    public static final int SEGMENT_SERVICE = 3;
+    public static final int SEGMENT_VERSION = 4;
+    public static final int SEGMENT_VERSION_CHILD = 5;
+    public static final int SEGMENT_INSTANCE = 6;
+    public static final int SEGMENT_FIELD = 7;
+
+    private static final int MAX_SEGMENTS = 8;
+
+    private static final String ENVIRONMENTS = "environments";
+    private static final String SERVICES = "services";
+    private static final String INSTANCES = "instances";
+    private static final String GATEWAY_URL = "gatewayUrl";
+
+    private final int[] starts = new int[MAX_SEGMENTS];
+    private final int[] ends = new int[MAX_SEGMENTS];
+
+    private String key;
+    private int segments;
+
+    /**
+     * Parses given key. Trailing slashes are ignored.
+     *
+     * @param key etcd key
+     * @return true, if key is a discovery key with at least the environment's services directory
+     */
+    public boolean parse(String key) {
+        this.key = key;
+        this.segments = 0;
+
+        if (key == null) {
+            return false;
+        }
+
+        int length = key.length();
+        int position = 0;
+
+        while (position < length) {
+            if (key.charAt(position) == '/') {
+                position++;
+                continue;
+            }
+
+            int end = key.indexOf('/', position);
+            if (end < 0) {
+                end = length;
+            }
+
+            if (segments == MAX_SEGMENTS) {
+                // deeper keys are not part of the discovery schema
+                segments = 0;
+                return false;
+            }
+
+            starts[segments] = position;
+            ends[segments] = end;
+            segments++;
+
+            position = end + 1;
+        }
+
+        if (segments < SEGMENT_SERVICE || !matches(0, ENVIRONMENTS) || !matches(2, SERVICES)) {
+            segments = 0;
+            return false;
+        }
+
+        if (segments > SEGMENT_INSTANCE && !matches(SEGMENT_VERSION_CHILD, INSTANCES)) {
+            segments = 0;
+            return false;
+        }
+
+        return true;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return number of parsed segments, 0 if last parsed key was not a discovery key
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    public boolean has(int segment) {
+        return segment < segments;
+    }
+
+    public int start(int segment) {
+        return starts[segment];
+    }
+
+    public int end(int segment) {
+        return ends[segment];
+    }
+
+    /**
+     * Compares segment with given value without allocating.
+     *
+     * @param segment segment index
+     * @param value   value to compare with
+     * @return true if segment is present and equal to value
+     */
+    public boolean matches(int segment, String value) {
+        if (segment >= segments) {
+            return false;
+        }
+
+        int length = ends[segment] - starts[segment];
+
+        return length == value.length() && key.regionMatches(starts[segment], value, 0, length);
+    }
+
+    /**
+     * @param segment segment index
+     * @return segment value or null, if segment is not present
+     */
+    public String get(int segment) {
+        if (!has(segment)) {
+            return null;
+        }
+
+        return key.substring(starts[segment], ends[segment]);
+    }
+
+    /**
+     * @return true if key points to the services directory of an environment (/environments/{env}/services)
+     */
+    public boolean isEnvironmentKey() {
+        return segments == SEGMENT_SERVICE;
+    }
+
+    /**
+     * @return true if key points to a service directory (/environments/{env}/services/{service})
+     */
+    public boolean isServiceKey() {
+        return segments == SEGMENT_SERVICE + 1;
+    }
+
+    /**
+     * @return true if key points to a version directory (/environments/{env}/services/{service}/{version})
+     */
+    public boolean isVersionKey() {
+        return segments == SEGMENT_VERSION + 1;
+    }
+
+    /**
+     * @return true if key points to a gateway URL of a version
+     */
+    public boolean isGatewayUrlKey() {
+        return segments == SEGMENT_VERSION_CHILD + 1 && matches(SEGMENT_VERSION_CHILD, GATEWAY_URL);
+    }
+
+    /**
+     * @return true if key points to an instances directory of a version
+     */
+    public boolean isInstancesKey() {
+        return segments == SEGMENT_VERSION_CHILD + 1 && matches(SEGMENT_VERSION_CHILD, INSTANCES);
+    }
+
+    /**
+     * @return true if key points to an instance directory
+     */
+    public boolean isInstanceKey() {
+        return segments == SEGMENT_INSTANCE + 1;
+    }
+
+    /**
+     * @return true if key points to a field of an instance (url, containerUrl, clusterId, status, weight)
+     */
+    public boolean isInstanceFieldKey() {
+        return segments == SEGMENT_FIELD + 1;
+    }
+
+    public boolean isField(String field) {
+        return isInstanceFieldKey() && matches(SEGMENT_FIELD, field);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import mousio.client.promises.ResponsePromise;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
+import mousio.etcd4j.responses.EtcdException;
+import mousio.etcd4j.responses.EtcdKeyAction;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leader election with an etcd key.
+ *
+ * Leadership is acquired by atomically creating the leader key with a TTL (prevExist=false) and held by refreshing
+ * the TTL under the condition, that the key still holds the ID of this participant (prevValue). Participants, which
+ * did not acquire the leadership, watch the leader key and try to acquire it as soon as it is deleted or expires.
+ *
+ * Requests to etcd are blocking, so refreshes run on an I/O executor and the scheduler only starts them.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2LeaderElection implements LeaderElection {
+
+    private static final Logger log = Logger.getLogger(Etcd2LeaderElection.class.getName());
+
+    private final Supplier<EtcdClient> etcdClient;
+    private final String name;
+    private final String key;
+    private final int ttl;
+    private final LeadershipListener listener;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService ioExecutor;
+    private final String participantId;
+
+    private volatile boolean leader;
+    private volatile boolean closed;
+    private volatile boolean watching;
+    private long lastRefresh;
+
+    private HeartbeatScheduler heartbeat;
+
+    /**
+     * @param etcdClient supplies the client for writes
+     * @param name       name of the election
+     * @param key        leader key
+     * @param ttl        TTL of the leader key in seconds
+     * @param listener   leadership listener, may be null
+     * @param scheduler  scheduler of periodic refreshes
+     * @param ioExecutor executor, on which leadership is refreshed and taken over
+     */
+    public Etcd2LeaderElection(Supplier<EtcdClient> etcdClient, String name, String key, int ttl,
+                               LeadershipListener listener, ScheduledExecutorService scheduler,
+                               ExecutorService ioExecutor) {
+        this.etcdClient = etcdClient;
+        this.name = name;
+        this.key = key;
+        this.ttl = ttl;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.ioExecutor = ioExecutor;
+        this.participantId = UUID.randomUUID().toString();
+    }
+
+    /**
+     * Starts refreshing the leadership periodically. Not needed, if {@link #refresh()} is called by the owner.
+     */
+    public synchronized void start() {
+        if (heartbeat == null) {
+            heartbeat = HeartbeatScheduler.async(scheduler, "leader election " + name, ttl, Math.max(ttl / 3, 1),
+                    () -> CompletableFuture.supplyAsync(this::refresh, ioExecutor));
+            heartbeat.start();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * Acquires the leadership, if it is not held by another participant, or refreshes it, if it is held by this
+     * participant.
+     *
+     * @return true if this participant holds the leadership
+     */
+    public synchronized boolean refresh() {
+        if (closed) {
+            return false;
+        }
+
+        EtcdClient etcd = etcdClient.get();
+        if (etcd == null) {
+            log.severe("etcd not initialised.");
+            return false;
+        }
+
+        try {
+            if (leader) {
+                etcd.refresh(key, ttl).prevValue(participantId).send().get();
+            } else {
+                etcd.put(key, participantId).ttl(ttl).prevExist(false).send().get();
+            }
+            lastRefresh = System.nanoTime();
+            setLeader(true);
+        } catch (EtcdException e) {
+            if (e.isErrorCode(EtcdErrorCode.KeyNotFound)) {
+                // leader key expired before it was refreshed, try to acquire it again
+                setLeader(false);
+                refreshAsync();
+            } else if (e.isErrorCode(EtcdErrorCode.NodeExist) || e.isErrorCode(EtcdErrorCode.TestFailed)) {
+                // another participant holds the leadership
+                setLeader(false);
+                watchLeader(etcd, (e.getIndex() != null) ? e.getIndex() + 1 : 0);
+            } else {
+                log.log(Level.WARNING, "Cannot refresh leadership of {0}: {1}", new Object[]{name, e});
+                checkExpired();
+            }
+        } catch (IOException | EtcdAuthenticationException | TimeoutException e) {
+            log.log(Level.WARNING, "Cannot refresh leadership of {0}: {1}", new Object[]{name, e});
+            checkExpired();
+        }
+
+        return leader;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+
+        EtcdClient etcd = etcdClient.get();
+        if (leader && etcd != null) {
+            try {
+                etcd.delete(key).prevValue(participantId).send().get();
+            } catch (IOException | EtcdException | EtcdAuthenticationException | TimeoutException e) {
+                log.log(Level.WARNING, "Cannot release leadership of {0}: {1}", new Object[]{name, e});
+            }
+        }
+        setLeader(false);
+    }
+
+    private void checkExpired() {
+        if (leader && System.nanoTime() - lastRefresh > TimeUnit.SECONDS.toNanos(ttl)) {
+            // leader key expired in the meantime, another participant may have taken over
+            setLeader(false);
+        }
+    }
+
+    private void watchLeader(EtcdClient etcd, long index) {
+        if (watching || closed) {
+            return;
+        }
+        watching = true;
+
+        try {
+            etcd.get(key).waitForChange(index).send().addListener((ResponsePromise<EtcdKeysResponse> promise) -> {
+                watching = false;
+
+                EtcdKeysResponse response = promise.getNow();
+                if (closed || response == null) {
+                    // acquisition is retried on the next refresh
+                    return;
+                }
+
+                if (response.action == EtcdKeyAction.delete || response.action == EtcdKeyAction.expire ||
+                        response.action == EtcdKeyAction.compareAndDelete) {
+                    log.log(Level.FINE, "Leader of {0} is gone, taking over.", name);
+                    refreshAsync();
+                } else {
+                    watchLeader(etcd, response.getNode().getModifiedIndex() + 1);
+                }
+            });
+        } catch (IOException e) {
+            watching = false;
+            log.log(Level.WARNING, "Cannot watch leader of {0}: {1}", new Object[]{name, e});
+        }
+    }
+
+    private void refreshAsync() {
+        try {
+            ioExecutor.execute(this::refresh);
+        } catch (RejectedExecutionException e) {
+            log.log(Level.FINE, "Executor of leader election {0} is shut down.", name);
+        }
+    }
+
+    private void setLeader(boolean leader) {
+        if (this.leader != leader) {
+            this.leader = leader;
+
+            log.log(Level.INFO, leader ? "Acquired leadership of {0}." : "Lost leadership of {0}.", name);
+
+            if (listener != null) {
+                try {
+                    listener.leadershipChanged(this, leader);
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Leadership listener of {0} failed: {1}", new Object[]{name, e});
+                }
+            }
+        }
+    }
+}
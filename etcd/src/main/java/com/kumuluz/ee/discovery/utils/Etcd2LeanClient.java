@@ -0,0 +1,580 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.kumuluz.ee.discovery.exceptions.EtcdErrorResponseException;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.SimpleChannelPool;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringEncoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.AttributeKey;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lean etcd v2 client for reads and watches of service discovery keys.
+ *
+ * Reads reuse keep-alive connections from a pool per etcd member and parse responses with {@link Etcd2NodeParser}
+ * directly into a {@link Etcd2NodeHandler}. Watches use the streaming mode of etcd v2 (stream=true), so a single
+ * request receives all events of the watched key, instead of a new request per event.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2LeanClient implements Closeable {
+
+    private static final Logger log = Logger.getLogger(Etcd2LeanClient.class.getName());
+
+    private static final String KEYS_PATH = "/v2/keys";
+    private static final String ETCD_INDEX_HEADER = "X-Etcd-Index";
+    private static final int MAX_CONTENT_LENGTH = 64 * 1024 * 1024;
+
+    private static final AttributeKey<CompletableFuture<FullHttpResponse>> RESPONSE =
+            AttributeKey.valueOf("kumuluzee-discovery-etcd-response");
+
+    private final URI[] hosts;
+    private final Supplier<URI> preferredHost;
+    private final SslContext sslContext;
+    private final String authorization;
+    private final int requestTimeoutMs;
+
+    private final Bootstrap bootstrap;
+    private final Map<URI, ChannelPool> pools = new ConcurrentHashMap<>();
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+
+    private volatile int lastWorkingHost;
+
+    /**
+     * @param hosts            etcd members
+     * @param preferredHost    supplies the member, which is tried first, may return null
+     * @param eventLoopGroup   event loop of the connections, not closed with the client
+     * @param sslContext       SSL context for https members, may be null
+     * @param username         etcd username, may be null
+     * @param password         etcd password, may be null
+     * @param requestTimeoutMs timeout of connects and reads in ms
+     */
+    public Etcd2LeanClient(URI[] hosts, Supplier<URI> preferredHost, EventLoopGroup eventLoopGroup,
+                           SslContext sslContext, String username, String password, int requestTimeoutMs) {
+        this.hosts = hosts.clone();
+        this.preferredHost = preferredHost;
+        this.sslContext = sslContext;
+        this.authorization = (username != null && !username.isEmpty() && password != null) ? "Basic " +
+                Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8)) :
+                null;
+        this.requestTimeoutMs = requestTimeoutMs;
+
+        this.bootstrap = new Bootstrap()
+                .group(eventLoopGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, requestTimeoutMs);
+    }
+
+    /**
+     * Reads a directory. Members are tried in order, starting with the preferred member.
+     *
+     * @param key       directory key
+     * @param recursive if false, only direct children are read, without their content
+     * @param quorum    if true, the read is confirmed by a quorum of the cluster
+     * @param handler   receives all nodes of the response
+     * @return etcd index of the read
+     * @throws IOException                if no member could be read
+     * @throws EtcdErrorResponseException if etcd responded with an error, e.g. key not found
+     */
+    public long getDir(String key, boolean recursive, boolean quorum, Etcd2NodeHandler handler) throws IOException,
+            EtcdErrorResponseException {
+
+        String uri = getDirUri(key, recursive, quorum);
+
+        IOException lastException = null;
+        for (int i : getHostOrder()) {
+            FullHttpResponse response;
+            try {
+                response = send(hosts[i], uri);
+            } catch (IOException e) {
+                log.log(Level.FINE, "Cannot read key {0} from etcd member {1}: {2}", new Object[]{key, hosts[i], e});
+                lastException = e;
+                continue;
+            }
+
+            try {
+                lastWorkingHost = i;
+
+                return readDirResponse(response, handler);
+            } finally {
+                response.release();
+            }
+        }
+
+        throw (lastException != null) ? lastException : new IOException("No etcd members configured.");
+    }
+
+    static String getDirUri(String key, boolean recursive, boolean quorum) {
+        QueryStringEncoder uri = new QueryStringEncoder(KEYS_PATH + key);
+        if (recursive) {
+            uri.addParam("recursive", "true");
+        }
+        if (quorum) {
+            uri.addParam("quorum", "true");
+        }
+
+        return uri.toString();
+    }
+
+    /**
+     * Parses the response of a directory read. Nodes of error responses are not passed to the handler.
+     *
+     * @return etcd index of the read
+     * @throws EtcdErrorResponseException if the response is an etcd error, e.g. key not found
+     * @throws IOException                if the response is not successful, e.g. because of missing credentials
+     */
+    static long readDirResponse(FullHttpResponse response, Etcd2NodeHandler handler) throws IOException,
+            EtcdErrorResponseException {
+
+        if (!HttpResponseStatus.OK.equals(response.status())) {
+            try {
+                Etcd2NodeParser.parse(new ByteBufInputStream(response.content()), (k, v, d, t, m) -> {
+                });
+            } catch (JsonProcessingException e) {
+                // body is not an etcd error, e.g. a response of a proxy
+                log.log(Level.FINE, "Cannot parse etcd error response: {0}", e.toString());
+            }
+            throw new IOException("Unexpected response status from etcd: " + response.status());
+        }
+
+        String etcdIndex = response.headers().get(ETCD_INDEX_HEADER);
+        Etcd2NodeParser.parse(new ByteBufInputStream(response.content()), handler);
+
+        return (etcdIndex == null) ? 0 : Long.parseLong(etcdIndex);
+    }
+
+    /**
+     * Starts a continuous watch of a directory and all of its children.
+     *
+     * @param key          directory key
+     * @param waitIndex    index of the first event
+     * @param handler      receives the changed node of every event, on the I/O thread of the client
+     * @param closeHandler called once, when the watch ends without being closed by {@link Watch#close()}. The cause
+     *                     is null, if etcd ended the stream, {@link EtcdErrorResponseException} if etcd rejected the
+     *                     watch (e.g. the event index was cleared), or the transport error.
+     * @return handle of the watch
+     */
+    public Watch watch(String key, long waitIndex, Etcd2NodeHandler handler, Consumer<Throwable> closeHandler) {
+
+        String uri = getWatchUri(key, waitIndex);
+
+        URI host = hosts[getHostOrder().get(0)];
+        Watch watch = createWatch(closeHandler);
+
+        Bootstrap watchBootstrap = bootstrap.clone().remoteAddress(host.getHost(), getPort(host))
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        ChannelPipeline pipeline = channel.pipeline();
+                        addSslHandler(pipeline, channel, host);
+                        initWatchPipeline(pipeline, watch, handler);
+                    }
+                });
+
+        ChannelFuture connectFuture = watchBootstrap.connect();
+        watch.channel = connectFuture.channel();
+        connectFuture.addListener(future -> {
+            if (future.isSuccess()) {
+                watch.channel.writeAndFlush(createRequest(host, uri));
+            } else {
+                // try the next member with the next watch
+                lastWorkingHost = (lastWorkingHost + 1) % hosts.length;
+                watch.notifyClosed(future.cause());
+            }
+        });
+
+        return watch;
+    }
+
+    static String getWatchUri(String key, long waitIndex) {
+        QueryStringEncoder uri = new QueryStringEncoder(KEYS_PATH + key);
+        uri.addParam("wait", "true");
+        uri.addParam("recursive", "true");
+        uri.addParam("stream", "true");
+        if (waitIndex > 0) {
+            uri.addParam("waitIndex", Long.toString(waitIndex));
+        }
+
+        return uri.toString();
+    }
+
+    Watch createWatch(Consumer<Throwable> closeHandler) {
+        Watch watch = new Watch(closeHandler);
+        watches.add(watch);
+
+        return watch;
+    }
+
+    @Override
+    public void close() {
+        for (Watch watch : watches) {
+            watch.close();
+        }
+        for (ChannelPool pool : pools.values()) {
+            pool.close();
+        }
+    }
+
+    /**
+     * @return indexes of hosts in the order, in which they are tried
+     */
+    private List<Integer> getHostOrder() {
+        List<Integer> order = new ArrayList<>(hosts.length);
+
+        URI preferred = (preferredHost != null) ? preferredHost.get() : null;
+        for (int i = 0; i < hosts.length && preferred != null; i++) {
+            if (hosts[i].equals(preferred)) {
+                order.add(i);
+            }
+        }
+
+        int first = lastWorkingHost;
+        for (int i = 0; i < hosts.length; i++) {
+            int index = (first + i) % hosts.length;
+            if (!order.contains(index)) {
+                order.add(index);
+            }
+        }
+
+        return order;
+    }
+
+    private FullHttpResponse send(URI host, String uri) throws IOException {
+        ChannelPool pool = pools.computeIfAbsent(host, this::createPool);
+
+        Channel channel = await(pool.acquire(), "Cannot connect to etcd member " + host);
+
+        CompletableFuture<FullHttpResponse> responseFuture = expectResponse(channel);
+
+        boolean reusable = false;
+        try {
+            channel.writeAndFlush(createRequest(host, uri)).addListener(future -> {
+                if (!future.isSuccess()) {
+                    responseFuture.completeExceptionally(future.cause());
+                }
+            });
+
+            FullHttpResponse response = await(responseFuture, "Cannot read from etcd member " + host);
+            reusable = HttpUtil.isKeepAlive(response);
+
+            return response;
+        } finally {
+            channel.attr(RESPONSE).set(null);
+            if (!reusable) {
+                channel.close();
+            }
+            pool.release(channel);
+        }
+    }
+
+    private <T> T await(Future<T> future, String message) throws IOException {
+        try {
+            return future.get(requestTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException(message, e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new SocketTimeoutException(message + ": timed out after " + requestTimeoutMs + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(message);
+        }
+    }
+
+    private ChannelPool createPool(URI host) {
+        return new SimpleChannelPool(bootstrap.clone().remoteAddress(host.getHost(), getPort(host)),
+                new AbstractChannelPoolHandler() {
+                    @Override
+                    public void channelCreated(Channel channel) {
+                        ChannelPipeline pipeline = channel.pipeline();
+                        addSslHandler(pipeline, channel, host);
+                        initReadPipeline(pipeline);
+                    }
+                }, ChannelHealthChecker.ACTIVE);
+    }
+
+    static void initReadPipeline(ChannelPipeline pipeline) {
+        pipeline.addLast(new HttpClientCodec());
+        pipeline.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+        pipeline.addLast(new ResponseHandler());
+    }
+
+    static void initWatchPipeline(ChannelPipeline pipeline, Watch watch, Etcd2NodeHandler handler) {
+        pipeline.addLast(new HttpClientCodec());
+        pipeline.addLast(new WatchHandler(watch, handler));
+    }
+
+    /**
+     * @return future, which is completed with the next response received on the pooled connection
+     */
+    static CompletableFuture<FullHttpResponse> expectResponse(Channel channel) {
+        CompletableFuture<FullHttpResponse> responseFuture = new CompletableFuture<>();
+        channel.attr(RESPONSE).set(responseFuture);
+
+        return responseFuture;
+    }
+
+    private void addSslHandler(ChannelPipeline pipeline, Channel channel, URI host) {
+        if (sslContext != null && "https".equalsIgnoreCase(host.getScheme())) {
+            pipeline.addLast(sslContext.newHandler(channel.alloc(), host.getHost(), getPort(host)));
+        }
+    }
+
+    FullHttpRequest createRequest(URI host, String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, host.getHost() + ":" + getPort(host));
+        request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        if (authorization != null) {
+            request.headers().set(HttpHeaderNames.AUTHORIZATION, authorization);
+        }
+
+        return request;
+    }
+
+    private static int getPort(URI host) {
+        if (host.getPort() != -1) {
+            return host.getPort();
+        }
+
+        return "https".equalsIgnoreCase(host.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * Completes the pending request of a pooled connection.
+     */
+    private static class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            CompletableFuture<FullHttpResponse> future = ctx.channel().attr(RESPONSE).get();
+            if (future != null && !future.complete(response.retain())) {
+                response.release();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            fail(ctx, new IOException("Connection to etcd closed."));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(ctx, cause);
+            ctx.close();
+        }
+
+        private void fail(ChannelHandlerContext ctx, Throwable cause) {
+            CompletableFuture<FullHttpResponse> future = ctx.channel().attr(RESPONSE).get();
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Splits the streamed watch response into events, one JSON object per line, and parses them.
+     */
+    private static class WatchHandler extends SimpleChannelInboundHandler<HttpObject> {
+
+        private final Watch watch;
+        private final Etcd2NodeHandler handler;
+
+        private ByteBuf buffer;
+        private boolean streaming;
+
+        private WatchHandler(Watch watch, Etcd2NodeHandler handler) {
+            this.watch = watch;
+            this.handler = handler;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            buffer = ctx.alloc().buffer();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            buffer.release();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject message) throws Exception {
+            if (message instanceof HttpResponse) {
+                streaming = HttpResponseStatus.OK.equals(((HttpResponse) message).status());
+            }
+
+            if (message instanceof HttpContent) {
+                buffer.writeBytes(((HttpContent) message).content());
+
+                if (streaming) {
+                    parseEvents();
+                }
+
+                if (message instanceof LastHttpContent) {
+                    if (streaming) {
+                        watch.notifyClosed(null);
+                    } else {
+                        // error response, e.g. cleared event index
+                        parseError();
+                    }
+                    ctx.close();
+                }
+            }
+        }
+
+        private void parseEvents() throws IOException, EtcdErrorResponseException {
+            int end;
+            while ((end = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), (byte) '\n')) >= 0) {
+                int length = end - buffer.readerIndex();
+                if (length > 0) {
+                    byte[] event = new byte[length];
+                    buffer.readBytes(event);
+                    Etcd2NodeParser.parse(event, 0, length, handler);
+                }
+                buffer.skipBytes(1);
+            }
+            buffer.discardReadBytes();
+        }
+
+        private void parseError() {
+            try {
+                Etcd2NodeParser.parse(new ByteBufInputStream(buffer), handler);
+                watch.notifyClosed(new IOException("Unexpected response to etcd watch."));
+            } catch (IOException | EtcdErrorResponseException e) {
+                watch.notifyClosed(e);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            watch.notifyClosed(new IOException("Watch connection to etcd closed."));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            watch.notifyClosed(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Handle of a continuous watch.
+     */
+    public class Watch implements Closeable {
+
+        private final Consumer<Throwable> closeHandler;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private volatile Channel channel;
+
+        private Watch(Consumer<Throwable> closeHandler) {
+            this.closeHandler = closeHandler;
+        }
+
+        /**
+         * Stops the watch. Close handler is not called.
+         */
+        @Override
+        public void close() {
+            closed.set(true);
+            watches.remove(this);
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        private void notifyClosed(Throwable cause) {
+            if (closed.compareAndSet(false, true)) {
+                watches.remove(this);
+                if (channel != null) {
+                    channel.close();
+                }
+                try {
+                    closeHandler.accept(cause);
+                } catch (RuntimeException e) {
+                    log.severe("Exception in etcd watch close handler: " + e.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+/**
+ * Receives etcd nodes from a response, without building a node tree.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+@FunctionalInterface
+public interface Etcd2NodeHandler {
+
+    /**
+     * Called for every node of a response. Child nodes are passed before their parent directory.
+     *
+     * @param key           node key
+     * @param value         node value, null for directories and deleted or expired keys
+     * @param dir           true if node is a directory
+     * @param ttl           remaining TTL in seconds, 0 if node has no TTL
+     * @param modifiedIndex index of the last modification of the node
+     */
+    void node(String key, String value, boolean dir, long ttl, long modifiedIndex);
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.kumuluz.ee.discovery.exceptions.EtcdErrorResponseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser of etcd v2 keys responses and watch events.
+ *
+ * Nodes are passed to a {@link Etcd2NodeHandler} as soon as they are parsed, so recursive responses are applied
+ * without materializing the node tree. Fields, which are not used by service discovery, are skipped.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2NodeParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private Etcd2NodeParser() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Parses a keys response or a watch event.
+     *
+     * @param in      response body
+     * @param handler receives the node of the response and all of its children
+     * @throws EtcdErrorResponseException if the body is an etcd error
+     */
+    public static void parse(InputStream in, Etcd2NodeHandler handler) throws IOException,
+            EtcdErrorResponseException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            parse(parser, handler);
+        }
+    }
+
+    /**
+     * Parses a keys response or a watch event.
+     *
+     * @param body    buffer holding the response body
+     * @param offset  start of the body in the buffer
+     * @param length  length of the body
+     * @param handler receives the node of the response and all of its children
+     * @throws EtcdErrorResponseException if the body is an etcd error
+     */
+    public static void parse(byte[] body, int offset, int length, Etcd2NodeHandler handler) throws IOException,
+            EtcdErrorResponseException {
+        try (JsonParser parser = JSON_FACTORY.createParser(body, offset, length)) {
+            parse(parser, handler);
+        }
+    }
+
+    private static void parse(JsonParser parser, Etcd2NodeHandler handler) throws IOException,
+            EtcdErrorResponseException {
+
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected etcd response object.");
+        }
+
+        int errorCode = 0;
+        String message = null;
+        long index = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if ("node".equals(field) && token == JsonToken.START_OBJECT) {
+                parseNode(parser, handler);
+            } else if ("errorCode".equals(field)) {
+                errorCode = parser.getValueAsInt();
+            } else if ("message".equals(field)) {
+                message = parser.getValueAsString();
+            } else if ("index".equals(field)) {
+                index = parser.getValueAsLong();
+            } else {
+                // action, prevNode and cause are not used
+                parser.skipChildren();
+            }
+        }
+
+        if (errorCode != 0) {
+            throw new EtcdErrorResponseException(errorCode, message, index);
+        }
+    }
+
+    private static void parseNode(JsonParser parser, Etcd2NodeHandler handler) throws IOException {
+
+        String key = null;
+        String value = null;
+        boolean dir = false;
+        long ttl = 0;
+        long modifiedIndex = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            switch (field) {
+                case "key":
+                    key = parser.getValueAsString();
+                    break;
+                case "value":
+                    value = parser.getValueAsString();
+                    break;
+                case "dir":
+                    dir = parser.getValueAsBoolean();
+                    break;
+                case "ttl":
+                    ttl = parser.getValueAsLong();
+                    break;
+                case "modifiedIndex":
+                    modifiedIndex = parser.getValueAsLong();
+                    break;
+                case "nodes":
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            parseNode(parser, handler);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        handler.node(key, value, dir, ttl, modifiedIndex);
+    }
+}
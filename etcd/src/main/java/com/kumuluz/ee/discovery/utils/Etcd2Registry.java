@@ -0,0 +1,93 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Root of the registry trie. Services are keyed by environment and service name, versions and instances are stored in
+ * {@link Etcd2ServiceNode} and {@link Etcd2VersionNode}.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2Registry {
+
+    private volatile Etcd2SegmentMap<Etcd2SegmentMap<Etcd2ServiceNode>> environments = Etcd2SegmentMap.empty();
+
+    public Etcd2ServiceNode getService(String environment, String serviceName) {
+        Etcd2SegmentMap<Etcd2ServiceNode> services = environments.get(environment);
+
+        return (services == null) ? null : services.get(serviceName);
+    }
+
+    /**
+     * @return all tracked services of the environment
+     */
+    public List<Etcd2ServiceNode> getServices(String environment) {
+        Etcd2SegmentMap<Etcd2ServiceNode> services = environments.get(environment);
+
+        return (services == null) ? Collections.emptyList() : services.values();
+    }
+
+    /**
+     * Passes all tracked services of all environments to the action.
+     */
+    public void forEachService(Consumer<Etcd2ServiceNode> action) {
+        environments.forEach((environment, services) -> services.forEach((serviceName, serviceNode) ->
+                action.accept(serviceNode)));
+    }
+
+    public synchronized Etcd2ServiceNode getOrCreateService(String environment, String serviceName) {
+        Etcd2SegmentMap<Etcd2ServiceNode> services = environments.get(environment);
+        if (services == null) {
+            services = Etcd2SegmentMap.empty();
+        }
+
+        Etcd2ServiceNode serviceNode = services.get(serviceName);
+        if (serviceNode == null) {
+            serviceNode = new Etcd2ServiceNode(environment, serviceName);
+            environments = environments.put(environment, services.put(serviceName, serviceNode));
+        }
+
+        return serviceNode;
+    }
+
+    /**
+     * Routes parsed key to the owning service node without allocating.
+     *
+     * @param key parsed key
+     * @return service node or null, if service is not tracked
+     */
+    public Etcd2ServiceNode route(Etcd2KeyParser key) {
+        if (!key.has(Etcd2KeyParser.SEGMENT_SERVICE)) {
+            return null;
+        }
+
+        Etcd2SegmentMap<Etcd2ServiceNode> services = environments.get(key.getKey(),
+                key.start(Etcd2KeyParser.SEGMENT_ENVIRONMENT), key.end(Etcd2KeyParser.SEGMENT_ENVIRONMENT));
+
+        return (services == null) ? null : services.get(key.getKey(), key.start(Etcd2KeyParser.SEGMENT_SERVICE),
+                key.end(Etcd2KeyParser.SEGMENT_SERVICE));
+    }
+}
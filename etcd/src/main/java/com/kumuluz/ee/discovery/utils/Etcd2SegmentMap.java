@@ -0,0 +1,307 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable map from key segments to values, used as a level of the registry trie.
+ *
+ * Lookups can be performed with a region of a larger string (e.g. a segment of an etcd key), so routing a watch event
+ * through the trie does not allocate. Modifications return a new map, which makes the map safe to publish to reader
+ * threads through a volatile field. Multiple modifications can be staged in a {@link Builder} and published at once.
+ *
+ * @param <V> value type
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public final class Etcd2SegmentMap<V> {
+
+    private static final Etcd2SegmentMap<?> EMPTY = new Etcd2SegmentMap<>(new String[0], new Object[0], 0);
+
+    private final String[] keys;
+    private final Object[] values;
+    private final int size;
+
+    private Etcd2SegmentMap(String[] keys, Object[] values, int size) {
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> Etcd2SegmentMap<V> empty() {
+        return (Etcd2SegmentMap<V>) EMPTY;
+    }
+
+    public static <V> Etcd2SegmentMap<V> of(Map<String, V> map) {
+        if (map.isEmpty()) {
+            return empty();
+        }
+
+        int capacity = capacityFor(map.size());
+        String[] keys = new String[capacity];
+        Object[] values = new Object[capacity];
+
+        for (Map.Entry<String, V> entry : map.entrySet()) {
+            insert(keys, values, entry.getKey(), entry.getValue());
+        }
+
+        return new Etcd2SegmentMap<>(keys, values, map.size());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(String key) {
+        return get(key, 0, key.length());
+    }
+
+    /**
+     * Returns value for the key, which is given as a region of the source string.
+     *
+     * @param source source string
+     * @param start  start index of the key (inclusive)
+     * @param end    end index of the key (exclusive)
+     * @return value or null, if key is not present
+     */
+    @SuppressWarnings("unchecked")
+    public V get(String source, int start, int end) {
+        int slot = slot(keys, source, start, end);
+
+        return (slot < 0) ? null : (V) values[slot];
+    }
+
+    public boolean containsKey(String key) {
+        return slot(keys, key, 0, key.length()) >= 0;
+    }
+
+    /**
+     * @return new map with the key set to the value
+     */
+    public Etcd2SegmentMap<V> put(String key, V value) {
+        Builder<V> builder = toBuilder();
+        builder.put(key, value);
+
+        return builder.build();
+    }
+
+    /**
+     * @return new map without the key, or this map if key is not present
+     */
+    public Etcd2SegmentMap<V> remove(String key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+
+        Builder<V> builder = toBuilder();
+        builder.remove(key);
+
+        return builder.build();
+    }
+
+    public Builder<V> toBuilder() {
+        return new Builder<>(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<String, V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+
+        List<V> list = new ArrayList<>(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                list.add((V) values[i]);
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Mutable copy of a map. Not thread-safe, intended for staging changes of a single writer.
+     *
+     * @param <V> value type
+     */
+    public static final class Builder<V> {
+
+        private String[] keys;
+        private Object[] values;
+        private int size;
+
+        private Builder(Etcd2SegmentMap<V> map) {
+            if (map.size == 0) {
+                this.keys = new String[2];
+                this.values = new Object[2];
+            } else {
+                this.keys = map.keys.clone();
+                this.values = map.values.clone();
+            }
+            this.size = map.size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public V get(String key) {
+            return get(key, 0, key.length());
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(String source, int start, int end) {
+            int slot = slot(keys, source, start, end);
+
+            return (slot < 0) ? null : (V) values[slot];
+        }
+
+        public void put(String key, V value) {
+            int slot = slot(keys, key, 0, key.length());
+            if (slot >= 0) {
+                values[slot] = value;
+                return;
+            }
+
+            if ((size + 1) * 2 > keys.length) {
+                String[] oldKeys = keys;
+                Object[] oldValues = values;
+                keys = new String[capacityFor(size + 1)];
+                values = new Object[keys.length];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != null) {
+                        insert(keys, values, oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+
+            insert(keys, values, key, value);
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V remove(String key) {
+            int slot = slot(keys, key, 0, key.length());
+            if (slot < 0) {
+                return null;
+            }
+
+            V removed = (V) values[slot];
+
+            // backward shift deletion keeps probe sequences intact without tombstones
+            int mask = keys.length - 1;
+            int hole = slot;
+            int i = slot;
+            while (true) {
+                i = (i + 1) & mask;
+                if (keys[i] == null) {
+                    break;
+                }
+
+                int ideal = spread(keys[i].hashCode()) & mask;
+                boolean canMove = (hole <= i) ? (ideal <= hole || ideal > i) : (ideal <= hole && ideal > i);
+                if (canMove) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    hole = i;
+                }
+            }
+            keys[hole] = null;
+            values[hole] = null;
+            size--;
+
+            return removed;
+        }
+
+        public Etcd2SegmentMap<V> build() {
+            if (size == 0) {
+                return empty();
+            }
+
+            return new Etcd2SegmentMap<>(keys.clone(), values.clone(), size);
+        }
+    }
+
+    private static int slot(String[] keys, String source, int start, int end) {
+        if (keys.length == 0) {
+            return -1;
+        }
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int length = end - start;
+        int mask = keys.length - 1;
+        for (int i = spread(hash) & mask; keys[i] != null; i = (i + 1) & mask) {
+            String candidate = keys[i];
+            if (candidate.length() == length && candidate.regionMatches(0, source, start, length)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static void insert(String[] keys, Object[] values, String key, Object value) {
+        int mask = keys.length - 1;
+        int i = spread(key.hashCode()) & mask;
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    private static int capacityFor(int size) {
+        // load factor of at most 0.5 keeps probe sequences short
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+
+        return capacity;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -20,10 +20,10 @@
 */
 package com.kumuluz.ee.discovery.utils;
 
-import java.net.URL;
+import java.util.Objects;
 
 /**
- * Runnable for service registration and heartbeats.
+ * Instance of a service, as stored in the registry. Instances are immutable and replaced on every change.
  *
  * @author Urban Malc
  * @author Jan Meznaric
@@ -31,21 +31,28 @@ import java.net.URL;
  */
 public class Etcd2Service {
 
-    private URL baseUrl;
-    private URL containerUrl;
-    private String clusterId;
+    private final Endpoint baseUrl;
+    private final Endpoint containerUrl;
+    private final String clusterId;
+    private final int weight;
 
-    public Etcd2Service(URL baseUrl, URL containerUrl, String clusterId) {
+    public Etcd2Service(Endpoint baseUrl, Endpoint containerUrl, String clusterId) {
+        this(baseUrl, containerUrl, clusterId, WeightedRoundRobin.DEFAULT_WEIGHT);
+    }
+
+    public Etcd2Service(Endpoint baseUrl, Endpoint containerUrl, String clusterId, int weight) {
         this.baseUrl = baseUrl;
         this.containerUrl = containerUrl;
-        this.clusterId = clusterId;
+        // cluster IDs are shared by many instances
+        this.clusterId = Etcd2Dictionary.clusterIds().get(clusterId);
+        this.weight = weight;
     }
 
-    public URL getBaseUrl() {
+    public Endpoint getBaseUrl() {
         return baseUrl;
     }
 
-    public URL getContainerUrl() {
+    public Endpoint getContainerUrl() {
         if (containerUrl != null) {
             return this.containerUrl;
         } else {
@@ -57,15 +64,35 @@ public class Etcd2Service {
         return this.clusterId;
     }
 
-    public void setBaseUrl(URL baseUrl) {
-        this.baseUrl = baseUrl;
+    public int getWeight() {
+        return this.weight;
     }
 
-    public void setContainerUrl(URL containerUrl) {
-        this.containerUrl = containerUrl;
+    /**
+     * Compares services by their endpoints, without resolving host names.
+     *
+     * @param other service to compare with
+     * @return true if both services have the same endpoints, cluster ID and weight
+     */
+    public boolean isSameAs(Etcd2Service other) {
+        return other != null && Objects.equals(this.baseUrl, other.baseUrl) &&
+                Objects.equals(this.containerUrl, other.containerUrl) &&
+                Objects.equals(this.clusterId, other.clusterId) && this.weight == other.weight;
+    }
+
+    public Etcd2Service withBaseUrl(Endpoint baseUrl) {
+        return new Etcd2Service(baseUrl, this.containerUrl, this.clusterId, this.weight);
+    }
+
+    public Etcd2Service withContainerUrl(Endpoint containerUrl) {
+        return new Etcd2Service(this.baseUrl, containerUrl, this.clusterId, this.weight);
+    }
+
+    public Etcd2Service withClusterId(String clusterId) {
+        return new Etcd2Service(this.baseUrl, this.containerUrl, clusterId, this.weight);
     }
 
-    public void setClusterId(String clusterId) {
-        this.clusterId = clusterId;
+    public Etcd2Service withWeight(int weight) {
+        return new Etcd2Service(this.baseUrl, this.containerUrl, this.clusterId, weight);
     }
 }
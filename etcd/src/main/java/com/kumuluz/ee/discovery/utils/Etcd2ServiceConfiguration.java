@@ -38,13 +38,14 @@ public class Etcd2ServiceConfiguration {
     private String baseUrl;
     private String containerUrl;
     private String clusterId;
+    private volatile int weight;
 
     private String serviceInstanceKey;
     private String serviceKeyUrl;
 
     public Etcd2ServiceConfiguration(String serviceName, String serviceVersion, String environment, int ttl,
-                                     boolean singleton, String baseUrl, String containerUrl, String clusterId, String
-                                             serviceId) {
+                                     boolean singleton, String baseUrl, String containerUrl, String clusterId,
+                                     int weight, String serviceId) {
         this.serviceName = serviceName;
         this.serviceVersion = serviceVersion;
         this.environment = environment;
@@ -53,6 +54,7 @@ public class Etcd2ServiceConfiguration {
         this.baseUrl = baseUrl;
         this.containerUrl = containerUrl;
         this.clusterId = clusterId;
+        this.weight = weight;
 
         if (serviceId == null) {
             this.serviceInstanceKey = Etcd2Utils.getServiceKeyInstance(this.environment, this.serviceName,
@@ -97,6 +99,14 @@ public class Etcd2ServiceConfiguration {
         return this.clusterId;
     }
 
+    public int getWeight() {
+        return this.weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
     public String getServiceInstanceKey() {
         return serviceInstanceKey;
     }
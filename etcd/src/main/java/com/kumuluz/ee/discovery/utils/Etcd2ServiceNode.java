@@ -0,0 +1,118 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Registry trie node holding all known versions of a service in an environment.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2ServiceNode {
+
+    private final String environment;
+    private final String serviceName;
+
+    private volatile Etcd2SegmentMap<Etcd2VersionNode> versions;
+    private volatile boolean versionsLoaded;
+
+    private volatile String lastKnownVersion;
+
+    public Etcd2ServiceNode(String environment, String serviceName) {
+        this.environment = environment;
+        this.serviceName = serviceName;
+        this.versions = Etcd2SegmentMap.empty();
+    }
+
+    public String getEnvironment() {
+        return environment;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public Etcd2VersionNode getVersion(String version) {
+        return versions.get(version);
+    }
+
+    public Etcd2VersionNode getVersion(Etcd2KeyParser key) {
+        return versions.get(key.getKey(), key.start(Etcd2KeyParser.SEGMENT_VERSION),
+                key.end(Etcd2KeyParser.SEGMENT_VERSION));
+    }
+
+    public synchronized Etcd2VersionNode getOrCreateVersion(String version) {
+        Etcd2VersionNode versionNode = versions.get(version);
+
+        if (versionNode == null) {
+            versionNode = new Etcd2VersionNode(version);
+            versions = versions.put(version, versionNode);
+        }
+
+        return versionNode;
+    }
+
+    public Etcd2SegmentMap<Etcd2VersionNode> getVersions() {
+        return versions;
+    }
+
+    /**
+     * @return versions with at least one active instance and listed versions, whose instances are not loaded yet
+     */
+    public List<String> getActiveVersions() {
+        List<Etcd2VersionNode> versionNodes = versions.values();
+        if (versionNodes.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<String> activeVersions = new ArrayList<>(versionNodes.size());
+        for (Etcd2VersionNode versionNode : versionNodes) {
+            if (versionNode.hasActiveInstances() || (versionNode.isListed() && !versionNode.isInstancesLoaded())) {
+                activeVersions.add(versionNode.getVersion());
+            }
+        }
+
+        return activeVersions;
+    }
+
+    /**
+     * @return true if all versions of the service are loaded and watched
+     */
+    public boolean isVersionsLoaded() {
+        return versionsLoaded;
+    }
+
+    public void setVersionsLoaded(boolean versionsLoaded) {
+        this.versionsLoaded = versionsLoaded;
+    }
+
+    public String getLastKnownVersion() {
+        return lastKnownVersion;
+    }
+
+    public void setLastKnownVersion(String lastKnownVersion) {
+        this.lastKnownVersion = lastKnownVersion;
+    }
+}
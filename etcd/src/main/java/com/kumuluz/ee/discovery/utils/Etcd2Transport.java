@@ -0,0 +1,148 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.EtcdSecurityContext;
+import mousio.etcd4j.transport.EtcdNettyClient;
+import mousio.etcd4j.transport.EtcdNettyConfig;
+
+import javax.net.ssl.SSLException;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Netty event loop and TLS context, shared by all etcd clients of a cluster.
+ *
+ * Transports are acquired from {@link SharedClientRegistry} by hosts, CA certificate and credentials, so every member
+ * client of the discovery extension, the lean client and other extensions connecting to the same cluster share a single
+ * event loop and TLS session cache instead of creating their own.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2Transport {
+
+    private static final Logger log = Logger.getLogger(Etcd2Transport.class.getName());
+
+    private final EventLoopGroup eventLoopGroup;
+    private final SslContext sslContext;
+    private final EtcdSecurityContext securityContext;
+
+    private Etcd2Transport(String cert, String username, String password) {
+
+        this.sslContext = createSslContext(cert);
+
+        if (username != null && !username.isEmpty() && password != null && !password.isEmpty()) {
+            if (sslContext != null) {
+                this.securityContext = new EtcdSecurityContext(sslContext, username, password);
+            } else {
+                this.securityContext = new EtcdSecurityContext(username, password);
+            }
+        } else if (sslContext != null) {
+            this.securityContext = new EtcdSecurityContext(sslContext);
+        } else {
+            this.securityContext = EtcdSecurityContext.NONE;
+        }
+
+        this.eventLoopGroup = new NioEventLoopGroup(0, new DefaultThreadFactory("kumuluzee-etcd-client", true));
+    }
+
+    /**
+     * Acquires the transport of given cluster.
+     *
+     * @param hosts    comma separated etcd hosts
+     * @param cert     PEM or base64 encoded CA certificate, may be null
+     * @param username etcd username, may be null
+     * @param password etcd password, may be null
+     * @return lease of the transport, which must be released when the clients are closed
+     */
+    public static SharedClientRegistry.Lease<Etcd2Transport> acquire(String hosts, String cert, String username,
+                                                                     String password) {
+
+        return SharedClientRegistry.acquire(SharedClientRegistry.key("etcd", hosts, cert, username, password),
+                () -> new Etcd2Transport(cert, username, password), Etcd2Transport::close);
+    }
+
+    /**
+     * Creates a client, which uses the shared event loop. Closing the client does not close the event loop.
+     *
+     * @param hosts etcd hosts of the client
+     * @return etcd client
+     */
+    public EtcdClient createClient(URI[] hosts) {
+        EtcdNettyConfig config = new EtcdNettyConfig().setEventLoopGroup(eventLoopGroup, false);
+
+        return new EtcdClient(new EtcdNettyClient(config, securityContext, hosts));
+    }
+
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * @return SSL context with the CA certificate or null, if no certificate is configured
+     */
+    public SslContext getSslContext() {
+        return sslContext;
+    }
+
+    private void close() {
+        eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static SslContext createSslContext(String cert) {
+
+        if (cert == null) {
+            return null;
+        }
+
+        cert = cert.replaceAll("\\s+", "").replace("-----BEGINCERTIFICATE-----", "")
+                .replace("-----ENDCERTIFICATE-----", "");
+
+        byte[] decoded = Base64.getDecoder().decode(cert);
+
+        try {
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(decoded));
+
+            return SslContextBuilder.forClient().trustManager(certificate).build();
+
+        } catch (CertificateException e) {
+            log.severe("Certificate exception: " + e.toString());
+        } catch (SSLException e) {
+            log.severe("SSL exception: " + e.toString());
+        }
+
+        return null;
+    }
+}
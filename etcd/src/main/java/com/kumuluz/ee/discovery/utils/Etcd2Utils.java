@@ -50,13 +50,35 @@ public class Etcd2Utils {
 
     public static EtcdKeysResponse getEtcdDir(EtcdClient etcd, String key, RetryPolicy retryPolicy,
                                               boolean resilience) {
+        return getEtcdDir(etcd, key, true, false, retryPolicy, resilience);
+    }
+
+    /**
+     * Reads a directory from etcd.
+     *
+     * @param etcd        etcd client
+     * @param key         directory key
+     * @param recursive   if false, only direct children are read, without their content
+     * @param quorum      if true, the read is confirmed by a quorum of the cluster
+     * @param retryPolicy retry policy or null for the default policy of the client
+     * @param resilience  if false, timeouts are thrown as {@link EtcdNotAvailableException}
+     * @return response or null, if directory could not be read
+     */
+    public static EtcdKeysResponse getEtcdDir(EtcdClient etcd, String key, boolean recursive, boolean quorum,
+                                              RetryPolicy retryPolicy, boolean resilience) {
 
         EtcdKeysResponse etcdKeysResponse = null;
 
         if (etcd != null) {
 
             try {
-                EtcdKeyGetRequest request = etcd.getDir(key).recursive();
+                EtcdKeyGetRequest request = etcd.getDir(key);
+                if (recursive) {
+                    request.recursive();
+                }
+                if (quorum) {
+                    request.consistent();
+                }
                 if (retryPolicy != null) {
                     request.setRetryPolicy(retryPolicy);
                 }
@@ -90,8 +112,20 @@ public class Etcd2Utils {
     }
 
     public static String getLastKeyLayer(String key) {
-        String[] splittedKey = key.split("/");
-        return splittedKey[splittedKey.length - 1];
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Checks the last layer of the key without allocating a substring.
+     *
+     * @param key   etcd key
+     * @param layer expected last layer
+     * @return true if the last layer of the key equals layer
+     */
+    public static boolean isLastKeyLayer(String key, String layer) {
+        int start = key.lastIndexOf('/') + 1;
+
+        return key.length() - start == layer.length() && key.regionMatches(start, layer, 0, layer.length());
     }
 
     public static String getServiceKeyInstance(String environment, String serviceName, String serviceVersion, String
@@ -100,7 +134,36 @@ public class Etcd2Utils {
                 serviceId;
     }
 
+    public static String getServiceKeyVersion(String environment, String serviceName, String serviceVersion) {
+        return "/environments/" + environment + "/services/" + serviceName + "/" + serviceVersion;
+    }
+
     public static String getServiceKeyInstances(String environment, String serviceName, String serviceVersion) {
         return "/environments/" + environment + "/services/" + serviceName + "/" + serviceVersion + "/instances/";
     }
+
+    public static String getLeaderKey(String environment, String electionName) {
+        return "/environments/" + environment + "/leaders/" + electionName;
+    }
+
+    public static String getSingletonKey(String environment, String serviceName, String serviceVersion) {
+        return "/environments/" + environment + "/singletons/" + serviceName + "/" + serviceVersion;
+    }
+
+    /**
+     * @param weight value of the weight key of an instance, may be null
+     * @return weight of the instance, default weight if the value is missing or invalid
+     */
+    public static int parseWeight(String weight) {
+        if (weight == null || weight.isEmpty()) {
+            return WeightedRoundRobin.DEFAULT_WEIGHT;
+        }
+
+        try {
+            return Math.max(0, Integer.parseInt(weight));
+        } catch (NumberFormatException e) {
+            log.warning("Invalid instance weight: " + weight);
+            return WeightedRoundRobin.DEFAULT_WEIGHT;
+        }
+    }
 }
@@ -0,0 +1,394 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry trie node holding instances and gateway URL of a single service version.
+ *
+ * Instances are keyed by instance ID. The instance map is immutable and replaced on every change, so readers never
+ * observe a partially applied update. Watch events are staged with {@link #putInstance(String, Etcd2Service, long)}
+ * and {@link #removeInstance(String, boolean, long)} and become visible to readers when {@link #publish()} is called,
+ * so a batch of events costs a single snapshot rebuild. A read from etcd, which replaces all instances, keeps staged
+ * events newer than the read, so they are published by the watch, which staged them.
+ *
+ * When the last active instance is removed, the last non-empty set of active instances is kept as
+ * {@link LastKnownInstances}, until active instances are present again.
+ *
+ * Instances of a version, which was listed shallowly, are loaded when the version is resolved. Loads are serialized
+ * with {@link #getLoadLock()}, not with the monitor of the node, so watch events are never blocked by a read from etcd.
+ * Events, which arrive while a load is in progress, are skipped and their index is recorded. The loader reads the
+ * version again, if an event newer than its read was skipped. Events, which are not newer than the last read, are
+ * discarded, since they are already contained in it.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2VersionNode {
+
+    private final String version;
+
+    private volatile Etcd2SegmentMap<Etcd2Service> instances;
+    private Etcd2SegmentMap.Builder<Etcd2Service> pendingInstances;
+    private Map<String, Long> pendingIndexes;
+    private Set<String> pendingDroppedInstances;
+    private volatile boolean instancesLoaded;
+    private volatile boolean listed;
+
+    private final Object loadLock = new Object();
+    private boolean loading;
+    private long skippedEventIndex;
+    private volatile long loadedIndex;
+
+    private volatile Endpoint gatewayUrl;
+    private volatile boolean gatewayUrlLoaded;
+
+    private volatile LastKnownInstances<Etcd2Service> lastKnownInstances;
+
+    public Etcd2VersionNode(String version) {
+        this.version = version;
+        this.instances = Etcd2SegmentMap.empty();
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public Etcd2SegmentMap<Etcd2Service> getInstances() {
+        return instances;
+    }
+
+    /**
+     * @return instance, including staged changes, which are not yet published
+     */
+    public synchronized Etcd2Service getInstance(Etcd2KeyParser key) {
+        int start = key.start(Etcd2KeyParser.SEGMENT_INSTANCE);
+        int end = key.end(Etcd2KeyParser.SEGMENT_INSTANCE);
+
+        return (pendingInstances != null) ? pendingInstances.get(key.getKey(), start, end) :
+                instances.get(key.getKey(), start, end);
+    }
+
+    /**
+     * Atomically replaces all instances with a set read from etcd. If the new set equals the current one, current
+     * instances are kept. Staged changes of events, which are not newer than the read, are discarded, since the read
+     * already contains them. Newer staged changes are staged again on top of the new set.
+     *
+     * @param newInstances instances, keyed by instance ID
+     * @param readIndex    etcd index of the read or 0, if all staged changes are newer than the new set
+     * @return number of added, removed and modified instances
+     */
+    public synchronized int replaceInstances(Etcd2SegmentMap<Etcd2Service> newInstances, long readIndex) {
+        Etcd2SegmentMap<Etcd2Service> oldInstances = this.instances;
+
+        int[] changes = new int[1];
+        oldInstances.forEach((id, service) -> {
+            Etcd2Service newService = newInstances.get(id);
+            if (newService == null || !newService.isSameAs(service)) {
+                changes[0]++;
+            }
+        });
+        newInstances.forEach((id, service) -> {
+            if (!oldInstances.containsKey(id)) {
+                changes[0]++;
+            }
+        });
+
+        if (changes[0] > 0) {
+            updateLastKnownInstances(oldInstances, newInstances, null);
+            this.instances = newInstances;
+        }
+        restageNewerChanges(readIndex);
+        this.instancesLoaded = true;
+
+        return changes[0];
+    }
+
+    /**
+     * Stages changes of events newer than the read again, on top of the current instances.
+     */
+    private void restageNewerChanges(long readIndex) {
+        Etcd2SegmentMap.Builder<Etcd2Service> staged = this.pendingInstances;
+        Map<String, Long> stagedIndexes = this.pendingIndexes;
+        Set<String> stagedDropped = this.pendingDroppedInstances;
+
+        this.pendingInstances = null;
+        this.pendingIndexes = null;
+        this.pendingDroppedInstances = null;
+
+        if (staged == null) {
+            return;
+        }
+
+        stagedIndexes.forEach((instanceId, modifiedIndex) -> {
+            if (modifiedIndex > readIndex) {
+                Etcd2Service service = staged.get(instanceId);
+                if (service != null) {
+                    putInstance(instanceId, service, modifiedIndex);
+                } else {
+                    removeInstance(instanceId, stagedDropped == null || !stagedDropped.contains(instanceId),
+                            modifiedIndex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stages instance. Change is not visible to readers until {@link #publish()} is called.
+     *
+     * @param instanceId    instance ID
+     * @param service       instance
+     * @param modifiedIndex etcd index of the event
+     */
+    public synchronized void putInstance(String instanceId, Etcd2Service service, long modifiedIndex) {
+        stagedInstances().put(instanceId, service);
+        pendingIndexes.put(instanceId, modifiedIndex);
+    }
+
+    /**
+     * Stages removal of an instance. Change is not visible to readers until {@link #publish()} is called.
+     *
+     * @param instanceId      instance ID
+     * @param keepAsLastKnown if false, the instance is not kept as a last known instance, e.g. because it was disabled
+     * @param modifiedIndex   etcd index of the event
+     * @return removed instance or null, if instance was not present
+     */
+    public synchronized Etcd2Service removeInstance(String instanceId, boolean keepAsLastKnown, long modifiedIndex) {
+        Etcd2Service removed = stagedInstances().remove(instanceId);
+        pendingIndexes.put(instanceId, modifiedIndex);
+
+        if (removed != null && !keepAsLastKnown) {
+            if (pendingDroppedInstances == null) {
+                pendingDroppedInstances = new HashSet<>();
+            }
+            pendingDroppedInstances.add(instanceId);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Publishes staged changes to readers.
+     *
+     * @return true if there were any staged changes
+     */
+    public synchronized boolean publish() {
+        if (pendingInstances == null) {
+            return false;
+        }
+
+        Etcd2SegmentMap<Etcd2Service> newInstances = pendingInstances.build();
+        updateLastKnownInstances(this.instances, newInstances, pendingDroppedInstances);
+
+        this.instances = newInstances;
+        this.pendingInstances = null;
+        this.pendingIndexes = null;
+        this.pendingDroppedInstances = null;
+
+        return true;
+    }
+
+    /**
+     * Keeps the active instances of the old set as last known instances, if the new set has no active instances.
+     * Last known instances are cleared, when active instances are present again.
+     */
+    private void updateLastKnownInstances(Etcd2SegmentMap<Etcd2Service> oldInstances,
+                                          Etcd2SegmentMap<Etcd2Service> newInstances, Set<String> droppedInstances) {
+        if (hasActiveInstances(newInstances)) {
+            this.lastKnownInstances = null;
+            return;
+        }
+
+        List<Etcd2Service> lastKnown = new ArrayList<>(oldInstances.size());
+        oldInstances.forEach((id, service) -> {
+            if (service.getBaseUrl() != null && (droppedInstances == null || !droppedInstances.contains(id))) {
+                lastKnown.add(service);
+            }
+        });
+
+        if (!lastKnown.isEmpty()) {
+            this.lastKnownInstances = new LastKnownInstances<>(lastKnown);
+        } else if (hasActiveInstances(oldInstances)) {
+            // all active instances were dropped deliberately
+            this.lastKnownInstances = null;
+        }
+    }
+
+    /**
+     * @return true if all instances were removed, including staged changes
+     */
+    public synchronized boolean isEmpty() {
+        return (pendingInstances != null) ? pendingInstances.size() == 0 : instances.isEmpty();
+    }
+
+    private Etcd2SegmentMap.Builder<Etcd2Service> stagedInstances() {
+        if (pendingInstances == null) {
+            pendingInstances = instances.toBuilder();
+            pendingIndexes = new HashMap<>();
+        }
+
+        return pendingInstances;
+    }
+
+    /**
+     * @return instances with a known base URL
+     */
+    public List<Etcd2Service> getActiveInstances() {
+        List<Etcd2Service> active = new ArrayList<>(instances.size());
+        instances.forEach((id, service) -> {
+            if (service.getBaseUrl() != null) {
+                active.add(service);
+            }
+        });
+
+        return active;
+    }
+
+    public boolean hasActiveInstances() {
+        return hasActiveInstances(instances);
+    }
+
+    private static boolean hasActiveInstances(Etcd2SegmentMap<Etcd2Service> instances) {
+        for (Etcd2Service service : instances.values()) {
+            if (service.getBaseUrl() != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean isInstancesLoaded() {
+        return instancesLoaded;
+    }
+
+    /**
+     * @return lock, which is held while instances are read from etcd
+     */
+    public Object getLoadLock() {
+        return loadLock;
+    }
+
+    /**
+     * Starts a load. Must be called before instances are read.
+     */
+    public synchronized void beginLoad() {
+        this.loading = true;
+        this.skippedEventIndex = 0;
+    }
+
+    /**
+     * Records the index of a read, before instances read at that index are applied. Events, which are not newer than
+     * the read, are discarded from now on.
+     *
+     * @param readIndex etcd index of the read
+     */
+    public synchronized void setLoadedIndex(long readIndex) {
+        this.loadedIndex = Math.max(this.loadedIndex, readIndex);
+    }
+
+    /**
+     * Checked after instances of a read were applied.
+     *
+     * @param readIndex etcd index of the read
+     * @return true if an event newer than the read was skipped during the load, so the version must be read again
+     */
+    public synchronized boolean hasSkippedEvents(long readIndex) {
+        boolean skipped = skippedEventIndex > readIndex;
+        this.skippedEventIndex = 0;
+
+        return skipped;
+    }
+
+    public synchronized void endLoad() {
+        this.loading = false;
+    }
+
+    /**
+     * Records an event of a version, whose instances are not loaded.
+     *
+     * @param modifiedIndex index of the event
+     */
+    public synchronized void skipEvent(long modifiedIndex) {
+        if (loading) {
+            skippedEventIndex = Math.max(skippedEventIndex, modifiedIndex);
+        }
+    }
+
+    /**
+     * @return true if an event with given index is already contained in the last read of the instances
+     */
+    public boolean isContainedInLoad(long modifiedIndex) {
+        return modifiedIndex <= loadedIndex;
+    }
+
+    /**
+     * @return true if the version directory was seen in a shallow listing of versions
+     */
+    public boolean isListed() {
+        return listed;
+    }
+
+    public void setListed(boolean listed) {
+        this.listed = listed;
+    }
+
+    public Endpoint getGatewayUrl() {
+        return gatewayUrl;
+    }
+
+    public synchronized void setGatewayUrl(Endpoint gatewayUrl) {
+        this.gatewayUrl = gatewayUrl;
+        this.gatewayUrlLoaded = true;
+    }
+
+    public boolean isGatewayUrlLoaded() {
+        return gatewayUrlLoaded;
+    }
+
+    /**
+     * @return last non-empty set of active instances or null, if active instances are present
+     */
+    public LastKnownInstances<Etcd2Service> getLastKnownInstances() {
+        return lastKnownInstances;
+    }
+
+    /**
+     * Replaces last known instances, if they were not changed in the meantime.
+     *
+     * @return true if last known instances were replaced
+     */
+    public synchronized boolean replaceLastKnownInstances(LastKnownInstances<Etcd2Service> expected,
+                                                          LastKnownInstances<Etcd2Service> updated) {
+        if (this.lastKnownInstances != expected) {
+            return false;
+        }
+        this.lastKnownInstances = updated;
+
+        return true;
+    }
+}
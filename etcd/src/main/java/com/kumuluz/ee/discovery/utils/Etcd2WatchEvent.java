@@ -0,0 +1,98 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Change of a watched key, queued for application on the watch event thread.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2WatchEvent {
+
+    private final String watchedKey;
+    private final boolean versionsWatch;
+    private final AtomicLong watchIndex;
+
+    private final String key;
+    private final String value;
+    private final long ttl;
+    private final long modifiedIndex;
+
+    public Etcd2WatchEvent(String watchedKey, boolean versionsWatch, AtomicLong watchIndex, String key, String value,
+                           long ttl, long modifiedIndex) {
+        this.watchedKey = watchedKey;
+        this.versionsWatch = versionsWatch;
+        this.watchIndex = watchIndex;
+        this.key = key;
+        this.value = value;
+        this.ttl = ttl;
+        this.modifiedIndex = modifiedIndex;
+    }
+
+    /**
+     * @return key of the watch, which received the event
+     */
+    public String getWatchedKey() {
+        return watchedKey;
+    }
+
+    /**
+     * @return true if the watch covers all versions of a service (service or environment watch)
+     */
+    public boolean isVersionsWatch() {
+        return versionsWatch;
+    }
+
+    /**
+     * @return index of the last event applied by the watch
+     */
+    public AtomicLong getWatchIndex() {
+        return watchIndex;
+    }
+
+    /**
+     * @return key of the changed node
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return new value of the changed node, null if node is a directory or was deleted or expired
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return remaining TTL of the changed node in seconds, 0 if node has no TTL or expired
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    public long getModifiedIndex() {
+        return modifiedIndex;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.discovery.exceptions.EtcdErrorResponseException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.ReferenceCountUtil;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the reads and watches of {@link Etcd2LeanClient} through an embedded channel with canned etcd responses.
+ *
+ * @author Urban Malc
+ * @since 1.2.0
+ */
+public class Etcd2LeanClientTest {
+
+    private static final URI HOST = URI.create("http://localhost:2379");
+    private static final String SERVICES_KEY = "/environments/dev/services/customer-service";
+
+    private static final String DIR_BODY = "{\"action\":\"get\",\"node\":{\"key\":\"" + SERVICES_KEY + "\"," +
+            "\"dir\":true,\"nodes\":[{\"key\":\"" + SERVICES_KEY + "/1.0.0\",\"dir\":true,\"nodes\":[" +
+            "{\"key\":\"" + SERVICES_KEY + "/1.0.0/instances\",\"dir\":true,\"nodes\":[" +
+            "{\"key\":\"" + SERVICES_KEY + "/1.0.0/instances/a1\",\"dir\":true,\"expiration\":" +
+            "\"2018-12-20T10:00:30.5Z\",\"ttl\":30,\"nodes\":[" +
+            "{\"key\":\"" + SERVICES_KEY + "/1.0.0/instances/a1/url\",\"value\":\"http://10.0.0.1:8080\"," +
+            "\"modifiedIndex\":38,\"createdIndex\":38}]," +
+            "\"modifiedIndex\":37,\"createdIndex\":37}]," +
+            "\"modifiedIndex\":36,\"createdIndex\":36}]," +
+            "\"modifiedIndex\":36,\"createdIndex\":36}]," +
+            "\"modifiedIndex\":35,\"createdIndex\":35}}";
+
+    private static final List<String> DIR_NODES = Arrays.asList(
+            SERVICES_KEY + "/1.0.0/instances/a1/url|http://10.0.0.1:8080|false|0|38",
+            SERVICES_KEY + "/1.0.0/instances/a1|null|true|30|37",
+            SERVICES_KEY + "/1.0.0/instances|null|true|0|36",
+            SERVICES_KEY + "/1.0.0|null|true|0|36",
+            SERVICES_KEY + "|null|true|0|35");
+
+    private EventLoopGroup eventLoopGroup;
+    private Etcd2LeanClient client;
+    private List<String> nodes;
+
+    @Before
+    public void setUp() {
+        eventLoopGroup = new DefaultEventLoopGroup(1);
+        client = new Etcd2LeanClient(new URI[]{HOST}, () -> null, eventLoopGroup, null, null, null, 1000);
+        nodes = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        eventLoopGroup.shutdownGracefully();
+    }
+
+    @Test
+    public void readsDirectory() throws Exception {
+        FullHttpResponse response = read(response("200 OK", "X-Etcd-Index: 42\r\n", DIR_BODY));
+
+        assertEquals(42, readDir(response));
+        assertEquals(DIR_NODES, nodes);
+    }
+
+    @Test
+    public void readsChunkedResponse() throws Exception {
+        FullHttpResponse response = read(
+                "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nX-Etcd-Index: 42\r\n" +
+                        "Transfer-Encoding: chunked\r\n\r\n",
+                chunk(DIR_BODY.substring(0, 100)),
+                chunk(DIR_BODY.substring(100, 301)),
+                chunk(DIR_BODY.substring(301)),
+                "0\r\n\r\n");
+
+        assertEquals(42, readDir(response));
+        assertEquals(DIR_NODES, nodes);
+    }
+
+    @Test
+    public void readWithoutIndexHeader() throws Exception {
+        FullHttpResponse response = read(response("200 OK", "", DIR_BODY));
+
+        assertEquals(0, readDir(response));
+        assertEquals(DIR_NODES, nodes);
+    }
+
+    @Test
+    public void readMatchesEtcd4j() throws Exception {
+        FullHttpResponse response = read(response("200 OK", "X-Etcd-Index: 42\r\n", DIR_BODY));
+        long etcdIndex = readDir(response);
+
+        HttpHeaders headers = new DefaultHttpHeaders().add("X-Etcd-Index", "42");
+        ByteBuf content = Unpooled.copiedBuffer(DIR_BODY, StandardCharsets.UTF_8);
+        EtcdKeysResponse etcd4jResponse;
+        try {
+            etcd4jResponse = EtcdKeysResponse.DECODER.decode(headers, content);
+        } finally {
+            content.release();
+        }
+
+        List<String> etcd4jNodes = new ArrayList<>();
+        flatten(etcd4jResponse.getNode(), etcd4jNodes);
+
+        assertEquals(etcd4jResponse.etcdIndex.longValue(), etcdIndex);
+        assertEquals(etcd4jNodes, nodes);
+    }
+
+    @Test
+    public void readReportsEtcdError() throws Exception {
+        FullHttpResponse response = read(response("404 Not Found", "X-Etcd-Index: 42\r\n",
+                "{\"errorCode\":100,\"message\":\"Key not found\",\"cause\":\"" + SERVICES_KEY + "\",\"index\":42}"));
+
+        try {
+            readDir(response);
+            fail("Expected etcd error.");
+        } catch (EtcdErrorResponseException e) {
+            assertEquals(100, e.getErrorCode());
+            assertEquals(42, e.getIndex());
+        }
+        assertTrue(nodes.isEmpty());
+    }
+
+    @Test
+    public void readReportsUnauthorized() throws Exception {
+        FullHttpResponse response = read(response("401 Unauthorized", "",
+                "{\"message\":\"Insufficient credentials\"}"));
+
+        try {
+            readDir(response);
+            fail("Expected unsuccessful read.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("401"));
+        }
+        assertTrue(nodes.isEmpty());
+    }
+
+    @Test
+    public void readReportsNonEtcdError() throws Exception {
+        FullHttpResponse response = read(response("502 Bad Gateway", "", "<html>Bad Gateway</html>"));
+
+        try {
+            readDir(response);
+            fail("Expected unsuccessful read.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("502"));
+        }
+    }
+
+    @Test
+    public void watchParsesChunkedStream() {
+        List<Throwable> closeCauses = new ArrayList<>();
+        EmbeddedChannel channel = watch(closeCauses, 43);
+
+        String event1 = "{\"action\":\"set\",\"node\":{\"key\":\"" + SERVICES_KEY + "/1.0.0/instances/a1/url\"," +
+                "\"value\":\"http://10.0.0.1:8080\",\"modifiedIndex\":43,\"createdIndex\":43}}";
+        String event2 = "{\"action\":\"expire\",\"node\":{\"key\":\"" + SERVICES_KEY + "/1.0.0/instances/a1\"," +
+                "\"dir\":true,\"modifiedIndex\":44,\"createdIndex\":37},\"prevNode\":{\"key\":\"" + SERVICES_KEY +
+                "/1.0.0/instances/a1\",\"dir\":true,\"modifiedIndex\":37,\"createdIndex\":37}}";
+
+        channel.writeInbound(buffer("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nX-Etcd-Index: 42\r\n" +
+                "Transfer-Encoding: chunked\r\n\r\n"));
+        channel.writeInbound(buffer(chunk(event1 + "\n" + event2.substring(0, 50))));
+
+        assertEquals(Arrays.asList(SERVICES_KEY + "/1.0.0/instances/a1/url|http://10.0.0.1:8080|false|0|43"),
+                nodes);
+
+        channel.writeInbound(buffer(chunk(event2.substring(50))));
+        channel.writeInbound(buffer(chunk("\n")));
+
+        assertEquals(Arrays.asList(SERVICES_KEY + "/1.0.0/instances/a1/url|http://10.0.0.1:8080|false|0|43",
+                SERVICES_KEY + "/1.0.0/instances/a1|null|true|0|44"), nodes);
+        assertTrue(closeCauses.isEmpty());
+
+        channel.writeInbound(buffer("0\r\n\r\n"));
+
+        assertEquals(1, closeCauses.size());
+        assertNull(closeCauses.get(0));
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void watchReportsClearedIndex() {
+        List<Throwable> closeCauses = new ArrayList<>();
+        EmbeddedChannel channel = watch(closeCauses, 2);
+
+        channel.writeInbound(buffer(response("400 Bad Request", "X-Etcd-Index: 2007\r\n",
+                "{\"errorCode\":401,\"message\":\"The event in requested index is outdated and cleared\"," +
+                        "\"cause\":\"the requested history has been cleared [1008/2]\",\"index\":2007}")));
+
+        assertEquals(1, closeCauses.size());
+        assertTrue(closeCauses.get(0) instanceof EtcdErrorResponseException);
+        EtcdErrorResponseException cause = (EtcdErrorResponseException) closeCauses.get(0);
+        assertEquals(401, cause.getErrorCode());
+        assertEquals(2007, cause.getIndex());
+        assertTrue(nodes.isEmpty());
+    }
+
+    @Test
+    public void watchReportsUnauthorized() {
+        List<Throwable> closeCauses = new ArrayList<>();
+        EmbeddedChannel channel = watch(closeCauses, 43);
+
+        channel.writeInbound(buffer(response("401 Unauthorized", "", "{\"message\":\"Insufficient credentials\"}")));
+
+        assertEquals(1, closeCauses.size());
+        assertTrue(closeCauses.get(0) instanceof IOException);
+    }
+
+    @Test
+    public void watchReportsClosedConnection() {
+        List<Throwable> closeCauses = new ArrayList<>();
+        EmbeddedChannel channel = watch(closeCauses, 43);
+
+        channel.writeInbound(buffer("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n" +
+                "Transfer-Encoding: chunked\r\n\r\n"));
+        channel.close();
+
+        assertEquals(1, closeCauses.size());
+        assertTrue(closeCauses.get(0) instanceof IOException);
+    }
+
+    private FullHttpResponse read(String... responseParts) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        Etcd2LeanClient.initReadPipeline(channel.pipeline());
+
+        CompletableFuture<FullHttpResponse> responseFuture = Etcd2LeanClient.expectResponse(channel);
+        FullHttpRequest request = client.createRequest(HOST, Etcd2LeanClient.getDirUri(SERVICES_KEY, true, false));
+        assertEquals("/v2/keys" + SERVICES_KEY + "?recursive=true", request.uri());
+        writeRequest(channel, request);
+
+        for (String part : responseParts) {
+            channel.writeInbound(buffer(part));
+        }
+
+        assertTrue(responseFuture.isDone());
+        channel.finishAndReleaseAll();
+
+        return responseFuture.join();
+    }
+
+    private long readDir(FullHttpResponse response) throws IOException, EtcdErrorResponseException {
+        try {
+            return Etcd2LeanClient.readDirResponse(response, this::addNode);
+        } finally {
+            response.release();
+        }
+    }
+
+    private EmbeddedChannel watch(List<Throwable> closeCauses, long waitIndex) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        Etcd2LeanClient.Watch watch = client.createWatch(closeCauses::add);
+        Etcd2LeanClient.initWatchPipeline(channel.pipeline(), watch, this::addNode);
+
+        FullHttpRequest request = client.createRequest(HOST, Etcd2LeanClient.getWatchUri(SERVICES_KEY, waitIndex));
+        assertEquals("/v2/keys" + SERVICES_KEY + "?wait=true&recursive=true&stream=true&waitIndex=" + waitIndex,
+                request.uri());
+        writeRequest(channel, request);
+
+        return channel;
+    }
+
+    private static void writeRequest(EmbeddedChannel channel, FullHttpRequest request) {
+        // the client codec pairs responses with sent requests
+        channel.writeOutbound(request);
+        Object outbound;
+        while ((outbound = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(outbound);
+        }
+    }
+
+    private void addNode(String key, String value, boolean dir, long ttl, long modifiedIndex) {
+        nodes.add(key + "|" + value + "|" + dir + "|" + ttl + "|" + modifiedIndex);
+    }
+
+    private static void flatten(EtcdKeysResponse.EtcdNode node, List<String> nodes) {
+        if (node.getNodes() != null) {
+            for (EtcdKeysResponse.EtcdNode child : node.getNodes()) {
+                flatten(child, nodes);
+            }
+        }
+        nodes.add(node.getKey() + "|" + node.getValue() + "|" + node.isDir() + "|" +
+                (node.getTTL() == null ? 0 : node.getTTL()) + "|" + node.getModifiedIndex());
+    }
+
+    private static String response(String status, String headers, String body) {
+        return "HTTP/1.1 " + status + "\r\nContent-Type: application/json\r\n" + headers +
+                "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+    }
+
+    private static String chunk(String data) {
+        return Integer.toHexString(data.getBytes(StandardCharsets.UTF_8).length) + "\r\n" + data + "\r\n";
+    }
+
+    private static ByteBuf buffer(String data) {
+        return Unpooled.copiedBuffer(data, StandardCharsets.UTF_8);
+    }
+}